@@ -0,0 +1,148 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.Arrays;
+
+/**
+ * EdgeStore that keeps each attribute in its own java array.
+ *
+ * @author realor
+ */
+public class ArrayEdgeStore extends EdgeStore
+{
+  private static final int INITIAL_CAPACITY = 1024;
+  private int[] speed = new int[INITIAL_CAPACITY]; // Km/h
+  private int[] lanes = new int[INITIAL_CAPACITY]; // number of lanes
+  private double[] delay = new double[INITIAL_CAPACITY]; // seconds
+  private int[] vehicleCount = new int[INITIAL_CAPACITY];
+  private double[] length = new double[INITIAL_CAPACITY]; // meters
+  private int size;
+
+  @Override
+  protected int allocateNew()
+  {
+    if (size == speed.length)
+    {
+      int capacity = 2 * size;
+      speed = Arrays.copyOf(speed, capacity);
+      lanes = Arrays.copyOf(lanes, capacity);
+      delay = Arrays.copyOf(delay, capacity);
+      vehicleCount = Arrays.copyOf(vehicleCount, capacity);
+      length = Arrays.copyOf(length, capacity);
+    }
+    return size++;
+  }
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public int getSpeed(int id)
+  {
+    return speed[id];
+  }
+
+  @Override
+  public void setSpeed(int id, int value)
+  {
+    speed[id] = value;
+  }
+
+  @Override
+  public int getLanes(int id)
+  {
+    return lanes[id];
+  }
+
+  @Override
+  public void setLanes(int id, int value)
+  {
+    lanes[id] = value;
+  }
+
+  @Override
+  public double getDelay(int id)
+  {
+    return delay[id];
+  }
+
+  @Override
+  public void setDelay(int id, double value)
+  {
+    delay[id] = value;
+  }
+
+  @Override
+  public int getVehicleCount(int id)
+  {
+    return vehicleCount[id];
+  }
+
+  @Override
+  public void setVehicleCount(int id, int value)
+  {
+    vehicleCount[id] = value;
+  }
+
+  @Override
+  public void addVehicleCount(int id, int value)
+  {
+    vehicleCount[id] += value;
+  }
+
+  @Override
+  public double getLength(int id)
+  {
+    return length[id];
+  }
+
+  @Override
+  public void setLength(int id, double value)
+  {
+    length[id] = value;
+  }
+
+  @Override
+  public void resetVehicleCounts()
+  {
+    Arrays.fill(vehicleCount, 0, size, 0);
+  }
+
+  @Override
+  public long getMemoryUsage()
+  {
+    return (long)speed.length * (4 + 4 + 8 + 4 + 8);
+  }
+}
@@ -61,14 +61,19 @@ public class Box implements Serializable
 
   public void extend(Point3d point)
   {
-    if (point.x > xmax) xmax = point.x;
-    if (point.x < xmin) xmin = point.x;
+    extend(point.x, point.y, point.z);
+  }
+
+  public void extend(double x, double y, double z)
+  {
+    if (x > xmax) xmax = x;
+    if (x < xmin) xmin = x;
 
-    if (point.y > ymax) ymax = point.y;
-    if (point.y < ymin) ymin = point.y;
+    if (y > ymax) ymax = y;
+    if (y < ymin) ymin = y;
 
-    if (point.z > zmax) zmax = point.z;
-    if (point.z < zmin) zmin = point.z;
+    if (z > zmax) zmax = z;
+    if (z < zmin) zmin = z;
   }
 
   public void extend(Box box)
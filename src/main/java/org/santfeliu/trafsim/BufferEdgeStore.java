@@ -0,0 +1,204 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * EdgeStore that keeps the attributes of each edge in a fixed size record
+ * of a direct ByteBuffer, outside the java heap.
+ *
+ * @author realor
+ */
+public class BufferEdgeStore extends EdgeStore
+{
+  // record layout (byte offsets), also used by prebuilt network files
+  public static final int RECORD_SIZE = 32;
+  public static final int SPEED = 0;
+  public static final int LANES = 4;
+  public static final int DELAY = 8;
+  public static final int LENGTH = 16;
+  public static final int VEHICLE_COUNT = 24;
+  private static final int INITIAL_CAPACITY = 1024;
+  private ByteBuffer buffer;
+  private int size;
+
+  public BufferEdgeStore()
+  {
+    buffer = allocateBuffer(INITIAL_CAPACITY, ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Creates a store over existing records.
+   *
+   * @param buffer the buffer that contains the records, not copied. If it
+   * is read only, it is copied to a direct buffer when a record is changed.
+   * @param size the number of records in buffer
+   */
+  public BufferEdgeStore(ByteBuffer buffer, int size)
+  {
+    this.buffer = buffer;
+    this.size = size;
+  }
+
+  @Override
+  protected int allocateNew()
+  {
+    if ((size + 1) * RECORD_SIZE > buffer.capacity())
+    {
+      ByteBuffer newBuffer =
+        allocateBuffer(Math.max(2 * size, INITIAL_CAPACITY), buffer.order());
+      buffer.clear();
+      newBuffer.put(buffer);
+      newBuffer.clear();
+      buffer = newBuffer;
+    }
+    return size++;
+  }
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public int getSpeed(int id)
+  {
+    return buffer.getInt(id * RECORD_SIZE + SPEED);
+  }
+
+  @Override
+  public void setSpeed(int id, int value)
+  {
+    writableBuffer().putInt(id * RECORD_SIZE + SPEED, value);
+  }
+
+  @Override
+  public int getLanes(int id)
+  {
+    return buffer.getInt(id * RECORD_SIZE + LANES);
+  }
+
+  @Override
+  public void setLanes(int id, int value)
+  {
+    writableBuffer().putInt(id * RECORD_SIZE + LANES, value);
+  }
+
+  @Override
+  public double getDelay(int id)
+  {
+    return buffer.getDouble(id * RECORD_SIZE + DELAY);
+  }
+
+  @Override
+  public void setDelay(int id, double value)
+  {
+    writableBuffer().putDouble(id * RECORD_SIZE + DELAY, value);
+  }
+
+  @Override
+  public int getVehicleCount(int id)
+  {
+    return buffer.getInt(id * RECORD_SIZE + VEHICLE_COUNT);
+  }
+
+  @Override
+  public void setVehicleCount(int id, int value)
+  {
+    writableBuffer().putInt(id * RECORD_SIZE + VEHICLE_COUNT, value);
+  }
+
+  @Override
+  public void addVehicleCount(int id, int value)
+  {
+    int index = id * RECORD_SIZE + VEHICLE_COUNT;
+    writableBuffer().putInt(index, buffer.getInt(index) + value);
+  }
+
+  @Override
+  public double getLength(int id)
+  {
+    return buffer.getDouble(id * RECORD_SIZE + LENGTH);
+  }
+
+  @Override
+  public void setLength(int id, double value)
+  {
+    writableBuffer().putDouble(id * RECORD_SIZE + LENGTH, value);
+  }
+
+  @Override
+  public void resetVehicleCounts()
+  {
+    writableBuffer();
+    for (int id = 0; id < size; id++)
+    {
+      buffer.putInt(id * RECORD_SIZE + VEHICLE_COUNT, 0);
+    }
+  }
+
+  @Override
+  public long getMemoryUsage()
+  {
+    return buffer.capacity();
+  }
+
+  @Override
+  public boolean isOffHeap()
+  {
+    return true;
+  }
+
+  /**
+   * @return the buffer of the records, copied first if it was read only
+   */
+  private ByteBuffer writableBuffer()
+  {
+    if (buffer.isReadOnly())
+    {
+      ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.capacity()).
+        order(buffer.order());
+      buffer.clear();
+      newBuffer.put(buffer);
+      newBuffer.clear();
+      buffer = newBuffer;
+    }
+    return buffer;
+  }
+
+  private static ByteBuffer allocateBuffer(int capacity, ByteOrder order)
+  {
+    return ByteBuffer.allocateDirect(capacity * RECORD_SIZE).order(order);
+  }
+}
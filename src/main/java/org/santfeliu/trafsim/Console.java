@@ -187,6 +187,7 @@ public class Console extends javax.swing.JFrame
       engine.put("mapViewer", trafficSimulator.getMapViewer());
       engine.put("selection", trafficSimulator.getMapViewer().getSelection());
       engine.put("simulation", trafficSimulator.getSimulation());
+      engine.eval("var Finder = Java.type('" + Finder.class.getName() + "');");
       Object result = engine.eval(code);
       outputTextArea.setForeground(Color.DARK_GRAY);
       outputTextArea.setText(String.valueOf(result));
@@ -251,6 +252,10 @@ public class Console extends javax.swing.JFrame
     {"Process vehicle groups", "process_vehicles.js"},
     {"Select edges by speed", "edges_by_speed.js"},
     {"Total edge distance", "total_edge_distance.js"},
+    {"Nearest locations", "nearest_locations.js"},
+    {"Edges within radius", "edges_within_radius.js"},
+    {"Memory usage", "memory_usage.js"},
+    {"Bulk edit", "bulk_edit.js"},
   };
 
   private void initTemplates()
@@ -30,9 +30,9 @@
  */
 package org.santfeliu.trafsim;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 import org.santfeliu.trafsim.Group.Journey;
+import org.santfeliu.trafsim.Vehicles.VehicleGroup;
 
 /**
  *
@@ -40,31 +40,101 @@ import org.santfeliu.trafsim.Group.Journey;
  */
 public class Distributor
 {
+  private final HashMap<Group, JourneyTable> journeyTables =
+    new HashMap<Group, JourneyTable>();
+
   public Movements getMovements(int vehicleCount, Group group)
   {
-    List<Movement> movementList = new ArrayList<Movement>();
+    int size = group.getJourneys().size();
+    String[] locationNames = new String[size];
+    double[] factors = new double[size];
+    int i = 0;
+    for (Journey journey : group.getJourneys())
+    {
+      locationNames[i] = journey.getLocationName();
+      factors[i] = journey.getFactor();
+      i++;
+    }
+    int[] journeyCounts = distribute(vehicleCount, factors);
+
+    Movements movements = new Movements();
+    for (i = 0; i < size; i++)
+    {
+      if (journeyCounts[i] > 0)
+      {
+        movements.put(locationNames[i], journeyCounts[i]);
+      }
+    }
+    return movements;
+  }
+
+  /**
+   * Distributes the vehicles of vehicleGroup among the locations of group
+   * and assigns the resulting movements to it.
+   *
+   * @param vehicleGroup the vehicle group
+   * @param group the group that defines the journey factors
+   */
+  public void distribute(VehicleGroup vehicleGroup, Group group)
+  {
+    JourneyTable table = getJourneyTable(vehicleGroup, group);
+    int[] journeyCounts =
+      distribute(vehicleGroup.getCount(), table.factors);
+
+    // remove movements with no vehicles (journeyCount == 0)
+    int size = 0;
+    for (int i = 0; i < journeyCounts.length; i++)
+    {
+      if (journeyCounts[i] > 0) size++;
+    }
+    int[] locationIds = new int[size];
+    int[] counts = new int[size];
+    int j = 0;
+    for (int i = 0; i < journeyCounts.length; i++)
+    {
+      if (journeyCounts[i] > 0)
+      {
+        locationIds[j] = table.locationIds[i];
+        counts[j] = journeyCounts[i];
+        j++;
+      }
+    }
+    vehicleGroup.setMovements(locationIds, counts);
+  }
+
+  /**
+   * Splits vehicleCount proportionally to factors. The vehicles that remain
+   * unassigned after rounding down are assigned randomly according to the
+   * fractional parts.
+   *
+   * @param vehicleCount the number of vehicles to distribute
+   * @param factors the relative weight of each destination
+   * @return the number of vehicles assigned to each destination
+   */
+  int[] distribute(int vehicleCount, double[] factors)
+  {
+    int size = factors.length;
+    int[] journeyCounts = new int[size];
+    double[] remainders = new double[size];
 
     // sum all factors
     double total = 0.0;
-    for (Journey journey : group.getJourneys())
+    for (int i = 0; i < size; i++)
     {
-      total += journey.getFactor();
+      total += factors[i];
     }
 
     // assign vehicles to each location
     int assigned = 0;
-    for (Journey journey : group.getJourneys())
+    for (int i = 0; i < size; i++)
     {
-      double factor = journey.getFactor() / total;
+      double factor = factors[i] / total;
       if (factor > 0)
       {
         double realJourneyCount = vehicleCount * factor;
-        Movement movement = new Movement();
-        movement.locationName = journey.getLocationName();
-        movement.journeyCount = (int)Math.floor(realJourneyCount);
-        movement.remainder = realJourneyCount - movement.journeyCount;
-        assigned += movement.journeyCount;
-        movementList.add(movement);
+        journeyCounts[i] = (int)Math.floor(realJourneyCount);
+        remainders[i] = realJourneyCount - journeyCounts[i];
+        assigned += journeyCounts[i];
       }
     }
     // assign unassigned vehicles to locations randomly
@@ -74,43 +144,50 @@ public class Distributor
     {
       double r = Math.random() * remainder;
       double accum = 0;
-      for (int j = 0; j < movementList.size(); j++)
+      for (int j = 0; j < size; j++)
       {
-        Movement movement = movementList.get(j);
-        if (r >= accum && r < accum + movement.remainder)
+        if (r >= accum && r < accum + remainders[j])
         {
-          remainder -= movement.remainder;
-          movement.journeyCount++;
-          movement.remainder = 0;
+          remainder -= remainders[j];
+          journeyCounts[j]++;
+          remainders[j] = 0;
           break;
         }
-        accum += movement.remainder;
+        accum += remainders[j];
       }
     }
+    return journeyCounts;
+  }
 
-    // remove movements with no vehicles (journeyCount == 0)
-    movementList.removeIf((e) -> e.journeyCount == 0);
-
-    Movements movements = new Movements();
-    for (Movement movement : movementList)
+  private JourneyTable getJourneyTable(VehicleGroup vehicleGroup,
+    Group group)
+  {
+    JourneyTable table = journeyTables.get(group);
+    if (table == null)
     {
-      movements.put(movement.locationName, movement.journeyCount);
+      Locations locations =
+        ((Vehicles)vehicleGroup.getLayer()).getLocations();
+      int size = group.getJourneys().size();
+      table = new JourneyTable();
+      table.locationIds = new int[size];
+      table.factors = new double[size];
+      int i = 0;
+      for (Journey journey : group.getJourneys())
+      {
+        table.locationIds[i] =
+          locations.getLocationId(journey.getLocationName());
+        table.factors[i] = journey.getFactor();
+        i++;
+      }
+      journeyTables.put(group, table);
     }
-
-    return movements;
+    return table;
   }
 
-  private class Movement
+  private class JourneyTable
   {
-    private String locationName;
-    private int journeyCount;
-    private double remainder;
-
-    @Override
-    public String toString()
-    {
-      return locationName + ": " + journeyCount;
-    }
+    private int[] locationIds;
+    private double[] factors;
   }
 
   public static void main(String[] args)
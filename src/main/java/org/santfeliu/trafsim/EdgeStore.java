@@ -0,0 +1,123 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage of the attributes of the edges of a RoadGraph, indexed
+ * by edge id.
+ *
+ * @author realor
+ */
+public abstract class EdgeStore
+{
+  // ids released by the removed edges, reused by allocate
+  private int[] freeIds = new int[16];
+  private int freeIdCount;
+
+  /**
+   * Allocates an edge id. The ids released are reused first.
+   *
+   * @return the edge id
+   */
+  public int allocate()
+  {
+    if (freeIdCount > 0) return freeIds[--freeIdCount];
+    return allocateNew();
+  }
+
+  /**
+   * Releases the id of an edge removed from the graph, so that it can be
+   * allocated again. The edge keeps its attributes until it is added
+   * again, with a new id.
+   *
+   * @param id the edge id
+   */
+  public void release(int id)
+  {
+    if (freeIdCount == freeIds.length)
+    {
+      freeIds = Arrays.copyOf(freeIds, 2 * freeIdCount);
+    }
+    freeIds[freeIdCount++] = id;
+  }
+
+  /**
+   * Allocates an id greater than all the ids allocated.
+   *
+   * @return the new edge id
+   */
+  protected abstract int allocateNew();
+
+  /**
+   * @return the number of edge ids allocated, including the ids released,
+   * all ids are lower than it
+   */
+  public abstract int size();
+
+  public abstract int getSpeed(int id);
+
+  public abstract void setSpeed(int id, int value);
+
+  public abstract int getLanes(int id);
+
+  public abstract void setLanes(int id, int value);
+
+  public abstract double getDelay(int id);
+
+  public abstract void setDelay(int id, double value);
+
+  public abstract int getVehicleCount(int id);
+
+  public abstract void setVehicleCount(int id, int value);
+
+  public abstract void addVehicleCount(int id, int value);
+
+  public abstract double getLength(int id);
+
+  public abstract void setLength(int id, double value);
+
+  public abstract void resetVehicleCounts();
+
+  /**
+   * @return the approximate number of bytes used by this store
+   */
+  public abstract long getMemoryUsage();
+
+  /**
+   * @return true if the attributes are stored outside the java heap
+   */
+  public boolean isOffHeap()
+  {
+    return false;
+  }
+}
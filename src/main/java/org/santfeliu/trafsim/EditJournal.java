@@ -0,0 +1,948 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.GenericLayer.GenericFeature;
+import org.santfeliu.trafsim.Locations.Location;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.Vehicles.VehicleGroup;
+import org.santfeliu.trafsim.geom.Geometry;
+import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.PackedGeometry;
+import org.santfeliu.trafsim.geom.Point;
+import org.santfeliu.trafsim.geom.Polygon;
+
+/**
+ * Append-only journal of the edits made to a simulation since it was last
+ * saved to its base file. It is kept in a sidecar file (base file name +
+ * EXTENSION) and replayed on top of the base file when it is opened again
+ * after a crash.
+ *
+ * Each edit appends one record with the state of the features it changed,
+ * each identified by the layer index and an id. The features of the base
+ * file get its position in the file as id and new features get the
+ * following ids. A record is framed by its length and CRC, so a record
+ * partially written when the process died is discarded.
+ *
+ * While the simulation is being saved, the records are still appended to
+ * the journal of the previous base file, and the features they change are
+ * remembered. Once the new base file is written, a new journal with the
+ * current state of those features is written next to it, and replaces the
+ * previous journal when the new base file is in place (see replaceBase).
+ *
+ * When the journal grows too much, the simulation is written to a
+ * checkpoint file next to the journal (base file name +
+ * CHECKPOINT_EXTENSION), and the journal starts again from it, without
+ * changing the base file. The simulation is then recovered from the
+ * checkpoint (see getRecoveryFile).
+ *
+ * The journal is forced to disk at most every syncInterval milliseconds.
+ *
+ * @author realor
+ */
+public class EditJournal
+{
+  public static final String EXTENSION = ".journal";
+  // the checkpoint is a binary simulation file
+  public static final String CHECKPOINT_EXTENSION = ".checkpoint.tfb";
+  public static final String SYNC_INTERVAL_PROPERTY =
+    "trafsim.journal.syncInterval";
+  public static final String COMPACTION_SIZE_PROPERTY =
+    "trafsim.journal.compactionSize";
+
+  private static final int MAGIC = 0x54464a31; // TFJ1
+  private static final int HEADER_SIZE = 24;
+  private static final int BASE_FILE = 0;
+  private static final int CHECKPOINT = 1;
+  private static final int FRAME_SIZE = 8;
+  private static final int PUT = 1;
+  private static final int REMOVE = 2;
+  private static final int POINT = 1;
+  private static final int LINE_STRING = 2;
+  private static final int POLYGON = 3;
+
+  private static final AtomicInteger generations = new AtomicInteger();
+  private static ScheduledExecutorService syncExecutor;
+
+  private final Simulation simulation;
+  private File baseFile;
+  private File journalFile;
+  private File pendingFile;
+  private File checkpointFile;
+  private FileChannel channel;
+  private int generation;
+  private int[] nextIds = new int[4];
+  // layers whose features were stored in tiles when the ids were assigned
+  private boolean[] tiledLayers = new boolean[0];
+  // the features of each layer when the simulation was copied to be saved,
+  // null for the layers stored in tiles, and the features changed since
+  private Feature[][] savedFeatures;
+  private int[] savedCounts;
+  private Set<Feature> changedFeatures;
+  private int syncInterval = Integer.getInteger(SYNC_INTERVAL_PROPERTY, 1000);
+  private long compactionSize =
+    Long.getLong(COMPACTION_SIZE_PROPERTY, 16 * 1024 * 1024);
+  private long lastSync;
+  private boolean syncScheduled;
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private final DataOutputStream out = new DataOutputStream(bytes);
+  private final ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * @param simulation the simulation whose edits are recorded
+   * @param baseFile the file the simulation is saved to
+   */
+  public EditJournal(Simulation simulation, File baseFile)
+  {
+    this.simulation = simulation;
+    setBaseFile(baseFile);
+  }
+
+  public synchronized File getBaseFile()
+  {
+    return baseFile;
+  }
+
+  public synchronized File getFile()
+  {
+    return journalFile;
+  }
+
+  public synchronized File getCheckpointFile()
+  {
+    return checkpointFile;
+  }
+
+  /**
+   * Gets the file a simulation saved to baseFile has to be read from to
+   * recover its journal: the checkpoint of the journal, if it was
+   * compacted, or baseFile otherwise.
+   *
+   * @param baseFile the file the simulation was saved to
+   * @return the file to read the simulation from before calling recover
+   * @throws IOException if the journal can not be read
+   */
+  public static File getRecoveryFile(File baseFile) throws IOException
+  {
+    File journalFile = new File(baseFile.getPath() + EXTENSION);
+    File pendingFile = new File(journalFile.getPath() + ".new");
+    int kind = getBaseKind(journalFile, baseFile);
+    if (kind == -1) kind = getBaseKind(pendingFile, baseFile);
+    return kind == CHECKPOINT ?
+      new File(baseFile.getPath() + CHECKPOINT_EXTENSION) : baseFile;
+  }
+
+  /**
+   * @return true if the records are being appended to the journal file,
+   * false if the journal has not been created yet or has been stopped by
+   * an error
+   */
+  public synchronized boolean isOpen()
+  {
+    return channel != null;
+  }
+
+  public int getSyncInterval()
+  {
+    return syncInterval;
+  }
+
+  /**
+   * @param syncInterval the maximum time in milliseconds that an appended
+   * record can wait to be forced to disk, 0 to force every record
+   */
+  public void setSyncInterval(int syncInterval)
+  {
+    this.syncInterval = syncInterval;
+  }
+
+  public long getCompactionSize()
+  {
+    return compactionSize;
+  }
+
+  /**
+   * @param compactionSize the journal size in bytes above which the
+   * simulation should be written to the checkpoint file
+   */
+  public void setCompactionSize(long compactionSize)
+  {
+    this.compactionSize = compactionSize;
+  }
+
+  public synchronized boolean isCompactionNeeded() throws IOException
+  {
+    return size() > compactionSize;
+  }
+
+  /**
+   * @return the size in bytes of the journal
+   */
+  public synchronized long size() throws IOException
+  {
+    return channel == null ? 0 : channel.size();
+  }
+
+  /**
+   * Opens the journal of the file the simulation was just read from, as
+   * given by getRecoveryFile. If the journal belongs to that version of the
+   * file, its records are replayed on the simulation and new records are
+   * appended to it. Otherwise a new journal is started. The journal may
+   * still be in the pending file, if a save was interrupted after replacing
+   * the base file.
+   *
+   * @return the number of records replayed
+   * @throws IOException if the journal can not be written
+   */
+  public synchronized int recover() throws IOException
+  {
+    saveFeatures();
+    assignIds();
+    int records = 0;
+    int kind = getBaseKind(journalFile, baseFile);
+    if (kind == -1)
+    {
+      kind = getBaseKind(pendingFile, baseFile);
+      if (kind != -1) move(pendingFile, journalFile);
+    }
+    if (kind != -1)
+    {
+      channel = FileChannel.open(journalFile.toPath(),
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+      records = replay();
+    }
+    else
+    {
+      channel = FileChannel.open(journalFile.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+      writeHeader(BASE_FILE, baseFile.length(), baseFile.lastModified());
+      channel.force(true);
+    }
+    Files.deleteIfExists(pendingFile.toPath());
+    if (kind != CHECKPOINT)
+    {
+      Files.deleteIfExists(checkpointFile.toPath());
+    }
+    return records;
+  }
+
+  /**
+   * Remembers the features of the simulation when it is copied to be
+   * saved, as they will be the features of the new base file. The records
+   * are still appended to the current journal until replaceBase is called.
+   */
+  public synchronized void start()
+  {
+    saveFeatures();
+    changedFeatures = new LinkedHashSet<Feature>();
+  }
+
+  /**
+   * Moves tempFile, where the copy of the simulation taken by start has
+   * been written, over file, that becomes the base file of this journal.
+   * The records of the features changed since start are written first to
+   * the pending file, bound to tempFile, which then replaces the previous
+   * journal. If the process dies in between, the pending file is the
+   * journal of the new base file (see recover).
+   *
+   * If the journal can not be written, the base file is not replaced and
+   * no more records are appended. The previous journal is kept.
+   *
+   * When file is the checkpoint file, the journal starts again from the
+   * checkpoint and the base file is not changed. Otherwise, the previous
+   * checkpoint is no longer used, and can be deleted once nothing reads
+   * from it.
+   *
+   * @param tempFile the file just written
+   * @param file the new base file, it may be another file, or the
+   * checkpoint file
+   * @throws IOException if the files can not be written
+   */
+  public synchronized void replaceBase(File tempFile, File file)
+    throws IOException
+  {
+    int kind = BASE_FILE;
+    if (file.equals(checkpointFile))
+    {
+      kind = CHECKPOINT;
+      file = baseFile;
+    }
+    File newJournalFile = new File(file.getPath() + EXTENSION);
+    File newPendingFile = new File(newJournalFile.getPath() + ".new");
+    Collection<Feature> changed = changedFeatures;
+    changedFeatures = null;
+    assignIds();
+    closeChannel();
+    channel = FileChannel.open(newPendingFile.toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    try
+    {
+      writeHeader(kind, tempFile.length(), tempFile.lastModified());
+      record(changed);
+      closeChannel();
+      move(tempFile, kind == CHECKPOINT ? checkpointFile : file);
+    }
+    catch (IOException ex)
+    {
+      closeChannel();
+      Files.deleteIfExists(newPendingFile.toPath());
+      throw ex;
+    }
+    move(newPendingFile, newJournalFile);
+    if (!newJournalFile.equals(journalFile))
+    {
+      Files.deleteIfExists(journalFile.toPath());
+    }
+    setBaseFile(file);
+    channel = FileChannel.open(journalFile.toPath(),
+      StandardOpenOption.WRITE);
+    channel.position(channel.size());
+  }
+
+  /**
+   * Forgets the copy taken by start, when the base file could not be
+   * saved. The records are still appended to the current journal.
+   */
+  public synchronized void abort()
+  {
+    savedFeatures = null;
+    savedCounts = null;
+    changedFeatures = null;
+  }
+
+  /**
+   * Appends a record with the current state of the given features.
+   *
+   * @param features the features changed by an edit
+   * @throws IOException if the record can not be written
+   */
+  public synchronized void record(Collection<? extends Feature> features)
+    throws IOException
+  {
+    if (changedFeatures != null) changedFeatures.addAll(features);
+    if (channel == null) return;
+
+    bytes.reset();
+    for (Feature feature : features)
+    {
+      int layerIndex = getLayerIndex(feature.getLayer());
+      if (layerIndex == -1) continue;
+
+      int id = getId(feature, layerIndex);
+      if (feature.isRemoved())
+      {
+        out.writeByte(REMOVE);
+        writeInt(layerIndex);
+        writeInt(id);
+      }
+      else
+      {
+        out.writeByte(PUT);
+        writeInt(layerIndex);
+        writeInt(id);
+        writeFeature(feature);
+      }
+    }
+    if (bytes.size() == 0) return;
+
+    byte[] record = bytes.toByteArray();
+    crc.reset();
+    crc.update(record, 0, record.length);
+    frame.clear();
+    frame.putInt(record.length);
+    frame.putInt((int)crc.getValue());
+    frame.flip();
+    ByteBuffer payload = ByteBuffer.wrap(record);
+    while (frame.hasRemaining() || payload.hasRemaining())
+    {
+      channel.write(new ByteBuffer[]{ frame, payload });
+    }
+    sync();
+  }
+
+  /**
+   * Forces the pending records to disk and closes the journal file.
+   */
+  public synchronized void close() throws IOException
+  {
+    closeChannel();
+  }
+
+  /**
+   * Closes and deletes the journal and its checkpoint, when the changes are
+   * discarded.
+   */
+  public synchronized void delete() throws IOException
+  {
+    closeChannel();
+    Files.deleteIfExists(journalFile.toPath());
+    Files.deleteIfExists(pendingFile.toPath());
+    Files.deleteIfExists(checkpointFile.toPath());
+  }
+
+  /* internal methods */
+
+  private void setBaseFile(File baseFile)
+  {
+    this.baseFile = baseFile;
+    this.journalFile = new File(baseFile.getPath() + EXTENSION);
+    this.pendingFile = new File(journalFile.getPath() + ".new");
+    this.checkpointFile = new File(baseFile.getPath() + CHECKPOINT_EXTENSION);
+  }
+
+  private static void move(File source, File target) throws IOException
+  {
+    try
+    {
+      Files.move(source.toPath(), target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException ex)
+    {
+      Files.move(source.toPath(), target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void closeChannel() throws IOException
+  {
+    if (channel != null)
+    {
+      try
+      {
+        channel.force(false);
+      }
+      finally
+      {
+        channel.close();
+        channel = null;
+      }
+    }
+  }
+
+  private void sync() throws IOException
+  {
+    long now = System.currentTimeMillis();
+    if (now - lastSync >= syncInterval)
+    {
+      channel.force(false);
+      lastSync = now;
+    }
+    else if (!syncScheduled)
+    {
+      syncScheduled = true;
+      getSyncExecutor().schedule(this::scheduledSync,
+        lastSync + syncInterval - now, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized void scheduledSync()
+  {
+    syncScheduled = false;
+    try
+    {
+      if (channel != null)
+      {
+        channel.force(false);
+        lastSync = System.currentTimeMillis();
+      }
+    }
+    catch (IOException ex)
+    {
+      // the next record will try again
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getSyncExecutor()
+  {
+    if (syncExecutor == null)
+    {
+      syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable ->
+      {
+        Thread thread = new Thread(runnable, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return syncExecutor;
+  }
+
+  private void writeHeader(int kind, long baseLength, long baseModified)
+    throws IOException
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC);
+    header.putInt(kind);
+    header.putLong(baseLength);
+    header.putLong(baseModified);
+    header.flip();
+    long position = 0;
+    while (header.hasRemaining())
+    {
+      position += channel.write(header, position);
+    }
+    if (channel.position() < HEADER_SIZE) channel.position(HEADER_SIZE);
+  }
+
+  /**
+   * @return BASE_FILE or CHECKPOINT if file is a journal of the current
+   * version of baseFile or of its checkpoint, respectively, -1 otherwise
+   */
+  private static int getBaseKind(File file, File baseFile) throws IOException
+  {
+    if (!file.isFile()) return -1;
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    try (FileChannel fileChannel =
+      FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      while (header.hasRemaining())
+      {
+        if (fileChannel.read(header, header.position()) < 0) return -1;
+      }
+    }
+    header.flip();
+    if (header.getInt() != MAGIC) return -1;
+    int kind = header.getInt();
+    File base;
+    if (kind == BASE_FILE) base = baseFile;
+    else if (kind == CHECKPOINT)
+      base = new File(baseFile.getPath() + CHECKPOINT_EXTENSION);
+    else return -1;
+    return header.getLong() == base.length() &&
+      header.getLong() == base.lastModified() ? kind : -1;
+  }
+
+  /**
+   * Takes the features of each layer of the simulation, in the order they
+   * are written to the base file. The features of the layers stored in
+   * tiles are not loaded, only counted.
+   */
+  private void saveFeatures()
+  {
+    int layerCount = simulation.getLayerCount();
+    savedFeatures = new Feature[layerCount][];
+    savedCounts = new int[layerCount];
+    for (int i = 0; i < layerCount; i++)
+    {
+      Layer layer = simulation.getLayer(i);
+      if (layer instanceof GenericLayer && !((GenericLayer)layer).isLoaded())
+      {
+        savedCounts[i] = ((GenericLayer)layer).getFeatureCount();
+      }
+      else
+      {
+        Collection<?> features = layer.getFeatures();
+        savedFeatures[i] = features.toArray(new Feature[features.size()]);
+        savedCounts[i] = features.size();
+      }
+    }
+  }
+
+  /**
+   * Gives to the features taken by saveFeatures their position in the
+   * layer as id, as they will be read from the base file. Features with ids
+   * of a previous generation get a new id when they are recorded. The
+   * features of the layers stored in tiles get their position in the tiles
+   * as id when they are recorded.
+   */
+  private void assignIds()
+  {
+    generation = generations.incrementAndGet();
+    int layerCount = savedFeatures.length;
+    nextIds = Arrays.copyOf(savedCounts, Math.max(layerCount, 4));
+    tiledLayers = new boolean[layerCount];
+    for (int i = 0; i < layerCount; i++)
+    {
+      Feature[] features = savedFeatures[i];
+      if (features == null)
+      {
+        tiledLayers[i] = true;
+        continue;
+      }
+      for (int id = 0; id < features.length; id++)
+      {
+        features[id].journalKey = getKey(id);
+      }
+    }
+    savedFeatures = null;
+    savedCounts = null;
+  }
+
+  private long getKey(int id)
+  {
+    return ((long)generation << 32) | id;
+  }
+
+  private int getId(Feature feature, int layerIndex)
+  {
+    if ((int)(feature.journalKey >>> 32) != generation)
+    {
+      if (layerIndex < tiledLayers.length && tiledLayers[layerIndex] &&
+        ((GenericFeature)feature).storedIndex >= 0)
+      {
+        feature.journalKey = getKey(((GenericFeature)feature).storedIndex);
+        return (int)feature.journalKey;
+      }
+      if (layerIndex >= nextIds.length)
+      {
+        nextIds = Arrays.copyOf(nextIds, layerIndex + 1);
+      }
+      feature.journalKey = getKey(nextIds[layerIndex]++);
+    }
+    return (int)feature.journalKey;
+  }
+
+  private int getLayerIndex(Layer layer)
+  {
+    for (int i = 0; i < simulation.getLayerCount(); i++)
+    {
+      if (simulation.getLayer(i) == layer) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Replays the valid records and truncates the journal after them.
+   */
+  private int replay() throws IOException
+  {
+    List<List<Feature>> featuresById = new ArrayList<List<Feature>>();
+    for (int i = 0; i < simulation.getLayerCount(); i++)
+    {
+      // the layers stored in tiles are loaded when a record refers to them
+      featuresById.add(tiledLayers[i] ? null : new ArrayList<Feature>(
+        (Collection<Feature>)simulation.getLayer(i).getFeatures()));
+    }
+
+    int records = 0;
+    long position = HEADER_SIZE;
+    long size = channel.size();
+    simulation.begin();
+    try
+    {
+      while (position + FRAME_SIZE <= size)
+      {
+        frame.clear();
+        while (frame.hasRemaining())
+        {
+          channel.read(frame, position + frame.position());
+        }
+        frame.flip();
+        int length = frame.getInt();
+        int checksum = frame.getInt();
+        if (length <= 0 || position + FRAME_SIZE + length > size) break;
+
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        while (payload.hasRemaining())
+        {
+          channel.read(payload, position + FRAME_SIZE + payload.position());
+        }
+        crc.reset();
+        crc.update(payload.array(), 0, length);
+        if ((int)crc.getValue() != checksum) break;
+
+        applyRecord(payload.array(), featuresById);
+        position += FRAME_SIZE + length;
+        records++;
+      }
+    }
+    finally
+    {
+      simulation.commit();
+    }
+    channel.truncate(position);
+    channel.position(position);
+
+    for (int i = 0; i < featuresById.size(); i++)
+    {
+      if (featuresById.get(i) != null)
+      {
+        nextIds[i] = featuresById.get(i).size();
+      }
+    }
+    return records;
+  }
+
+  private void applyRecord(byte[] record, List<List<Feature>> featuresById)
+    throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    while (in.available() > 0)
+    {
+      int operation = in.readByte();
+      int layerIndex = readInt(in);
+      int id = readInt(in);
+      if (layerIndex >= featuresById.size())
+        throw new IOException("Invalid journal layer: " + layerIndex);
+
+      List<Feature> features = featuresById.get(layerIndex);
+      if (features == null)
+      {
+        features = new ArrayList<Feature>(
+          (Collection<Feature>)simulation.getLayer(layerIndex).getFeatures());
+        featuresById.set(layerIndex, features);
+      }
+      Feature feature = id < features.size() ? features.get(id) : null;
+      if (operation == REMOVE)
+      {
+        if (feature != null) feature.remove();
+      }
+      else if (operation == PUT)
+      {
+        feature = readFeature(in, simulation.getLayer(layerIndex), feature);
+        feature.journalKey = getKey(id);
+        while (features.size() <= id) features.add(null);
+        features.set(id, feature);
+        feature.add();
+      }
+      else throw new IOException("Invalid journal operation: " + operation);
+    }
+  }
+
+  private void writeFeature(Feature feature) throws IOException
+  {
+    writeGeometry(feature.getGeometry());
+    if (feature instanceof Edge)
+    {
+      Edge edge = (Edge)feature;
+      writeInt(edge.getSpeed());
+      writeInt(edge.getLanes());
+      out.writeDouble(edge.getDelay());
+    }
+    else if (feature instanceof Location)
+    {
+      Location location = (Location)feature;
+      writeString(location.getName());
+      writeString(location.getLabel());
+      out.writeBoolean(location.isOrigin());
+    }
+    else if (feature instanceof VehicleGroup)
+    {
+      VehicleGroup vehicleGroup = (VehicleGroup)feature;
+      writeInt(vehicleGroup.getCount());
+      writeString(vehicleGroup.getGroup());
+      Movements movements = vehicleGroup.getMovements();
+      writeInt(movements == null ? 0 : movements.size() + 1);
+      if (movements != null)
+      {
+        for (Map.Entry<String, Integer> entry : movements.entrySet())
+        {
+          out.writeUTF(entry.getKey());
+          writeInt(entry.getValue());
+        }
+      }
+    }
+  }
+
+  private Feature readFeature(DataInputStream in, Layer layer,
+    Feature feature) throws IOException
+  {
+    Geometry geometry = readGeometry(in);
+    if (layer instanceof RoadGraph)
+    {
+      int speed = readInt(in);
+      int lanes = readInt(in);
+      double delay = in.readDouble();
+      if (feature == null)
+      {
+        return ((RoadGraph)layer).newEdge((LineString)geometry, speed, lanes,
+          delay);
+      }
+      Edge edge = (Edge)feature;
+      edge.setGeometry(geometry);
+      edge.setSpeed(speed);
+      edge.setLanes(lanes);
+      edge.setDelay(delay);
+      return edge;
+    }
+    else if (layer instanceof Locations)
+    {
+      String name = readString(in);
+      String label = readString(in);
+      boolean origin = in.readBoolean();
+      if (feature == null)
+      {
+        return ((Locations)layer).newLocation(name, label, (Point)geometry,
+          origin);
+      }
+      Location location = (Location)feature;
+      location.setGeometry(geometry);
+      location.setName(name);
+      location.setLabel(label);
+      location.setOrigin(origin);
+      return location;
+    }
+    else if (layer instanceof Vehicles)
+    {
+      int count = readInt(in);
+      String group = readString(in);
+      Movements movements = null;
+      int movementCount = readInt(in) - 1;
+      if (movementCount >= 0)
+      {
+        movements = new Movements();
+        for (int i = 0; i < movementCount; i++)
+        {
+          movements.put(in.readUTF(), readInt(in));
+        }
+      }
+      if (feature == null)
+      {
+        return ((Vehicles)layer).newVehicleGroup((Point)geometry, count,
+          group, movements);
+      }
+      VehicleGroup vehicleGroup = (VehicleGroup)feature;
+      vehicleGroup.setGeometry(geometry);
+      vehicleGroup.setCount(count);
+      vehicleGroup.setGroup(group);
+      vehicleGroup.setMovements(movements);
+      return vehicleGroup;
+    }
+    else
+    {
+      if (feature == null)
+      {
+        return ((GenericLayer)layer).newFeature(geometry);
+      }
+      feature.setGeometry(geometry);
+      return feature;
+    }
+  }
+
+  private void writeGeometry(Geometry geometry) throws IOException
+  {
+    if (geometry instanceof Point)
+    {
+      out.writeByte(POINT);
+      writePoint(((Point)geometry).getPosition());
+    }
+    else
+    {
+      out.writeByte(geometry instanceof Polygon ? POLYGON : LINE_STRING);
+      PackedGeometry packed = (PackedGeometry)geometry;
+      int count = packed.getVertexCount();
+      writeInt(count);
+      Point3d vertex = new Point3d();
+      for (int i = 0; i < count; i++)
+      {
+        writePoint(packed.getVertex(i, vertex));
+      }
+    }
+  }
+
+  private Geometry readGeometry(DataInputStream in) throws IOException
+  {
+    int type = in.readByte();
+    if (type == POINT)
+    {
+      return new Point(new Point3d(in.readDouble(), in.readDouble(),
+        in.readDouble()));
+    }
+    double[] coordinates = new double[3 * readInt(in)];
+    for (int i = 0; i < coordinates.length; i++)
+    {
+      coordinates[i] = in.readDouble();
+    }
+    if (type == POLYGON) return new Polygon(coordinates);
+    return new LineString(coordinates);
+  }
+
+  private void writePoint(Point3d point) throws IOException
+  {
+    out.writeDouble(point.x);
+    out.writeDouble(point.y);
+    out.writeDouble(point.z);
+  }
+
+  private void writeString(String value) throws IOException
+  {
+    out.writeBoolean(value != null);
+    if (value != null) out.writeUTF(value);
+  }
+
+  private static String readString(DataInputStream in) throws IOException
+  {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private void writeInt(int value) throws IOException
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readInt(DataInputStream in) throws IOException
+  {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do
+    {
+      b = in.readByte();
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.Arrays;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.RoadGraph.Node;
+import org.santfeliu.trafsim.geom.LineString;
+
+/**
+ * Merges the endpoints of the edges imported into a road graph that are
+ * closer than a tolerance, so that they are linked to the same node.
+ *
+ * Endpoints are clustered in a single pass: each endpoint is moved to the
+ * nearest representative point within the tolerance, or becomes a new
+ * representative if there is none. Representatives are kept in a spatial
+ * hash of cells of the size of the tolerance, so only the 3x3 cells around
+ * an endpoint are searched. The nodes of the graph are representatives
+ * from the start, so imported edges are also linked to the existing graph.
+ * Unlike RoadGraph.snapToGrid, only the endpoints that must be merged are
+ * moved.
+ *
+ * @author realor
+ */
+public class EndpointMerger
+{
+  private final double tolerance;
+  // index of the first representative of each cell
+  private final LongHashMap<Integer> cells = new LongHashMap<Integer>();
+  private double[] coordinates = new double[3 * 1024];
+  private int[] next = new int[1024]; // next representative of its cell
+  private int count;
+  private int mergedCount;
+  private int collapsedCount;
+
+  public EndpointMerger(RoadGraph roadGraph, double tolerance)
+  {
+    if (!(tolerance > 0))
+      throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+    this.tolerance = tolerance;
+    for (Node node : roadGraph.getNodes())
+    {
+      Point3d point = node.getPoint().getPosition();
+      add(point.x, point.y, point.z);
+    }
+  }
+
+  public double getTolerance()
+  {
+    return tolerance;
+  }
+
+  /**
+   * Moves the endpoints of lineString to the representatives of their
+   * clusters. An open line string that is not longer than the tolerance
+   * and whose endpoints are merged into the same point collapses, and the
+   * edge must be discarded. Closed line strings and longer line strings
+   * whose endpoints are merged are kept as loops.
+   *
+   * @param lineString the line string of an imported edge
+   * @return false if lineString collapsed or has less than 2 vertices
+   */
+  public boolean merge(LineString lineString)
+  {
+    int last = lineString.getVertexCount() - 1;
+    if (last < 1) return false;
+    boolean shortLine = !isClosed(lineString) &&
+      lineString.getLength() <= tolerance;
+    merge(lineString, 0);
+    merge(lineString, last);
+    if (shortLine && isClosed(lineString))
+    {
+      collapsedCount++;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of endpoints moved to another point
+   */
+  public int getMergedCount()
+  {
+    return mergedCount;
+  }
+
+  /**
+   * @return the number of edges discarded because they collapsed
+   */
+  public int getCollapsedCount()
+  {
+    return collapsedCount;
+  }
+
+  private void merge(LineString lineString, int index)
+  {
+    double x = lineString.getX(index);
+    double y = lineString.getY(index);
+    long cx = getCell(x);
+    long cy = getCell(y);
+    int nearest = -1;
+    double nearestDistance = tolerance * tolerance;
+    for (long i = cx - 1; i <= cx + 1; i++)
+    {
+      for (long j = cy - 1; j <= cy + 1; j++)
+      {
+        Integer head = cells.get(getKey(i, j));
+        if (head == null) continue;
+        for (int k = head; k >= 0; k = next[k])
+        {
+          double dx = coordinates[3 * k] - x;
+          double dy = coordinates[3 * k + 1] - y;
+          double distance = dx * dx + dy * dy;
+          if (distance <= nearestDistance)
+          {
+            nearest = k;
+            nearestDistance = distance;
+          }
+        }
+      }
+    }
+    if (nearest == -1)
+    {
+      add(x, y, lineString.getZ(index));
+    }
+    else if (nearestDistance > 0)
+    {
+      lineString.setVertex(index, coordinates[3 * nearest],
+        coordinates[3 * nearest + 1], coordinates[3 * nearest + 2]);
+      mergedCount++;
+    }
+  }
+
+  private boolean isClosed(LineString lineString)
+  {
+    int last = lineString.getVertexCount() - 1;
+    return lineString.getX(0) == lineString.getX(last) &&
+      lineString.getY(0) == lineString.getY(last);
+  }
+
+  private void add(double x, double y, double z)
+  {
+    if (count == next.length)
+    {
+      next = Arrays.copyOf(next, 2 * count);
+      coordinates = Arrays.copyOf(coordinates, 6 * count);
+    }
+    coordinates[3 * count] = x;
+    coordinates[3 * count + 1] = y;
+    coordinates[3 * count + 2] = z;
+    long key = getKey(getCell(x), getCell(y));
+    Integer head = cells.get(key);
+    next[count] = head == null ? -1 : head;
+    cells.put(key, count);
+    count++;
+  }
+
+  private long getCell(double value)
+  {
+    return (long)Math.floor(value / tolerance);
+  }
+
+  private static long getKey(long cx, long cy)
+  {
+    return (cx << 32) | (cy & 0xFFFFFFFFL);
+  }
+}
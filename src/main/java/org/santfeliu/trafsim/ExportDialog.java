@@ -32,9 +32,14 @@ package org.santfeliu.trafsim;
 
 import java.awt.Cursor;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import javax.swing.JFileChooser;
+import org.santfeliu.trafsim.io.BinaryResultWriter;
+import org.santfeliu.trafsim.io.Compression;
+import org.santfeliu.trafsim.io.CsvResultWriter;
 import org.santfeliu.trafsim.io.GMLWriter;
+import org.santfeliu.trafsim.io.GeoJSONWriter;
 
 /**
  *
@@ -198,10 +203,43 @@ public class ExportDialog extends javax.swing.JDialog
       setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
       String path = pathTextField.getText();
       File file = new File(path);
-      GMLWriter writer = new GMLWriter(new FileOutputStream(file));
-      writer.setLayerName(layerName);
-      writer.setSrsName(simulation.getSrsName());
-      writer.write(layer.getFeatures());
+      // only the edges and the vehicle groups have routing results
+      if (isCsvFile(file) && layer != simulation.getRoadGraph() &&
+        layer != simulation.getVehicles())
+        throw new IOException(layer.getName() +
+          " have no results to export");
+      OutputStream os = Compression.openOutput(file);
+      if (getUncompressedName(file).endsWith(BinaryResultWriter.EXTENSION))
+      {
+        BinaryResultWriter writer = new BinaryResultWriter(os);
+        writer.write(simulation.getRoadGraph().getFeatures(),
+          simulation.getVehicles().getFeatures());
+      }
+      else if (isCsvFile(file))
+      {
+        CsvResultWriter writer = new CsvResultWriter(os);
+        if (layer == simulation.getVehicles())
+        {
+          writer.writeVehicleGroups(simulation.getVehicles().getFeatures());
+        }
+        else
+        {
+          writer.writeEdges(simulation.getRoadGraph().getFeatures());
+        }
+      }
+      else if (isGeoJSONFile(file))
+      {
+        GeoJSONWriter writer = new GeoJSONWriter(os);
+        writer.setSrsName(simulation.getSrsName());
+        writer.write(layer.getFeatures());
+      }
+      else
+      {
+        GMLWriter writer = new GMLWriter(os);
+        writer.setLayerName(layerName);
+        writer.setSrsName(simulation.getSrsName());
+        writer.write(layer.getFeatures());
+      }
       setCursor(Cursor.getDefaultCursor());
       dispose();
     }
@@ -212,6 +250,28 @@ public class ExportDialog extends javax.swing.JDialog
     }
   }//GEN-LAST:event_exportButtonActionPerformed
 
+  private boolean isGeoJSONFile(File file)
+  {
+    String name = getUncompressedName(file);
+    return name.endsWith(".geojson") || name.endsWith(".json");
+  }
+
+  private boolean isCsvFile(File file)
+  {
+    return getUncompressedName(file).endsWith(".csv");
+  }
+
+  private String getUncompressedName(File file)
+  {
+    String name = file.getName();
+    if (name.endsWith(Compression.GZIP_EXTENSION))
+    {
+      name = name.substring(0,
+        name.length() - Compression.GZIP_EXTENSION.length());
+    }
+    return name;
+  }
+
   private void exploreButtonActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_exploreButtonActionPerformed
   {//GEN-HEADEREND:event_exploreButtonActionPerformed
     JFileChooser chooser = new JFileChooser();
@@ -40,6 +40,11 @@ import org.santfeliu.trafsim.geom.Geometry;
  */
 public abstract class Feature
 {
+  // position of this feature in the FeatureList of its layer, -1 if none
+  int slot = -1;
+  // id of this feature in the EditJournal that assigned it, -1 if none
+  long journalKey = -1;
+
   public abstract Layer getLayer();
 
   public abstract void add();
@@ -55,6 +60,7 @@ public abstract class Feature
   public void transform(Matrix4d matrix)
   {
     getGeometry().transform(matrix);
+    getLayer().invalidateSpatialIndex();
   }
 
   public void loadAttributes(Map attributes)
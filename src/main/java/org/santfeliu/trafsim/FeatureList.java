@@ -0,0 +1,250 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * List of the features of a layer. Each feature keeps its position in the
+ * array (its slot), so contains and remove take constant time. Removals
+ * preserve the order of the list, which is the order the features are
+ * saved, painted and exported in: a removed feature leaves a hole in the
+ * array, that the iterator skips. The holes are compacted in a single pass
+ * when they are more than the features, when the array is full, or when a
+ * feature is accessed by index.
+ *
+ * A feature can only belong to one FeatureList.
+ *
+ * @author realor
+ * @param <T> feature class
+ */
+public class FeatureList<T extends Feature> extends AbstractList<T>
+  implements RandomAccess
+{
+  private Feature[] elements = new Feature[16];
+  private int size;
+  // number of slots used, including the holes
+  private int end;
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index);
+    if (end > size) compact();
+    return (T)elements[index];
+  }
+
+  @Override
+  public Iterator<T> iterator()
+  {
+    return new Itr();
+  }
+
+  @Override
+  public boolean contains(Object o)
+  {
+    if (o instanceof Feature)
+    {
+      int slot = ((Feature)o).slot;
+      return slot >= 0 && slot < end && elements[slot] == o;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean add(T feature)
+  {
+    if (contains(feature)) return false;
+
+    if (end == elements.length && end > size) compact();
+    ensureCapacity(end + 1);
+    feature.slot = end;
+    elements[end++] = feature;
+    size++;
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o)
+  {
+    if (!contains(o)) return false;
+
+    Feature feature = (Feature)o;
+    elements[feature.slot] = null;
+    feature.slot = -1;
+    size--;
+    modCount++;
+    if (end - size > size) compact();
+    return true;
+  }
+
+  @Override
+  public T remove(int index)
+  {
+    T feature = get(index);
+    remove(feature);
+    return feature;
+  }
+
+  /**
+   * Removes the given features, compacting the list at most once.
+   *
+   * @param c the features to remove
+   * @return true if any feature was removed
+   */
+  @Override
+  public boolean removeAll(Collection<?> c)
+  {
+    int removed = 0;
+    for (Object o : c)
+    {
+      if (contains(o))
+      {
+        Feature feature = (Feature)o;
+        elements[feature.slot] = null;
+        feature.slot = -1;
+        removed++;
+      }
+    }
+    if (removed == 0) return false;
+
+    size -= removed;
+    modCount++;
+    if (end - size > size) compact();
+    return true;
+  }
+
+  @Override
+  public void clear()
+  {
+    for (int i = 0; i < end; i++)
+    {
+      if (elements[i] != null)
+      {
+        elements[i].slot = -1;
+        elements[i] = null;
+      }
+    }
+    size = 0;
+    end = 0;
+    modCount++;
+  }
+
+  public void ensureCapacity(int capacity)
+  {
+    if (capacity > elements.length)
+    {
+      int newCapacity = Math.max(capacity, elements.length * 2);
+      elements = Arrays.copyOf(elements, newCapacity);
+    }
+  }
+
+  /**
+   * Moves the features over the holes left by the removed features,
+   * keeping their order.
+   */
+  private void compact()
+  {
+    int j = 0;
+    for (int i = 0; i < end; i++)
+    {
+      Feature feature = elements[i];
+      if (feature != null)
+      {
+        feature.slot = j;
+        elements[j++] = feature;
+      }
+    }
+    Arrays.fill(elements, j, end, null);
+    end = j;
+  }
+
+  private class Itr implements Iterator<T>
+  {
+    int cursor = nextSlot(0);
+    int lastSlot = -1;
+    int expectedModCount = modCount;
+
+    @Override
+    public boolean hasNext()
+    {
+      return cursor < end;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next()
+    {
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      if (cursor >= end) throw new NoSuchElementException();
+      lastSlot = cursor;
+      cursor = nextSlot(cursor + 1);
+      return (T)elements[lastSlot];
+    }
+
+    @Override
+    public void remove()
+    {
+      if (lastSlot == -1) throw new IllegalStateException();
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      Feature feature = elements[lastSlot];
+      elements[lastSlot] = null;
+      feature.slot = -1;
+      size--;
+      modCount++;
+      expectedModCount = modCount;
+      lastSlot = -1;
+    }
+
+    private int nextSlot(int slot)
+    {
+      while (slot < end && elements[slot] == null) slot++;
+      return slot;
+    }
+  }
+}
@@ -31,12 +31,13 @@
 package org.santfeliu.trafsim;
 
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import javax.vecmath.Point3d;
-import javax.vecmath.Vector2d;
 import org.santfeliu.trafsim.geom.Geometry;
 import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.PackedGeometry;
 import org.santfeliu.trafsim.geom.Point;
 import org.santfeliu.trafsim.geom.Polygon;
 
@@ -69,16 +70,18 @@ public class Finder
       else if (geometry instanceof LineString)
       {
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
-        for (int i = 0; i < vertices.size(); i++)
+        int count = lineString.getVertexCount();
+        for (int i = 0; i < count; i++)
         {
-          Point3d point = vertices.get(i);
-          double distance = point.distance(worldPoint);
+          double dx = lineString.getX(i) - worldPoint.x;
+          double dy = lineString.getY(i) - worldPoint.y;
+          double dz = lineString.getZ(i) - worldPoint.z;
+          double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
           if (distance <= tolerance && distance < pick.distance)
           {
             pick.worldPoint = worldPoint;
             pick.feature = feature;
-            pick.onFeaturePoint.set(point);
+            lineString.getVertex(i, pick.onFeaturePoint);
             pick.distance = distance;
             pick.index = i;
           }
@@ -118,16 +121,18 @@ public class Finder
       {
         PickInfo pick = new PickInfo();
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
-        for (int i = 0; i < vertices.size(); i++)
+        int count = lineString.getVertexCount();
+        for (int i = 0; i < count; i++)
         {
-          Point3d point = vertices.get(i);
-          double distance = point.distance(worldPoint);
+          double dx = lineString.getX(i) - worldPoint.x;
+          double dy = lineString.getY(i) - worldPoint.y;
+          double dz = lineString.getZ(i) - worldPoint.z;
+          double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
           if (distance <= tolerance && distance < pick.distance)
           {
             pick.worldPoint = worldPoint;
             pick.feature = feature;
-            pick.onFeaturePoint.set(point);
+            lineString.getVertex(i, pick.onFeaturePoint);
             pick.distance = distance;
             pick.index = i;
           }
@@ -148,7 +153,6 @@ public class Finder
   public static boolean findByPoint(Collection<? extends Feature> features,
     Point3d worldPoint, double tolerance, PickInfo pick)
   {
-    Point3d onEdge = new Point3d();
     for (Feature feature : features)
     {
       Geometry geometry = feature.getGeometry();
@@ -169,18 +173,17 @@ public class Finder
       else if (geometry instanceof LineString)
       {
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
-        for (int i = 0; i < vertices.size() - 1; i++)
+        int count = lineString.getVertexCount();
+        for (int i = 0; i < count - 1; i++)
         {
-          Point3d p1 = vertices.get(i);
-          Point3d p2 = vertices.get(i + 1);
           double distance =
-            pointToSegmentDistance(worldPoint, p1, p2, onEdge);
+            pointToSegmentDistance(worldPoint, lineString, i, null);
           if (distance <= tolerance && distance < pick.distance)
           {
             pick.worldPoint = worldPoint;
             pick.feature = feature;
-            pick.onFeaturePoint.set(onEdge);
+            pointToSegmentDistance(worldPoint, lineString, i,
+              pick.onFeaturePoint);
             pick.distance = distance;
             pick.index = i;
           }
@@ -210,6 +213,92 @@ public class Finder
     return found;
   }
 
+  /**
+   * Returns the features of the given layer sorted by distance to worldPoint.
+   * The search is performed lazily over the spatial index of the layer, so
+   * the caller may stop iterating at any time.
+   *
+   * @param layer the layer to search
+   * @param worldPoint the reference point
+   * @return an iterator of picks in ascending distance order
+   */
+  public static Iterator<PickInfo> nearest(Layer<?> layer,
+    Point3d worldPoint)
+  {
+    return layer.getSpatialIndex().nearest(worldPoint);
+  }
+
+  public static boolean findNearest(Layer<?> layer,
+    Point3d worldPoint, int count, List<PickInfo> picks)
+  {
+    int found = 0;
+    Iterator<PickInfo> iter = nearest(layer, worldPoint);
+    while (found < count && iter.hasNext())
+    {
+      picks.add(iter.next());
+      found++;
+    }
+    return found > 0;
+  }
+
+  public static boolean findWithinRadius(Layer<?> layer,
+    Point3d worldPoint, double radius, List<PickInfo> picks)
+  {
+    boolean found = false;
+    Iterator<PickInfo> iter = nearest(layer, worldPoint);
+    while (iter.hasNext())
+    {
+      PickInfo pick = iter.next();
+      if (pick.distance > radius) break;
+      picks.add(pick);
+      found = true;
+    }
+    return found;
+  }
+
+  /**
+   * Computes the distance from worldPoint to the geometry of feature.
+   *
+   * @param feature the feature to measure
+   * @param worldPoint the reference point
+   * @param pick receives the nearest point of the feature and its distance
+   * @return the distance from worldPoint to the feature
+   */
+  public static double getDistance(Feature feature, Point3d worldPoint,
+    PickInfo pick)
+  {
+    pick.clear();
+    pick.worldPoint = worldPoint;
+    pick.feature = feature;
+    Geometry geometry = feature.getGeometry();
+    if (geometry instanceof Point)
+    {
+      Point3d position = ((Point)geometry).getPosition();
+      pick.onFeaturePoint.set(position);
+      pick.distance = position.distance(worldPoint);
+      pick.index = 0;
+    }
+    else if (geometry instanceof LineString)
+    {
+      getDistance((LineString)geometry, worldPoint, pick);
+    }
+    else if (geometry instanceof Polygon)
+    {
+      Polygon polygon = (Polygon)geometry;
+      if (isInside(polygon, worldPoint))
+      {
+        pick.onFeaturePoint.set(worldPoint);
+        pick.distance = 0;
+        pick.index = 0;
+      }
+      else
+      {
+        getDistance(polygon, worldPoint, pick);
+      }
+    }
+    return pick.distance;
+  }
+
   public static boolean snapNode(RoadGraph roadGraph,
     Point3d selectPoint, Point3d snapPoint, double tolerance)
   {
@@ -227,57 +316,104 @@ public class Finder
     return false;
   }
 
-  private static double pointToSegmentDistance(Point3d pt,
-    Point3d p1, Point3d p2, Point3d onObject)
+  private static void getDistance(PackedGeometry geometry,
+    Point3d worldPoint, PickInfo pick)
   {
-    Vector2d v = new Vector2d();
-    v.x = p2.x - p1.x;
-    v.y = p2.y - p1.y;
-    v.normalize();
-    if (Math.abs(v.x) > 0.1)
+    int count = geometry.getVertexCount();
+    if (count == 1)
     {
-      double t = v.y;
-      v.y = -v.x;
-      v.x = t;
+      Point3d point = geometry.getVertex(0, pick.onFeaturePoint);
+      pick.distance = point.distance(worldPoint);
+      pick.index = 0;
+      return;
     }
-    else
+    for (int i = 0; i < count - 1; i++)
     {
-      double t = v.x;
-      v.x = -v.y;
-      v.y = t;
+      double distance =
+        pointToSegmentDistance(worldPoint, geometry, i, null);
+      if (distance < pick.distance)
+      {
+        pointToSegmentDistance(worldPoint, geometry, i, pick.onFeaturePoint);
+        pick.distance = distance;
+        pick.index = i;
+      }
     }
+  }
 
-    double c = -(v.x * p1.x + v.y * p1.y);
-    double distance = v.x * pt.x + v.y * pt.y + c;
+  private static boolean isInside(Polygon polygon, Point3d point)
+  {
+    boolean inside = false;
+    int count = polygon.getVertexCount();
+    for (int i = 0, j = count - 1; i < count; j = i++)
+    {
+      double xi = polygon.getX(i);
+      double yi = polygon.getY(i);
+      double xj = polygon.getX(j);
+      double yj = polygon.getY(j);
+      if ((yi > point.y) != (yj > point.y) &&
+        point.x < (xj - xi) * (point.y - yi) / (yj - yi) + xi)
+      {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
 
-    onObject.x = pt.x - v.x * distance;
-    onObject.y = pt.y - v.y * distance;
+  /**
+   * Computes the distance from pt to the segment of geometry that starts at
+   * the given vertex index. The nearest point of the segment is stored in
+   * onObject, unless it is null.
+   */
+  private static double pointToSegmentDistance(Point3d pt,
+    PackedGeometry geometry, int index, Point3d onObject)
+  {
+    double x1 = geometry.getX(index);
+    double y1 = geometry.getY(index);
+    double z1 = geometry.getZ(index);
+    double x2 = geometry.getX(index + 1);
+    double y2 = geometry.getY(index + 1);
+    double z2 = geometry.getZ(index + 1);
+    double dx = x2 - x1;
+    double dy = y2 - y1;
+
+    // position of the projection of pt over the segment line
+    double t = ((pt.x - x1) * dx + (pt.y - y1) * dy) / (dx * dx + dy * dy);
 
-    distance = Math.abs(distance);
-    if (Math.min(p1.x, p2.x) <= onObject.x &&
-        onObject.x <= Math.max(p1.x, p2.x) &&
-        Math.min(p1.y, p2.y) <= onObject.y &&
-        onObject.y <= Math.max(p1.y, p2.y))
+    double distance;
+    if (t >= 0 && t <= 1)
     {
       // inside segment
-      distance = Math.abs(distance);
+      double ox = x1 + t * dx;
+      double oy = y1 + t * dy;
+      double ex = pt.x - ox;
+      double ey = pt.y - oy;
+      distance = Math.sqrt(ex * ex + ey * ey);
+      if (onObject != null) onObject.set(ox, oy, z1 + t * (z2 - z1));
     }
     else
     {
       // outside segment
-      double distance1 = pt.distance(p1);
-      double distance2 = pt.distance(p2);
+      double distance1 = distance(pt, x1, y1, z1);
+      double distance2 = distance(pt, x2, y2, z2);
       if (distance1 < distance2)
       {
         distance = distance1;
-        onObject.set(p1);
+        if (onObject != null) onObject.set(x1, y1, z1);
       }
       else
       {
         distance = distance2;
-        onObject.set(p2);
+        if (onObject != null) onObject.set(x2, y2, z2);
       }
     }
     return distance;
   }
+
+  private static double distance(Point3d point, double x, double y, double z)
+  {
+    double dx = point.x - x;
+    double dy = point.y - y;
+    double dz = point.z - z;
+    return Math.sqrt(dx * dx + dy * dy + dz * dz);
+  }
 }
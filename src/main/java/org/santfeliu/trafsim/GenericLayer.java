@@ -31,21 +31,38 @@
 package org.santfeliu.trafsim;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.santfeliu.trafsim.GenericLayer.GenericFeature;
 import org.santfeliu.trafsim.geom.Geometry;
 
 /**
+ * A base layer of the simulation.
+ *
+ * The features of a layer can be kept in memory or stored in tiles (see
+ * TileSource) that are read on demand. In the latter case, the map reads
+ * only the tiles it shows (see getFeatures(Box)), and the last tiles read
+ * are kept in memory, up to MAX_TILES_PROPERTY tiles. All the tiles are
+ * loaded into memory when the whole feature collection is needed, for
+ * example to edit the layer.
  *
  * @author realor
  */
 public class GenericLayer extends Layer<GenericFeature>
 {
+  // system property with the maximum number of tiles kept in memory
+  public static final String MAX_TILES_PROPERTY = "trafsim.maxTiles";
   private String label;
-  private final ArrayList<GenericFeature> features =
-    new ArrayList<GenericFeature>();
+  private final FeatureList<GenericFeature> features =
+    new FeatureList<GenericFeature>();
   private Color color;
+  private TileSource tileSource;
+  private Map<Integer, List<GenericFeature>> tiles;
 
   public GenericLayer(String label, Color color)
   {
@@ -53,6 +70,23 @@ public class GenericLayer extends Layer<GenericFeature>
     this.color = color;
   }
 
+  public GenericLayer(String label, Color color, TileSource tileSource)
+  {
+    this(label, color);
+    this.tileSource = tileSource;
+    final int maxTiles = Integer.getInteger(MAX_TILES_PROPERTY, 256);
+    this.tiles =
+      new LinkedHashMap<Integer, List<GenericFeature>>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(
+        Map.Entry<Integer, List<GenericFeature>> eldest)
+      {
+        return size() > maxTiles;
+      }
+    };
+  }
+
   public GenericFeature newFeature(Geometry geometry)
   {
     return new GenericFeature(geometry);
@@ -85,25 +119,255 @@ public class GenericLayer extends Layer<GenericFeature>
   }
 
   @Override
-  public void clear()
+  public synchronized void clear()
   {
+    if (tileSource != null)
+    {
+      for (List<GenericFeature> tileFeatures : tiles.values())
+      {
+        for (GenericFeature feature : tileFeatures)
+        {
+          feature.removed = true;
+        }
+      }
+      tileSource = null;
+      tiles = null;
+    }
     for (GenericFeature feature : features)
     {
       feature.removed = true;
     }
     features.clear();
+    invalidateSpatialIndex();
   }
 
+  /**
+   * Gets all the features of this layer, loading the tiles where they are
+   * stored if they were not loaded yet.
+   *
+   * @return the features of this layer
+   */
   @Override
   public Collection<GenericFeature> getFeatures()
   {
+    load();
     return features;
   }
 
+  /**
+   * Gets the features of this layer that may overlap box. When the features
+   * are stored in tiles, only the tiles that overlap box are read.
+   *
+   * @param box the box to search
+   * @return the features of the tiles that overlap box, or all the features
+   * if they are loaded
+   * @throws IOException if a tile can not be read
+   */
+  public synchronized List<GenericFeature> getFeatures(Box box)
+    throws IOException
+  {
+    if (tileSource == null) return features;
+
+    List<GenericFeature> result = new ArrayList<GenericFeature>();
+    for (int tile = 0; tile < tileSource.getTileCount(); tile++)
+    {
+      if (tileSource.getTileBox(tile).overlaps(box))
+      {
+        List<GenericFeature> tileFeatures = tiles.get(tile);
+        if (tileFeatures == null)
+        {
+          tileFeatures = readTile(tile);
+          tiles.put(tile, tileFeatures);
+        }
+        result.addAll(tileFeatures);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return true if the features of this layer are in memory, false if
+   * they are stored in tiles
+   */
+  public synchronized boolean isLoaded()
+  {
+    return tileSource == null;
+  }
+
+  /**
+   * @return the number of features of this layer, without loading them
+   */
+  public synchronized int getFeatureCount()
+  {
+    return tileSource == null ?
+      features.size() : tileSource.getFeatureCount();
+  }
+
+  /**
+   * @return the tiles where the features of this layer are stored, or null
+   * if they are loaded
+   */
+  public synchronized TileSource getTileSource()
+  {
+    return tileSource;
+  }
+
+  /**
+   * Copies the geometries of the features of this layer, in order, if they
+   * are loaded.
+   *
+   * @return the copied geometries, or null if the features are stored in
+   * tiles (see getTileSource)
+   */
+  public synchronized List<Geometry> copyGeometries()
+  {
+    if (tileSource != null) return null;
+
+    List<Geometry> geometries = new ArrayList<Geometry>(features.size());
+    for (GenericFeature feature : features)
+    {
+      geometries.add(feature.getGeometry().duplicate());
+    }
+    return geometries;
+  }
+
+  /**
+   * Reads the tiles of this layer from another tile source, for example
+   * from the file the layer has just been saved to. The tiles read from the
+   * previous source are discarded. Nothing is done if the features of this
+   * layer are loaded.
+   *
+   * @param tileSource the new tile source, with the same features
+   */
+  public synchronized void setTileSource(TileSource tileSource)
+  {
+    if (this.tileSource == null) return;
+
+    if (tileSource.getFeatureCount() != this.tileSource.getFeatureCount())
+      throw new IllegalArgumentException("Feature count mismatch");
+    this.tileSource = tileSource;
+    tiles.clear();
+  }
+
+  @Override
+  public synchronized Box getBoundingBox(Box box)
+  {
+    if (tileSource == null) return super.getBoundingBox(box);
+
+    for (int tile = 0; tile < tileSource.getTileCount(); tile++)
+    {
+      Box tileBox = tileSource.getTileBox(tile);
+      if (!tileBox.isUndefined())
+      {
+        box.extend(tileBox);
+      }
+    }
+    return box;
+  }
+
+  /**
+   * Loads the features of all the tiles, in the order of the layer. Each
+   * feature remembers its position, as it is the id of the feature in the
+   * journal.
+   */
+  private synchronized void load()
+  {
+    if (tileSource == null) return;
+
+    GenericFeature[] loaded =
+      new GenericFeature[tileSource.getFeatureCount()];
+    try
+    {
+      for (int tile = 0; tile < tileSource.getTileCount(); tile++)
+      {
+        List<GenericFeature> tileFeatures = tiles.get(tile);
+        if (tileFeatures == null) tileFeatures = readTile(tile);
+        for (GenericFeature feature : tileFeatures)
+        {
+          int index = feature.storedIndex;
+          if (index < 0 || index >= loaded.length || loaded[index] != null)
+            throw new IOException("Invalid feature position in layer " +
+              label + ": " + index);
+          loaded[index] = feature;
+        }
+      }
+      for (GenericFeature feature : loaded)
+      {
+        if (feature == null)
+          throw new IOException("Missing features in layer " + label);
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+    features.ensureCapacity(loaded.length);
+    for (GenericFeature feature : loaded)
+    {
+      features.add(feature);
+    }
+    tileSource = null;
+    tiles = null;
+    invalidateSpatialIndex();
+  }
+
+  private List<GenericFeature> readTile(int tile) throws IOException
+  {
+    int[] positions = new int[tileSource.getTileFeatureCount(tile)];
+    List<Geometry> geometries = tileSource.readTile(tile, positions);
+    List<GenericFeature> tileFeatures =
+      new ArrayList<GenericFeature>(geometries.size());
+    for (int i = 0; i < geometries.size(); i++)
+    {
+      GenericFeature feature = new GenericFeature(geometries.get(i));
+      feature.removed = false;
+      feature.storedIndex = positions[i];
+      tileFeatures.add(feature);
+    }
+    return tileFeatures;
+  }
+
+  /**
+   * Storage of the features of a layer partitioned in tiles that can be
+   * read one by one.
+   */
+  public interface TileSource
+  {
+    int getFeatureCount();
+
+    int getTileCount();
+
+    /**
+     * @param tile the tile index
+     * @return the bounding box of the features of the tile
+     */
+    Box getTileBox(int tile);
+
+    /**
+     * @param tile the tile index
+     * @return the number of features of the tile
+     */
+    int getTileFeatureCount(int tile);
+
+    /**
+     * Reads the geometries of the features of a tile. Each call returns new
+     * geometries.
+     *
+     * @param tile the tile index
+     * @param positions receives the position in the layer of each feature
+     * of the tile, if not null
+     * @return the geometries of the features of the tile
+     * @throws IOException if the tile can not be read
+     */
+    List<Geometry> readTile(int tile, int[] positions) throws IOException;
+  }
+
   public class GenericFeature extends Feature
   {
     private Geometry geometry;
     private boolean removed;
+    // position of the feature in the tiles it was loaded from, or -1
+    int storedIndex = -1;
 
     GenericFeature(Geometry geometry)
     {
@@ -121,6 +385,7 @@ public class GenericLayer extends Layer<GenericFeature>
     public void setGeometry(Geometry geometry)
     {
       this.geometry = geometry;
+      invalidateSpatialIndex();
     }
 
     @Override
@@ -132,20 +397,24 @@ public class GenericLayer extends Layer<GenericFeature>
     @Override
     public void add()
     {
+      load();
       if (removed)
       {
         features.add(this);
         removed = false;
+        invalidateSpatialIndex();
       }
     }
 
     @Override
     public void remove()
     {
+      load();
       if (!removed)
       {
         features.remove(this);
         removed = true;
+        invalidateSpatialIndex();
       }
     }
     
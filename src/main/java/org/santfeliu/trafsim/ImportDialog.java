@@ -30,7 +30,10 @@
  */
 package org.santfeliu.trafsim;
 
+import org.santfeliu.trafsim.io.Compression;
 import org.santfeliu.trafsim.io.GMLReader;
+import org.santfeliu.trafsim.io.GeoJSONReader;
+import org.santfeliu.trafsim.io.OsmReader;
 import org.santfeliu.trafsim.geom.Geometry;
 import org.santfeliu.trafsim.geom.LineString;
 import org.santfeliu.trafsim.geom.Point;
@@ -38,6 +41,7 @@ import java.awt.CardLayout;
 import java.awt.Color;
 import java.awt.Cursor;
 import java.io.File;
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Map;
 import javax.swing.JFileChooser;
@@ -51,6 +55,7 @@ public class ImportDialog extends javax.swing.JDialog
 {
   private ArrayList<Feature> features;
   private GenericLayer layer;
+  private EndpointMerger merger;
   private int locationSequence = 0;
   private static String wfsUrl;
   private static String wfsUsername;
@@ -107,6 +112,8 @@ public class ImportDialog extends javax.swing.JDialog
     lanesTextField = new javax.swing.JTextField();
     delayLabel = new javax.swing.JLabel();
     delayTextField = new javax.swing.JTextField();
+    mergeToleranceLabel = new javax.swing.JLabel();
+    mergeToleranceTextField = new javax.swing.JTextField();
     layerPanel = new javax.swing.JPanel();
     layerLabelLabel = new javax.swing.JLabel();
     layerLabelTextField = new javax.swing.JTextField();
@@ -367,6 +374,24 @@ public class ImportDialog extends javax.swing.JDialog
     gridBagConstraints.insets = new java.awt.Insets(4, 4, 4, 4);
     graphPanel.add(delayTextField, gridBagConstraints);
 
+    mergeToleranceLabel.setText(bundle.getString("dialog.import.mergeTolerance")); // NOI18N
+    gridBagConstraints = new java.awt.GridBagConstraints();
+    gridBagConstraints.gridx = 0;
+    gridBagConstraints.gridy = 3;
+    gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+    gridBagConstraints.anchor = java.awt.GridBagConstraints.BASELINE_LEADING;
+    gridBagConstraints.insets = new java.awt.Insets(4, 4, 4, 4);
+    graphPanel.add(mergeToleranceLabel, gridBagConstraints);
+
+    mergeToleranceTextField.setText("0");
+    gridBagConstraints = new java.awt.GridBagConstraints();
+    gridBagConstraints.gridx = 1;
+    gridBagConstraints.gridy = 3;
+    gridBagConstraints.fill = java.awt.GridBagConstraints.HORIZONTAL;
+    gridBagConstraints.anchor = java.awt.GridBagConstraints.BASELINE_LEADING;
+    gridBagConstraints.insets = new java.awt.Insets(4, 4, 4, 4);
+    graphPanel.add(mergeToleranceTextField, gridBagConstraints);
+
     toPanel.add(graphPanel, "Graph");
 
     layerPanel.setLayout(new java.awt.GridBagLayout());
@@ -557,13 +582,21 @@ public class ImportDialog extends javax.swing.JDialog
       Processor processor = null;
       features = new ArrayList<Feature>();
       layer = null;
+      merger = null;
 
       String as = (String)toComboBox.getSelectedItem();
       if ("Graph".equals(as))
       {
+        String tolerance = mergeToleranceTextField.getText().trim();
+        if (tolerance.length() > 0 && Double.parseDouble(tolerance) > 0)
+        {
+          merger = new EndpointMerger(simulation.getRoadGraph(),
+            Double.parseDouble(tolerance));
+        }
         processor = (Geometry geometry, Map attributes) ->
         {
-          if (geometry instanceof LineString)
+          if (geometry instanceof LineString &&
+            (merger == null || merger.merge((LineString)geometry)))
           {
             int speed = 50;
             int lanes = 1;
@@ -686,23 +719,47 @@ public class ImportDialog extends javax.swing.JDialog
       }
       else if ("Disk".equals(from))
       {
-        GMLReader reader = new GMLReader();
-        reader.readLayer(new File(pathTextField.getText()), processor);
+        File file = new File(pathTextField.getText());
+        if ("Graph".equals(as) && isOsmFile(file))
+        {
+          OsmReader reader = new OsmReader();
+          reader.setSrsName(simulation.getSrsName());
+          reader.read(file, simulation.getRoadGraph(), features);
+        }
+        else if (isGeoJSONFile(file))
+        {
+          GeoJSONReader reader = new GeoJSONReader();
+          reader.readLayer(file, processor);
+        }
+        else
+        {
+          GMLReader reader = new GMLReader();
+          reader.readLayer(file, processor);
+        }
       }
 
       TrafficSimulator trafficSimulator = (TrafficSimulator)getParent();
       if (features.size() > 0)
       {
-        if (layer != null)
-        {
-          simulation.addGenericLayer(layer);
-        }
-        for (Feature feature : features)
+        simulation.apply(() ->
         {
-          feature.add();
-        }
+          if (layer != null)
+          {
+            simulation.addGenericLayer(layer);
+          }
+          for (Feature feature : features)
+          {
+            feature.add();
+          }
+        });
         trafficSimulator.setModified(true);
       }
+      if (merger != null)
+      {
+        trafficSimulator.info(MessageFormat.format(
+          trafficSimulator.getMessage("dialog.import.merged"),
+          merger.getMergedCount(), merger.getCollapsedCount()));
+      }
       simulator.getMapViewer().repaint();
       setCursor(Cursor.getDefaultCursor());
       dispose();
@@ -714,6 +771,23 @@ public class ImportDialog extends javax.swing.JDialog
     }
   }//GEN-LAST:event_importButtonActionPerformed
 
+  private boolean isOsmFile(File file)
+  {
+    String name = file.getName();
+    return name.endsWith(".osm") || name.endsWith(".osm.gz");
+  }
+
+  private boolean isGeoJSONFile(File file)
+  {
+    String name = file.getName();
+    if (name.endsWith(Compression.GZIP_EXTENSION))
+    {
+      name = name.substring(0,
+        name.length() - Compression.GZIP_EXTENSION.length());
+    }
+    return name.endsWith(".geojson") || name.endsWith(".json");
+  }
+
   // Variables declaration - do not modify//GEN-BEGIN:variables
   private javax.swing.JButton cancelButton;
   private javax.swing.JPanel centerPanel;
@@ -745,6 +819,8 @@ public class ImportDialog extends javax.swing.JDialog
   private javax.swing.JLabel locationNameLabel;
   private javax.swing.JTextField locationNameTextField;
   private javax.swing.JPanel locationsPanel;
+  private javax.swing.JLabel mergeToleranceLabel;
+  private javax.swing.JTextField mergeToleranceTextField;
   private javax.swing.JLabel passwordLabel;
   private javax.swing.JLabel pathLabel;
   private javax.swing.JTextField pathTextField;
@@ -86,10 +86,10 @@ public class Indicators
 
   public void update(Edge edge)
   {
-    Edge.Indicators edgeInd = edge.getIndicators();
-    if (edgeInd.vehicleCount > maxVehiclesPerEdge)
+    int vehicleCount = edge.getVehicleCount();
+    if (vehicleCount > maxVehiclesPerEdge)
     {
-      maxVehiclesPerEdge = edgeInd.vehicleCount;
+      maxVehiclesPerEdge = vehicleCount;
     }
   }
 
@@ -30,6 +30,7 @@
  */
 package org.santfeliu.trafsim;
 
+import java.util.ArrayList;
 import java.util.Collection;
 
 /**
@@ -39,9 +40,127 @@ import java.util.Collection;
  */
 public abstract class Layer<T extends Feature>
 {
+  private SpatialIndex<T> spatialIndex;
+  private Box boundingBox;
+  private boolean updating;
+
   public abstract String getName();
   
   public abstract Collection<T> getFeatures();
   
   public abstract void clear();
+
+  /**
+   * Gets the spatial index of this layer. The index is built on demand and
+   * discarded each time a feature of this layer is added, removed or moved.
+   *
+   * @return the spatial index of the features of this layer
+   */
+  public synchronized SpatialIndex<T> getSpatialIndex()
+  {
+    if (spatialIndex == null)
+    {
+      spatialIndex = new SpatialIndex<T>(getFeatures());
+    }
+    return spatialIndex;
+  }
+
+  public synchronized void invalidateSpatialIndex()
+  {
+    spatialIndex = null;
+    boundingBox = null;
+  }
+
+  /**
+   * Extends the given box with the bounding box of the features of this
+   * layer, which is computed on demand like the spatial index.
+   *
+   * @param box the box to extend
+   * @return the given box
+   */
+  public synchronized Box getBoundingBox(Box box)
+  {
+    if (boundingBox == null)
+    {
+      boundingBox = new Box();
+      for (Feature feature : getFeatures())
+      {
+        boundingBox.extend(feature.getGeometry().getBoundingBox());
+      }
+    }
+    if (!boundingBox.isUndefined())
+    {
+      box.extend(boundingBox);
+    }
+    return box;
+  }
+
+  /**
+   * @return true while a transaction of the simulation is in progress
+   */
+  public boolean isUpdating()
+  {
+    return updating;
+  }
+
+  /**
+   * Called by Simulation when a transaction begins.
+   */
+  protected void beginUpdate()
+  {
+    updating = true;
+  }
+
+  /**
+   * Called by Simulation when a transaction is committed. Layers that defer
+   * work while updating must complete it here.
+   */
+  protected void endUpdate()
+  {
+    updating = false;
+    invalidateSpatialIndex();
+  }
+
+  /**
+   * Adds the given features that belong to this layer.
+   *
+   * @param features the features to add, may include features of other
+   * layers that will be ignored
+   */
+  public void addAll(Collection<? extends Feature> features)
+  {
+    for (Feature feature : features)
+    {
+      if (feature.getLayer() == this)
+      {
+        feature.add();
+      }
+    }
+  }
+
+  /**
+   * Removes the given features that belong to this layer. The features are
+   * taken out of the feature list in a single pass, preserving the order
+   * of the remaining features.
+   *
+   * @param features the features to remove, may include features of other
+   * layers that will be ignored
+   */
+  public void removeAll(Collection<? extends Feature> features)
+  {
+    ArrayList<Feature> removed = new ArrayList<Feature>();
+    for (Feature feature : features)
+    {
+      if (feature.getLayer() == this && !feature.isRemoved())
+      {
+        removed.add(feature);
+      }
+    }
+    getFeatures().removeAll(removed);
+    for (Feature feature : removed)
+    {
+      feature.remove();
+    }
+    invalidateSpatialIndex();
+  }
 }
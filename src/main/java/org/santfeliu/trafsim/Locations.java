@@ -32,7 +32,7 @@ package org.santfeliu.trafsim;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.Map;
 import org.santfeliu.trafsim.Locations.Location;
 import org.santfeliu.trafsim.geom.Geometry;
@@ -44,7 +44,16 @@ import org.santfeliu.trafsim.geom.Point;
  */
 public class Locations extends Layer<Location>
 {
-  private final ArrayList<Location> features = new ArrayList<Location>();
+  private final FeatureList<Location> features = new FeatureList<Location>();
+  // location names are interned to dense ids
+  private final HashMap<String, Integer> nameIds =
+    new HashMap<String, Integer>();
+  private final ArrayList<String> names = new ArrayList<String>();
+  // locations that share a name are chained in insertion order, the first
+  // and last location of each chain are kept by id (null if none)
+  private final ArrayList<Location> locationsById = new ArrayList<Location>();
+  private final ArrayList<Location> lastLocationsById =
+    new ArrayList<Location>();
 
   @Override
   public String getName()
@@ -60,13 +69,50 @@ public class Locations extends Layer<Location>
 
   public Location getLocation(String name)
   {
-    Iterator<Location> iter = features.iterator();
-    while (iter.hasNext())
+    Integer id = nameIds.get(name);
+    return id == null ? null : locationsById.get(id);
+  }
+
+  public Location getLocation(int id)
+  {
+    return locationsById.get(id);
+  }
+
+  /**
+   * Returns the dense id assigned to the given location name. Ids are
+   * assigned on demand and remain valid for the lifetime of this layer,
+   * even if no location has that name.
+   *
+   * @param name the location name
+   * @return the location id, or -1 if name is null
+   */
+  public int getLocationId(String name)
+  {
+    if (name == null) return -1;
+
+    Integer id = nameIds.get(name);
+    if (id == null)
     {
-      Location location = iter.next();
-      if (location.getName().equals(name)) return location;
+      id = names.size();
+      nameIds.put(name, id);
+      names.add(name);
+      locationsById.add(null);
+      lastLocationsById.add(null);
     }
-    return null;
+    return id;
+  }
+
+  public String getLocationName(int id)
+  {
+    return names.get(id);
+  }
+
+  /**
+   * @return the number of location ids assigned, all ids are lower than it
+   */
+  public int getLocationIdCount()
+  {
+    return names.size();
   }
 
   @Override
@@ -75,8 +121,49 @@ public class Locations extends Layer<Location>
     for (Location location : features)
     {
       location.removed = true;
+      location.previous = null;
+      location.next = null;
     }
     features.clear();
+    for (int id = 0; id < locationsById.size(); id++)
+    {
+      locationsById.set(id, null);
+      lastLocationsById.set(id, null);
+    }
+    invalidateSpatialIndex();
+  }
+
+  private void index(Location location)
+  {
+    int id = location.id;
+    if (id < 0) return;
+
+    Location last = lastLocationsById.get(id);
+    if (last == null)
+    {
+      locationsById.set(id, location);
+    }
+    else
+    {
+      last.next = location;
+      location.previous = last;
+    }
+    lastLocationsById.set(id, location);
+  }
+
+  private void unindex(Location location)
+  {
+    int id = location.id;
+    if (id < 0) return;
+
+    Location previous = location.previous;
+    Location next = location.next;
+    if (previous == null) locationsById.set(id, next);
+    else previous.next = next;
+    if (next == null) lastLocationsById.set(id, previous);
+    else next.previous = previous;
+    location.previous = null;
+    location.next = null;
   }
 
   @Override
@@ -87,14 +174,19 @@ public class Locations extends Layer<Location>
 
   public class Location extends Feature
   {
+    private int id;
     private String name;
     private String label;
     private Point point;
     private boolean origin;
     private boolean removed;
+    // chain of active locations with the same name
+    private Location previous;
+    private Location next;
 
     Location(String name, String label, Point point, boolean origin)
     {
+      this.id = getLocationId(name);
       this.name = name;
       this.label = label;
       this.point = point;
@@ -102,6 +194,11 @@ public class Locations extends Layer<Location>
       this.removed = true;
     }
 
+    public int getId()
+    {
+      return id;
+    }
+
     public String getName()
     {
       return name;
@@ -109,7 +206,18 @@ public class Locations extends Layer<Location>
 
     public void setName(String name)
     {
-      this.name = name;
+      if (removed)
+      {
+        this.id = getLocationId(name);
+        this.name = name;
+      }
+      else
+      {
+        unindex(this);
+        this.id = getLocationId(name);
+        this.name = name;
+        index(this);
+      }
     }
 
     public String getLabel()
@@ -130,6 +238,7 @@ public class Locations extends Layer<Location>
     public void setPoint(Point point)
     {
       this.point = point;
+      invalidateSpatialIndex();
     }
 
     public boolean isOrigin()
@@ -159,6 +268,7 @@ public class Locations extends Layer<Location>
       if (geometry instanceof Point)
       {
         point = (Point)geometry;
+        invalidateSpatialIndex();
       }
     }
 
@@ -175,6 +285,8 @@ public class Locations extends Layer<Location>
       {
         features.add(this);
         removed = false;
+        index(this);
+        invalidateSpatialIndex();
       }
     }
 
@@ -185,6 +297,8 @@ public class Locations extends Layer<Location>
       {
         features.remove(this);
         removed = true;
+        unindex(this);
+        invalidateSpatialIndex();
       }
     }
 
@@ -0,0 +1,262 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Hash map with primitive long keys based on open addressing with linear
+ * probing. Null values are not allowed.
+ *
+ * @author realor
+ * @param <V> value class
+ */
+public class LongHashMap<V>
+{
+  private static final int MIN_CAPACITY = 16;
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  private int mask;
+  private int modCount;
+
+  public LongHashMap()
+  {
+    this(MIN_CAPACITY);
+  }
+
+  public LongHashMap(int expectedSize)
+  {
+    allocate(tableSizeFor(expectedSize));
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public V get(long key)
+  {
+    int index = hash(key) & mask;
+    Object value;
+    while ((value = values[index]) != null)
+    {
+      if (keys[index] == key) return (V)value;
+      index = (index + 1) & mask;
+    }
+    return null;
+  }
+
+  public boolean containsKey(long key)
+  {
+    return get(key) != null;
+  }
+
+  public V put(long key, V value)
+  {
+    if (value == null) throw new NullPointerException("null value");
+
+    int index = hash(key) & mask;
+    Object current;
+    while ((current = values[index]) != null)
+    {
+      if (keys[index] == key)
+      {
+        values[index] = value;
+        return (V)current;
+      }
+      index = (index + 1) & mask;
+    }
+    keys[index] = key;
+    values[index] = value;
+    size++;
+    modCount++;
+    if (4 * size > 3 * values.length) rehash(2 * values.length);
+    return null;
+  }
+
+  public V remove(long key)
+  {
+    int index = hash(key) & mask;
+    Object value;
+    while ((value = values[index]) != null)
+    {
+      if (keys[index] == key)
+      {
+        shiftBack(index);
+        size--;
+        modCount++;
+        return (V)value;
+      }
+      index = (index + 1) & mask;
+    }
+    return null;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(values, null);
+    size = 0;
+    modCount++;
+  }
+
+  public Collection<V> values()
+  {
+    return new AbstractCollection<V>()
+    {
+      @Override
+      public Iterator<V> iterator()
+      {
+        return new ValueIterator();
+      }
+
+      @Override
+      public int size()
+      {
+        return size;
+      }
+    };
+  }
+
+  /**
+   * Removes the entry at index and moves back the entries of the same probe
+   * sequence, so that lookups never need tombstones.
+   */
+  private void shiftBack(int index)
+  {
+    int hole = index;
+    int next = (hole + 1) & mask;
+    while (values[next] != null)
+    {
+      int home = hash(keys[next]) & mask;
+      // move entry if its home slot is not in (hole, next]
+      if (((next - home) & mask) >= ((next - hole) & mask))
+      {
+        keys[hole] = keys[next];
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[hole] = null;
+  }
+
+  private void rehash(int capacity)
+  {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; i++)
+    {
+      Object value = oldValues[i];
+      if (value != null)
+      {
+        int index = hash(oldKeys[i]) & mask;
+        while (values[index] != null)
+        {
+          index = (index + 1) & mask;
+        }
+        keys[index] = oldKeys[i];
+        values[index] = value;
+      }
+    }
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int tableSizeFor(int expectedSize)
+  {
+    int capacity = MIN_CAPACITY;
+    while (3 * capacity < 4 * expectedSize) capacity <<= 1;
+    return capacity;
+  }
+
+  private static int hash(long key)
+  {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int)key;
+  }
+
+  class ValueIterator implements Iterator<V>
+  {
+    private int index = -1;
+    private int nextIndex = -1;
+    private final int expectedModCount = modCount;
+
+    ValueIterator()
+    {
+      findNext();
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return nextIndex < values.length;
+    }
+
+    @Override
+    public V next()
+    {
+      if (expectedModCount != modCount)
+        throw new ConcurrentModificationException();
+      if (nextIndex >= values.length) throw new NoSuchElementException();
+      index = nextIndex;
+      findNext();
+      return (V)values[index];
+    }
+
+    private void findNext()
+    {
+      nextIndex++;
+      while (nextIndex < values.length && values[nextIndex] == null)
+      {
+        nextIndex++;
+      }
+    }
+  }
+}
@@ -33,6 +33,7 @@ package org.santfeliu.trafsim;
 import java.awt.BasicStroke;
 import org.santfeliu.trafsim.geom.Geometry;
 import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.PackedGeometry;
 import org.santfeliu.trafsim.geom.Point;
 import java.awt.Color;
 import java.awt.Font;
@@ -44,15 +45,18 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.awt.geom.Path2D;
 import java.awt.geom.Rectangle2D;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import javax.swing.SwingUtilities;
 import javax.vecmath.Point3d;
-import javax.vecmath.Vector2d;
 import javax.vecmath.Vector3d;
+import org.santfeliu.trafsim.GenericLayer.GenericFeature;
 import org.santfeliu.trafsim.Locations.Location;
 import org.santfeliu.trafsim.RoadGraph.Edge;
 import org.santfeliu.trafsim.RoadGraph.Node;
@@ -72,15 +76,45 @@ public class MapViewer extends javax.swing.JPanel
   private static final BasicStroke STROKE3 = new BasicStroke(3f);
   private static final BasicStroke STROKE5 =
     new BasicStroke(5f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+  // strokes of edges with more than one lane, indexed by lanes
+  private static final BasicStroke[] LANE_STROKES = new BasicStroke[9];
+  // vehicle count colors, indexed by alpha
+  private static final Color[] VEHICLES_COLORS = new Color[256];
+  private static final Color PANEL_COLOR = new Color(255, 255, 230);
+  private static final Font FONT10 = new Font("Arial", Font.PLAIN, 10);
+  private static final Font FONT12 = new Font("Arial", Font.PLAIN, 12);
+  private static final Font FONT13 = new Font("Arial", Font.PLAIN, 13);
   private static final int PANEL_WIDTH = 230;
 
+  static
+  {
+    for (int lanes = 2; lanes < LANE_STROKES.length; lanes++)
+    {
+      LANE_STROKES[lanes] = createLaneStroke(lanes);
+    }
+    for (int alpha = 0; alpha < VEHICLES_COLORS.length; alpha++)
+    {
+      VEHICLES_COLORS[alpha] = new Color(255, 0, 0, alpha);
+    }
+  }
+
   private TrafficSimulator trafficSimulator;
   private final Box window = new Box(-10, -10, 0, 10, 10, 0);
   private java.awt.Point mouseStart;
   private final Projector projector = new Projector();
   private final java.awt.Point dp1 = new java.awt.Point();
   private final java.awt.Point dp2 = new java.awt.Point();
+  // paths of the edge being painted, reused for all edges
+  private final Path2D.Double segmentsPath = new Path2D.Double();
+  private final Path2D.Double arrowsPath = new Path2D.Double();
+  // scratch objects for the mouse handlers
+  private final Point3d mouseWorld1 = new Point3d();
+  private final Point3d mouseWorld2 = new Point3d();
+  private final Vector3d mouseVector = new Vector3d();
   private final Selection selection = new Selection();
+  // base layers whose tiles could not be read, already reported
+  private final HashSet<GenericLayer> failedLayers =
+    new HashSet<GenericLayer>();
   private Painter painter;
   private boolean edgesVisible = true;
   private boolean nodesVisible = true;
@@ -122,6 +156,20 @@ public class MapViewer extends javax.swing.JPanel
     return projector;
   }
 
+  /**
+   * Repaints the map, unless a transaction of the simulation is in
+   * progress. In that case the map is repainted on commit.
+   */
+  @Override
+  public void repaint()
+  {
+    Simulation simulation = getSimulation();
+    if (simulation == null || !simulation.isInTransaction())
+    {
+      super.repaint();
+    }
+  }
+
   public Selection getSelection()
   {
     return selection;
@@ -322,7 +370,7 @@ public class MapViewer extends javax.swing.JPanel
     Simulation simulation = getSimulation();
     if (simulation == null) return;
 
-    g.setFont(new Font("Arial", Font.PLAIN, 12));
+    g.setFont(FONT12);
 
     projector.setWindow(window);
     projector.setWidth(getWidth());
@@ -367,7 +415,7 @@ public class MapViewer extends javax.swing.JPanel
       g2d.setColor(DEAD_END_COLOR);
       for (Node node : simulation.getRoadGraph().getNodes())
       {
-        if (node.getOutEdges().isEmpty())
+        if (node.getOutDegree() == 0)
         {
           paintPoint(g2d, node.getPoint(), 5);
         }
@@ -380,7 +428,7 @@ public class MapViewer extends javax.swing.JPanel
       g2d.setColor(ORIGINS_COLOR);
       for (Node node : simulation.getRoadGraph().getNodes())
       {
-        if (node.getInEdges().isEmpty())
+        if (node.getInDegree() == 0)
         {
           paintPoint(g2d, node.getPoint(), 5);
         }
@@ -390,7 +438,7 @@ public class MapViewer extends javax.swing.JPanel
     // locations
     if (locationsVisible)
     {
-      g.setFont(new Font("Arial", Font.PLAIN, 10));
+      g.setFont(FONT10);
       for (Feature feature : simulation.getLocations().getFeatures())
       {
         Location location = (Location)feature;
@@ -422,14 +470,14 @@ public class MapViewer extends javax.swing.JPanel
     if (title != null)
     {
       g.setColor(Color.BLACK);
-      g.setFont(new Font("Arial", Font.PLAIN, 13));
+      g.setFont(FONT13);
       PaintUtils.drawHaloText(title, 10, 20, g2d);
     }
     String srsName = simulation.getSrsName();
     if (srsName != null)
     {
       g.setColor(Color.BLACK);
-      g.setFont(new Font("Arial", Font.PLAIN, 10));
+      g.setFont(FONT10);
       Rectangle2D bounds = g.getFontMetrics().getStringBounds(srsName, g);
       PaintUtils.drawHaloText(srsName, getWidth() - (int)bounds.getWidth() - 10,
         getHeight() - (int)bounds.getHeight(), g2d);
@@ -442,9 +490,9 @@ public class MapViewer extends javax.swing.JPanel
     int x = width - PANEL_WIDTH - 10;
     Simulation simulation = getSimulation();
     Indicators indicators = simulation.getIndicators();
-    g.setFont(new Font("Arial", Font.PLAIN, 12));
-    g.setColor(new Color(255, 255, 230));
-    g.setStroke(new BasicStroke(1));
+    g.setFont(FONT12);
+    g.setColor(PANEL_COLOR);
+    g.setStroke(STROKE1);
     g.fillRoundRect(x, 10, PANEL_WIDTH, 150, 6, 6);
     g.setColor(Color.ORANGE);
     g.drawRoundRect(x, 10, PANEL_WIDTH, 150, 6, 6);
@@ -475,14 +523,14 @@ public class MapViewer extends javax.swing.JPanel
       {
         Edge edge = ((Edge)feature);
         Edge.Indicators eInd = edge.getIndicators();
-        g.setColor(new Color(255, 255, 230));
-        g.setStroke(new BasicStroke(1));
+        g.setColor(PANEL_COLOR);
+        g.setStroke(STROKE1);
         g.fillRoundRect(x, 170, PANEL_WIDTH, 130, 6, 6);
         g.setColor(Color.ORANGE);
         g.drawRoundRect(x, 170, PANEL_WIDTH, 130, 6, 6);
         g.setColor(Color.BLACK);
         g.drawString(trafficSimulator.getMessage("indicator.length") +
-          ": " + df2.format(edge.lineString.getLength()) + " m", x2, 190);
+          ": " + df2.format(edge.getLength()) + " m", x2, 190);
         g.drawString(trafficSimulator.getMessage("indicator.averageSpeed") +
           ": " + df2.format(eInd.getAverageSpeed()) + " Km/h", x2, 210);
         g.drawString(trafficSimulator.getMessage("indicator.travelTime") +
@@ -490,7 +538,7 @@ public class MapViewer extends javax.swing.JPanel
         g.drawString(trafficSimulator.getMessage("indicator.capacity") +
           ": " + df2.format(eInd.getCapacity()) + " vh / h", x2, 250);
         g.drawString(trafficSimulator.getMessage("indicator.vehicleCount") +
-          ": " + df0.format(eInd.vehicleCount), x2, 270);
+          ": " + df0.format(eInd.getVehicleCount()), x2, 270);
         g.drawString(trafficSimulator.getMessage("indicator.requiredTime") +
           ": " + df2.format(eInd.getVehiclesRequiredTime()) + " h", x2, 290);
       }
@@ -498,8 +546,8 @@ public class MapViewer extends javax.swing.JPanel
       {
         VehicleGroup vehicleGroup = ((VehicleGroup)feature);
         VehicleGroup.Indicators vInd = vehicleGroup.getIndicators();
-        g.setColor(new Color(255, 255, 230));
-        g.setStroke(new BasicStroke(1));
+        g.setColor(PANEL_COLOR);
+        g.setStroke(STROKE1);
         g.fillRoundRect(x, 170, PANEL_WIDTH, 110, 6, 6);
         g.setColor(Color.ORANGE);
         g.drawRoundRect(x, 170, PANEL_WIDTH, 110, 6, 6);
@@ -518,9 +566,29 @@ public class MapViewer extends javax.swing.JPanel
     }
   }
 
+  /**
+   * Paints a base layer. Only the features of the visible tiles are read
+   * when the layer is stored in tiles.
+   */
   protected void paintGenericLayer(Graphics2D g, GenericLayer layer)
   {
-    for (Feature feature : layer.getFeatures())
+    List<GenericFeature> features;
+    try
+    {
+      features = layer.getFeatures(projector.getWindow());
+      failedLayers.remove(layer);
+    }
+    catch (final IOException ex)
+    {
+      // the tiles of the layer can not be read, report it once
+      if (failedLayers.add(layer) && trafficSimulator != null)
+      {
+        SwingUtilities.invokeLater(() -> trafficSimulator.showError(
+          trafficSimulator, layer.getLabel(), ex));
+      }
+      return;
+    }
+    for (Feature feature : features)
     {
       Geometry geometry = feature.getGeometry();
       if (geometry.getBoundingBox().overlaps(projector.getWindow()))
@@ -542,91 +610,110 @@ public class MapViewer extends javax.swing.JPanel
     }
   }
 
+  /**
+   * Paints an edge. The segments and the arrows of the edge are collected
+   * in paths and drawn at once, so the number of draw calls (and the
+   * objects allocated by Java2D for each of them) does not depend on the
+   * number of segments.
+   */
   protected void paintEdge(Graphics2D g, Edge edge)
   {
     Simulation simulation = getSimulation();
     Indicators indicators = simulation.getIndicators();
     LineString lineString = edge.getLineString();
-    List<Point3d> vertices = lineString.getVertices();
-    for (int i = 0; i < vertices.size() - 1; i++)
-    {
-      Point3d pt1 = vertices.get(i);
-      Point3d pt2 = vertices.get(i + 1);
-      projector.project(pt1, dp1);
-      projector.project(pt2, dp2);
-      if (indicatorsVisible)
-      {
-        Edge.Indicators edgeInd = edge.getIndicators();
-        if (edgeInd.vehicleCount > 0)
-        {
-          g.setStroke(STROKE5);
-          float factor = 0.9f * edgeInd.vehicleCount /
-            indicators.maxVehiclesPerEdge;
-          if (factor > 0.9f) factor = 0.9f;
-          g.setColor(new Color(1, 0, 0, factor + 0.1f));
-          g.drawLine(dp1.x, dp1.y, dp2.x, dp2.y);
-        }
-      }
-      if (edge.getLanes() == 1)
+    int count = lineString.getVertexCount();
+    if (count < 2) return;
+
+    segmentsPath.reset();
+    arrowsPath.reset();
+    projector.project(lineString.getX(0), lineString.getY(0), dp2);
+    for (int i = 1; i < count; i++)
+    {
+      dp1.setLocation(dp2);
+      projector.project(lineString.getX(i), lineString.getY(i), dp2);
+      segmentsPath.moveTo(dp1.x, dp1.y);
+      segmentsPath.lineTo(dp2.x, dp2.y);
+      addArrow(arrowsPath);
+    }
+
+    if (indicatorsVisible)
+    {
+      int vehicleCount = edge.getVehicleCount();
+      if (vehicleCount > 0)
       {
-        g.setStroke(STROKE1);
+        g.setStroke(STROKE5);
+        float factor = 0.9f * vehicleCount /
+          indicators.maxVehiclesPerEdge;
+        if (factor > 0.9f) factor = 0.9f;
+        g.setColor(VEHICLES_COLORS[(int)((factor + 0.1f) * 255 + 0.5f)]);
+        g.draw(segmentsPath);
       }
-      else
+    }
+    g.setStroke(getLaneStroke(edge.getLanes()));
+    if (selection.contains(edge))
+    {
+      g.setColor(Color.BLUE);
+    }
+    else
+    {
+      if (congestionVisible && simulation.getDuration() > 0.0 &&
+        edge.getIndicators().getVehiclesRequiredTime() >
+        simulation.getDuration())
       {
-        g.setStroke(new BasicStroke(edge.getLanes(),
-          BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g.setColor(Color.BLACK);
+        g.setStroke(STROKE3);
       }
-      if (selection.contains(edge))
+      else if (edge.getDelay() > 0.0)
       {
-        g.setColor(Color.BLUE);
+        g.setColor(Color.ORANGE);
       }
       else
       {
-        if (congestionVisible && simulation.getDuration() > 0.0 &&
-          edge.getIndicators().getVehiclesRequiredTime() >
-          simulation.getDuration())
-        {
-          g.setColor(Color.BLACK);
-          g.setStroke(STROKE3);
-        }
-        else if (edge.getDelay() > 0.0)
-        {
-          g.setColor(Color.ORANGE);
-        }
-        else
-        {
-          g.setColor(Color.GREEN);
-        }
-      }
-      if (edgesVisible)
-      {
-        g.drawLine(dp1.x, dp1.y, dp2.x, dp2.y);
-        paintArrows(g);
+        g.setColor(Color.GREEN);
       }
     }
+    if (edgesVisible)
+    {
+      g.draw(segmentsPath);
+      g.draw(arrowsPath);
+    }
   }
 
-  protected void paintArrows(Graphics2D g)
+  /**
+   * Adds to path an arrow in the middle of the segment dp1-dp2.
+   */
+  private void addArrow(Path2D path)
   {
     double distance = dp1.distance(dp2);
     if (distance > 10)
     {
       int xm = (dp1.x + dp2.x) / 2;
       int ym = (dp1.y + dp2.y) / 2;
-      Vector2d v = new Vector2d(dp2.x - dp1.x, dp2.y - dp1.y);
-      v.normalize();
-      Vector2d vc1 = new Vector2d(-v.y, v.x);
-      Vector2d vc2 = new Vector2d(v.y, -v.x);
-      v.scale(6);
-      vc1.scale(4);
-      vc2.scale(4);
-      g.drawLine((int)(xm + v.x), (int)(ym + v.y),
-         (int)(xm + vc1.x), (int)(ym + vc1.y));
-      g.drawLine((int)(xm + v.x), (int)(ym + v.y),
-         (int)(xm + vc2.x), (int)(ym + vc2.y));
+      // unit vector in the edge direction
+      double vx = (dp2.x - dp1.x) / distance;
+      double vy = (dp2.y - dp1.y) / distance;
+      int tipX = (int)(xm + 6 * vx);
+      int tipY = (int)(ym + 6 * vy);
+      path.moveTo(tipX, tipY);
+      path.lineTo((int)(xm - 4 * vy), (int)(ym + 4 * vx));
+      path.moveTo(tipX, tipY);
+      path.lineTo((int)(xm + 4 * vy), (int)(ym - 4 * vx));
     }
   }
 
+  private static BasicStroke getLaneStroke(int lanes)
+  {
+    if (lanes <= 1) return STROKE1;
+    if (lanes < LANE_STROKES.length) return LANE_STROKES[lanes];
+    return createLaneStroke(lanes);
+  }
+
+  private static BasicStroke createLaneStroke(int lanes)
+  {
+    return new BasicStroke(lanes, BasicStroke.CAP_ROUND,
+      BasicStroke.JOIN_ROUND);
+  }
+
   protected void paintVehicleGroup(Graphics2D g, VehicleGroup vehicleGroup)
   {
     Simulation simulation = getSimulation();
@@ -704,26 +791,21 @@ public class MapViewer extends javax.swing.JPanel
 
   protected void paintLineString(Graphics2D g, LineString lineString)
   {
-    List<Point3d> points = lineString.getVertices();
-    for (int i = 0; i < points.size() - 1; i++)
-    {
-      Point3d pt1 = points.get(i);
-      Point3d pt2 = points.get(i + 1);
-      projector.project(pt1, dp1);
-      projector.project(pt2, dp2);
-      g.drawLine(dp1.x, dp1.y, dp2.x, dp2.y);
-    }
+    paintVertices(g, lineString);
   }
 
   protected void paintPolygon(Graphics2D g, Polygon polygon)
   {
-    List<Point3d> points = polygon.getVertices();
-    for (int i = 0; i < points.size() - 1; i++)
+    paintVertices(g, polygon);
+  }
+
+  private void paintVertices(Graphics2D g, PackedGeometry geometry)
+  {
+    int count = geometry.getVertexCount();
+    for (int i = 0; i < count - 1; i++)
     {
-      Point3d pt1 = points.get(i);
-      Point3d pt2 = points.get(i + 1);
-      projector.project(pt1, dp1);
-      projector.project(pt2, dp2);
+      projector.project(geometry.getX(i), geometry.getY(i), dp1);
+      projector.project(geometry.getX(i + 1), geometry.getY(i + 1), dp2);
       g.drawLine(dp1.x, dp1.y, dp2.x, dp2.y);
     }
   }
@@ -781,18 +863,13 @@ public class MapViewer extends javax.swing.JPanel
   {
     if (mouseStart != null)
     {
-      java.awt.Point mouse = e.getPoint();
-      Point3d w1 = new Point3d();
-      Point3d w2 = new Point3d();
-
-      projector.unproject(mouseStart, w1);
-      projector.unproject(mouse, w2);
-      Vector3d vector = new Vector3d();
+      projector.unproject(mouseStart, mouseWorld1);
+      projector.unproject(e.getX(), e.getY(), mouseWorld2);
 
-      vector.sub(w1, w2);
+      mouseVector.sub(mouseWorld1, mouseWorld2);
 
-      window.move(vector);
-      mouseStart = mouse;
+      window.move(mouseVector);
+      mouseStart.setLocation(e.getX(), e.getY());
       repaint();
     }
   }
@@ -810,16 +887,14 @@ public class MapViewer extends javax.swing.JPanel
     double units = e.getPreciseWheelRotation();
     if (units != 0)
     {
-      java.awt.Point mouse = e.getPoint();
-      Point3d world = new Point3d();
-      projector.unproject(mouse, world);
+      projector.unproject(e.getX(), e.getY(), mouseWorld1);
 
-      Vector3d vector = new Vector3d(world);
-      vector.negate();
-      window.move(vector);
+      mouseVector.set(mouseWorld1);
+      mouseVector.negate();
+      window.move(mouseVector);
       window.scale(1 + units / 10.0);
-      vector.negate();
-      window.move(vector);
+      mouseVector.negate();
+      window.move(mouseVector);
       repaint();
     }
   }
@@ -898,7 +973,12 @@ public class MapViewer extends javax.swing.JPanel
     @Override
     public boolean removeAll(Collection<?> c)
     {
-      boolean removed = super.removeAll(c);
+      // HashSet.removeAll may call c.contains for each selected feature
+      boolean removed = false;
+      for (Object o : c)
+      {
+        removed |= super.remove(o);
+      }
       repaint();
       return removed;
     }
@@ -87,14 +87,24 @@ public class Projector
   
   public void project(Point3d world, java.awt.Point device)
   {
-    device.x = (int)Math.round(world.x * sx + ox);
-    device.y = (int)Math.round(height - (world.y * sy + oy));
+    project(world.x, world.y, device);
+  }
+
+  public void project(double x, double y, java.awt.Point device)
+  {
+    device.x = (int)Math.round(x * sx + ox);
+    device.y = (int)Math.round(height - (y * sy + oy));
   }
 
   public void unproject(java.awt.Point device, Point3d world)
   {
-    world.x = (device.x - ox) / sx;
-    world.y = (height - device.y - oy) / sy;
+    unproject(device.x, device.y, world);
+  }
+
+  public void unproject(int x, int y, Point3d world)
+  {
+    world.x = (x - ox) / sx;
+    world.y = (height - y - oy) / sy;
     world.z = 0;
   }
   
@@ -32,16 +32,16 @@ package org.santfeliu.trafsim;
 
 import org.santfeliu.trafsim.geom.LineString;
 import org.santfeliu.trafsim.geom.Point;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3d;
 import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.geom.CoordinateArena;
 import org.santfeliu.trafsim.geom.Geometry;
 
 /**
@@ -50,66 +50,356 @@ import org.santfeliu.trafsim.geom.Geometry;
  */
 public class RoadGraph extends Layer<Edge>
 {
-  private final HashMap<Point3d, Node> nodes = new HashMap<Point3d, Node>();
-  private final ArrayList<Edge> edges = new ArrayList<Edge>();
+  public static final double DEFAULT_QUANTIZATION_STEP = 0.001; // meters
+  private static final Edge[] NO_EDGES = new Edge[0];
+  private static final long NO_KEY = Long.MIN_VALUE;
+  private final LongHashMap<Node> nodes = new LongHashMap<Node>();
+  // quantized position of the first node, the node keys are relative to it
+  private long originX;
+  private long originY;
+  private final FeatureList<Edge> edges = new FeatureList<Edge>();
+  // dense node ids, the ids of removed nodes are reused
+  private int nodeIdCount;
+  private int[] freeNodeIds = new int[16];
+  private int freeNodeIdCount;
+  // edges added or moved during a transaction, linked on commit
+  private final ArrayList<Edge> unlinkedEdges = new ArrayList<Edge>();
+  private final EdgeStore store;
+  private final CoordinateArena coordinateArena;
+  private double quantizationStep = DEFAULT_QUANTIZATION_STEP;
+
+  public RoadGraph()
+  {
+    this(false);
+  }
+
+  /**
+   * @param offHeap if true, the edge attributes and the coordinates of the
+   * edges are stored outside the java heap
+   */
+  public RoadGraph(boolean offHeap)
+  {
+    this(offHeap ? new BufferEdgeStore() : new ArrayEdgeStore(),
+      offHeap ? new CoordinateArena() : null);
+  }
+
+  /**
+   * @param store the edge attribute store
+   * @param coordinateArena the storage for the coordinates of new edges, or
+   * null to keep them in the java heap
+   */
+  public RoadGraph(EdgeStore store, CoordinateArena coordinateArena)
+  {
+    this.store = store;
+    this.coordinateArena = coordinateArena;
+  }
+
+  /**
+   * Prebuilt network topology. Nodes and edges are identified by their
+   * index. The attributes of edge i are those of id i in the edge store.
+   */
+  public interface Topology
+  {
+    int getNodeCount();
+
+    Point3d getNodePosition(int node, Point3d position);
+
+    int getOutDegree(int node);
+
+    int getOutEdge(int node, int index);
+
+    int getInDegree(int node);
+
+    int getInEdge(int node, int index);
+
+    int getEdgeCount();
+
+    int getSourceNode(int edge);
+
+    int getTargetNode(int edge);
+
+    LineString getLineString(int edge);
+  }
+
+  /**
+   * Loads a prebuilt network into this graph, which must be empty. The
+   * nodes are linked by index, without looking up edge endpoints.
+   *
+   * @param topology the network topology
+   */
+  public void load(Topology topology)
+  {
+    int nodeCount = topology.getNodeCount();
+    int edgeCount = topology.getEdgeCount();
+    if (!edges.isEmpty() || store.size() != edgeCount)
+      throw new IllegalStateException("Edge store does not match topology");
+
+    Edge[] edgeArray = new Edge[edgeCount];
+    edges.ensureCapacity(edgeCount);
+    for (int i = 0; i < edgeCount; i++)
+    {
+      Edge edge = new Edge(i, topology.getLineString(i));
+      edgeArray[i] = edge;
+      edges.add(edge);
+    }
+
+    Point3d position = new Point3d();
+    Node[] nodeArray = new Node[nodeCount];
+    clearNodes();
+    nodeIdCount = nodeCount;
+    for (int i = 0; i < nodeCount; i++)
+    {
+      topology.getNodePosition(i, position);
+      if (i == 0) setNodeKeyOrigin(position.x, position.y);
+      long key = getValidNodeKey(position.x, position.y);
+      Node node = new Node(key, i, new Point(position));
+      int outDegree = topology.getOutDegree(i);
+      if (outDegree > 0)
+      {
+        node.outEdges = new Edge[outDegree];
+        for (int j = 0; j < outDegree; j++)
+        {
+          node.outEdges[j] = edgeArray[topology.getOutEdge(i, j)];
+        }
+        node.outDegree = outDegree;
+      }
+      int inDegree = topology.getInDegree(i);
+      if (inDegree > 0)
+      {
+        node.inEdges = new Edge[inDegree];
+        for (int j = 0; j < inDegree; j++)
+        {
+          node.inEdges[j] = edgeArray[topology.getInEdge(i, j)];
+        }
+        node.inDegree = inDegree;
+      }
+      nodeArray[i] = node;
+      nodes.put(key, node);
+    }
+
+    for (int i = 0; i < edgeCount; i++)
+    {
+      Edge edge = edgeArray[i];
+      edge.sourceNode = nodeArray[topology.getSourceNode(i)];
+      edge.targetNode = nodeArray[topology.getTargetNode(i)];
+    }
+    invalidateSpatialIndex();
+  }
 
   public class Node
   {
+    final long key;
+    final int id;
     Point point;
-    List<Edge> inEdges = new ArrayList<Edge>();
-    List<Edge> outEdges = new ArrayList<Edge>();
+    // adjacent edges, only the first inDegree/outDegree are used
+    Edge[] inEdges = NO_EDGES;
+    Edge[] outEdges = NO_EDGES;
+    int inDegree;
+    int outDegree;
 
-    public Node(Point point)
+    Node(long key, int id, Point point)
     {
+      this.key = key;
+      this.id = id;
       this.point = point;
     }
 
+    /**
+     * @return a dense id for this node, lower than getNodeIdCount(). The id
+     * of a removed node may be given to a new node.
+     */
+    public int getId()
+    {
+      return id;
+    }
+
     public Point getPoint()
     {
       return point;
     }
 
+    public int getInDegree()
+    {
+      return inDegree;
+    }
+
+    public Edge getInEdge(int index)
+    {
+      if (index >= inDegree)
+        throw new IndexOutOfBoundsException("Index: " + index);
+      return inEdges[index];
+    }
+
+    public int getOutDegree()
+    {
+      return outDegree;
+    }
+
+    public Edge getOutEdge(int index)
+    {
+      if (index >= outDegree)
+        throw new IndexOutOfBoundsException("Index: " + index);
+      return outEdges[index];
+    }
+
+    /**
+     * @return a read only view of the edges that end at this node
+     */
     public List<Edge> getInEdges()
     {
-      return inEdges;
+      return new AbstractList<Edge>()
+      {
+        @Override
+        public Edge get(int index)
+        {
+          return getInEdge(index);
+        }
+
+        @Override
+        public int size()
+        {
+          return inDegree;
+        }
+      };
     }
 
+    /**
+     * @return a read only view of the edges that start at this node
+     */
     public List<Edge> getOutEdges()
     {
-      return outEdges;
+      return new AbstractList<Edge>()
+      {
+        @Override
+        public Edge get(int index)
+        {
+          return getOutEdge(index);
+        }
+
+        @Override
+        public int size()
+        {
+          return outDegree;
+        }
+      };
     }
 
     public boolean isConnectedTo(Node next)
     {
-      boolean connected = false;
-      Iterator<Edge> iter = outEdges.iterator();
-      while (iter.hasNext() && !connected)
+      for (int i = 0; i < outDegree; i++)
+      {
+        if (outEdges[i].targetNode == next) return true;
+      }
+      return false;
+    }
+
+    boolean isIsolated()
+    {
+      return inDegree == 0 && outDegree == 0;
+    }
+
+    void addInEdge(Edge edge)
+    {
+      if (indexOf(inEdges, inDegree, edge) == -1)
       {
-        Edge edge = iter.next();
-        connected = edge.getTargetNode() == next;
+        inEdges = ensureCapacity(inEdges, inDegree + 1);
+        inEdges[inDegree++] = edge;
       }
-      return connected;
     }
+
+    void addOutEdge(Edge edge)
+    {
+      if (indexOf(outEdges, outDegree, edge) == -1)
+      {
+        outEdges = ensureCapacity(outEdges, outDegree + 1);
+        outEdges[outDegree++] = edge;
+      }
+    }
+
+    void removeInEdge(Edge edge)
+    {
+      int index = indexOf(inEdges, inDegree, edge);
+      if (index != -1)
+      {
+        System.arraycopy(inEdges, index + 1, inEdges, index,
+          inDegree - index - 1);
+        inEdges[--inDegree] = null;
+      }
+    }
+
+    void removeOutEdge(Edge edge)
+    {
+      int index = indexOf(outEdges, outDegree, edge);
+      if (index != -1)
+      {
+        System.arraycopy(outEdges, index + 1, outEdges, index,
+          outDegree - index - 1);
+        outEdges[--outDegree] = null;
+      }
+    }
+  }
+
+  private static int indexOf(Edge[] edges, int size, Edge edge)
+  {
+    for (int i = 0; i < size; i++)
+    {
+      if (edges[i] == edge) return i;
+    }
+    return -1;
+  }
+
+  private static Edge[] ensureCapacity(Edge[] edges, int capacity)
+  {
+    if (capacity <= edges.length) return edges;
+    return Arrays.copyOf(edges, Math.max(capacity, 2 * edges.length));
   }
 
+  /**
+   * An edge of the graph. The attributes of the edge are kept in the
+   * EdgeStore and its coordinates in the CoordinateArena, if any, while it
+   * is in the graph. Otherwise they are kept in the edge, so the edges
+   * that are not in the graph, like the duplicates made to edit an edge or
+   * the removed edges kept to undo, take no space in the store nor in the
+   * arena, that reuse their space for other edges.
+   */
   public class Edge extends Feature
   {
+    int id;
     Node sourceNode;
     Node targetNode;
     LineString lineString;
-    int speed; // Km/h
-    int lanes; // number of lanes
-    double delay; // seconds
     Indicators indicators;
+    boolean linkPending;
+    // attributes of the edge while it is not stored
+    private int speed;
+    private int lanes;
+    private double delay;
+    private int vehicleCount;
 
     Edge(LineString lineString, int speed, int lanes, double delay)
     {
+      this.id = -1;
       this.lineString = lineString;
       this.speed = speed;
       this.lanes = lanes;
       this.delay = delay;
     }
 
+    Edge(int id, LineString lineString)
+    {
+      this.id = id;
+      this.lineString = lineString;
+    }
+
+    /**
+     * @return the index of the attributes of this edge in the EdgeStore,
+     * or -1 if this edge is not in the graph
+     */
+    public int getId()
+    {
+      return id;
+    }
+
     public LineString getLineString()
     {
       return lineString;
@@ -127,32 +417,54 @@ public class RoadGraph extends Layer<Edge>
 
     public int getSpeed()
     {
-      return speed;
+      return id == -1 ? speed : store.getSpeed(id);
     }
 
     public void setSpeed(int speed)
     {
-      this.speed = speed;
+      if (id == -1) this.speed = speed;
+      else store.setSpeed(id, speed);
     }
 
     public void setLanes(int lanes)
     {
-      this.lanes = lanes;
+      if (id == -1) this.lanes = lanes;
+      else store.setLanes(id, lanes);
     }
 
     public int getLanes()
     {
-      return lanes;
+      return id == -1 ? lanes : store.getLanes(id);
     }
 
     public double getDelay()
     {
-      return delay;
+      return id == -1 ? delay : store.getDelay(id);
     }
 
     public void setDelay(double delay)
     {
-      this.delay = delay;
+      if (id == -1) this.delay = delay;
+      else store.setDelay(id, delay);
+    }
+
+    /**
+     * @return the length in meters of the line string of this edge
+     */
+    public double getLength()
+    {
+      return id == -1 ? lineString.getLength() : store.getLength(id);
+    }
+
+    public int getVehicleCount()
+    {
+      return id == -1 ? vehicleCount : store.getVehicleCount(id);
+    }
+
+    public void setVehicleCount(int vehicleCount)
+    {
+      if (id == -1) this.vehicleCount = vehicleCount;
+      else store.setVehicleCount(id, vehicleCount);
     }
 
     public void reverse()
@@ -160,12 +472,12 @@ public class RoadGraph extends Layer<Edge>
       if (isLinked())
       {
         unlinkNodes();
-        Collections.reverse(lineString.getVertices());
-        linkNodes();
+        lineString.reverse();
+        relinkNodes();
       }
       else
       {
-        Collections.reverse(lineString.getVertices());
+        lineString.reverse();
       }
     }
 
@@ -180,15 +492,22 @@ public class RoadGraph extends Layer<Edge>
     {
       if (geometry instanceof LineString)
       {
+        if (coordinateArena != null && id != -1)
+        {
+          coordinateArena.release(lineString);
+          coordinateArena.store((LineString)geometry);
+        }
         if (isLinked())
         {
           unlinkNodes();
           lineString = (LineString)geometry;
-          linkNodes();
+          relinkNodes();
+          invalidateSpatialIndex();
         }
         else
         {
           lineString = (LineString)geometry;
+          if (id != -1) store.setLength(id, lineString.getLength());
         }
       }
     }
@@ -202,27 +521,32 @@ public class RoadGraph extends Layer<Edge>
     @Override
     public void add()
     {
-      if (!isLinked())
+      if (isRemoved())
       {
-        linkNodes();
+        if (id == -1) allocate();
+        relinkNodes();
         edges.add(this);
+        invalidateSpatialIndex();
       }
     }
 
     @Override
     public void remove()
     {
-      if (isLinked())
+      if (!isRemoved())
       {
         unlinkNodes();
+        linkPending = false;
         edges.remove(this);
+        release();
+        invalidateSpatialIndex();
       }
     }
 
     @Override
     public boolean isRemoved()
     {
-      return !isLinked();
+      return !isLinked() && !linkPending;
     }
 
     @Override
@@ -232,43 +556,35 @@ public class RoadGraph extends Layer<Edge>
       {
         unlinkNodes();
         super.transform(matrix);
-        linkNodes();
+        relinkNodes();
       }
       else
       {
         super.transform(matrix);
+        if (id != -1) store.setLength(id, lineString.getLength());
       }
     }
 
     public Edge duplicate()
     {
-      return new Edge(lineString.duplicate(), speed, lanes, delay);
+      return new Edge(lineString.duplicate(),
+        getSpeed(), getLanes(), getDelay());
     }
 
     @Override
     public void loadAttributes(Map attributes)
     {
-      attributes.put("SPEED", speed);
-      attributes.put("LANES", lanes);
-      attributes.put("DELAY", delay);
-      if (indicators == null)
-      {
-        attributes.put("IND_VEHICLE_COUNT", 0);
-        attributes.put("IND_AVG_SPEED", 0);
-        attributes.put("IND_TRAVEL_TIME", 0);
-        attributes.put("IND_REQUIRED_TIME", 0);      
-        attributes.put("IND_CAPACITY", 0);        
-      }
-      else
-      {
-        attributes.put("IND_VEHICLE_COUNT", indicators.vehicleCount);
-        attributes.put("IND_CAPACITY", indicators.getCapacity());
-        attributes.put("IND_AVG_SPEED", indicators.getAverageSpeed());
-        attributes.put("IND_TRAVEL_TIME", 
-          3600 * indicators.getTravelTime()); // seconds
-        attributes.put("IND_REQUIRED_TIME", 
-          3600 * indicators.getVehiclesRequiredTime()); // seconds
-      }
+      attributes.put("SPEED", getSpeed());
+      attributes.put("LANES", getLanes());
+      attributes.put("DELAY", getDelay());
+      Indicators ind = getIndicators();
+      attributes.put("IND_VEHICLE_COUNT", ind.getVehicleCount());
+      attributes.put("IND_CAPACITY", ind.getCapacity());
+      attributes.put("IND_AVG_SPEED", ind.getAverageSpeed());
+      attributes.put("IND_TRAVEL_TIME",
+        3600 * ind.getTravelTime()); // seconds
+      attributes.put("IND_REQUIRED_TIME",
+        3600 * ind.getVehiclesRequiredTime()); // seconds
     }
 
     public Indicators getIndicators()
@@ -282,65 +598,132 @@ public class RoadGraph extends Layer<Edge>
       return sourceNode != null;
     }
 
+    /**
+     * Moves the attributes of this edge to the EdgeStore, and its
+     * coordinates to the CoordinateArena, when it is added.
+     */
+    private void allocate()
+    {
+      id = store.allocate();
+      if (coordinateArena != null) coordinateArena.store(lineString);
+      store.setSpeed(id, speed);
+      store.setLanes(id, lanes);
+      store.setDelay(id, delay);
+      store.setVehicleCount(id, vehicleCount);
+      store.setLength(id, lineString.getLength());
+    }
+
+    /**
+     * Moves the attributes and the coordinates of this edge back to the
+     * edge when it is removed, releasing its id and its space.
+     */
+    private void release()
+    {
+      speed = store.getSpeed(id);
+      lanes = store.getLanes(id);
+      delay = store.getDelay(id);
+      vehicleCount = store.getVehicleCount(id);
+      store.release(id);
+      id = -1;
+      if (coordinateArena != null) coordinateArena.release(lineString);
+    }
+
+    /**
+     * Links the nodes of this edge, or defers it until the end of the
+     * current transaction.
+     */
+    void relinkNodes()
+    {
+      if (isUpdating())
+      {
+        if (!linkPending)
+        {
+          linkPending = true;
+          unlinkedEdges.add(this);
+        }
+      }
+      else
+      {
+        linkNodes();
+      }
+    }
+
     void linkNodes()
     {
-      List<Point3d> vertices = lineString.getVertices();
-      if (vertices.size() < 1) return;
+      store.setLength(id, lineString.getLength());
+      int count = lineString.getVertexCount();
+      if (count < 1) return;
 
-      // link source node
-      Point3d startPoint = vertices.get(0);
-      sourceNode = nodes.get(startPoint);
-      if (sourceNode == null)
+      // get both keys before linking, as they may be invalid
+      if (nodes.isEmpty())
       {
-        startPoint = new Point3d(startPoint); //immutable copy
-        sourceNode = new Node(new Point(startPoint));
-        nodes.put(startPoint, sourceNode);
+        setNodeKeyOrigin(lineString.getX(0), lineString.getY(0));
       }
-      if (!sourceNode.outEdges.contains(this))
+      int last = count - 1;
+      long startKey =
+        getValidNodeKey(lineString.getX(0), lineString.getY(0));
+      long endKey =
+        getValidNodeKey(lineString.getX(last), lineString.getY(last));
+
+      // link source node
+      sourceNode = nodes.get(startKey);
+      if (sourceNode == null)
       {
-        sourceNode.outEdges.add(this);
+        Point3d startPoint = lineString.getVertex(0, new Point3d());
+        sourceNode = new Node(startKey, allocateNodeId(),
+          new Point(startPoint));
+        nodes.put(startKey, sourceNode);
       }
+      sourceNode.addOutEdge(this);
 
       // link target node
-      Point3d endPoint = vertices.get(vertices.size() - 1);
-      targetNode = nodes.get(endPoint);
+      targetNode = nodes.get(endKey);
       if (targetNode == null)
       {
-        endPoint = new Point3d(endPoint); // immutable copy
-        targetNode = new Node(new Point(endPoint));
-        nodes.put(endPoint, targetNode);
-      }
-      if (!targetNode.inEdges.contains(this))
-      {
-        targetNode.inEdges.add(this);
+        Point3d endPoint = lineString.getVertex(last, new Point3d());
+        targetNode = new Node(endKey, allocateNodeId(),
+          new Point(endPoint));
+        nodes.put(endKey, targetNode);
       }
+      targetNode.addInEdge(this);
     }
 
     void unlinkNodes()
     {
       if (sourceNode != null)
       {
-        sourceNode.outEdges.remove(this);
-        if (sourceNode.inEdges.isEmpty() && sourceNode.outEdges.isEmpty())
+        sourceNode.removeOutEdge(this);
+        if (sourceNode.isIsolated())
         {
-          nodes.remove(sourceNode.point.getPosition());
+          removeNode(sourceNode);
         }
         sourceNode = null;
       }
       if (targetNode != null)
       {
-        targetNode.inEdges.remove(this);
-        if (targetNode.inEdges.isEmpty() && targetNode.outEdges.isEmpty())
+        targetNode.removeInEdge(this);
+        if (targetNode.isIsolated())
         {
-          nodes.remove(targetNode.point.getPosition());
+          removeNode(targetNode);
         }
         targetNode = null;
       }
     }
 
+    /**
+     * View of the indicators of this edge stored in the EdgeStore.
+     */
     public class Indicators
     {
-      public int vehicleCount;
+      public int getVehicleCount()
+      {
+        return Edge.this.getVehicleCount();
+      }
+
+      public void setVehicleCount(int vehicleCount)
+      {
+        Edge.this.setVehicleCount(vehicleCount);
+      }
 
       /**
        *
@@ -375,13 +758,12 @@ public class RoadGraph extends Layer<Edge>
        */
       public double getVehiclesRequiredTime()
       {
-        if (vehicleCount == 0) return 0;
-        return vehicleCount / getCapacity();
+        return RouteMeter.getRequiredTime(Edge.this);
       }
 
       public void reset()
       {
-        vehicleCount = 0;
+        Edge.this.setVehicleCount(0);
       }
     }
   }
@@ -396,16 +778,130 @@ public class RoadGraph extends Layer<Edge>
     return nodes.values();
   }
 
+  public Node getNode(Point3d point)
+  {
+    long key = getNodeKey(point.x, point.y);
+    return key == NO_KEY ? null : nodes.get(key);
+  }
+
+  public double getQuantizationStep()
+  {
+    return quantizationStep;
+  }
+
+  /**
+   * Sets the size of the cells used to identify nodes. Edge endpoints that
+   * fall in the same cell (ignoring z) are linked to the same node.
+   *
+   * @param quantizationStep the cell size in meters
+   */
+  public void setQuantizationStep(double quantizationStep)
+  {
+    if (quantizationStep <= 0)
+      throw new IllegalArgumentException("Invalid quantization step");
+
+    if (quantizationStep != this.quantizationStep)
+    {
+      discardPendingLinks();
+      for (Edge edge : edges)
+      {
+        edge.sourceNode = null;
+        edge.targetNode = null;
+      }
+      clearNodes();
+      this.quantizationStep = quantizationStep;
+      for (Edge edge : edges)
+      {
+        edge.linkNodes();
+      }
+    }
+  }
+
+  /**
+   * Packs the quantized x and y coordinates, relative to the cell of the
+   * first node, into a long (z is ignored). Each relative coordinate must
+   * fit in 32 bits, so the keys are unique and only the cells closer than
+   * 2^31 cells to the first node in each direction (2147 Km for a 1 mm
+   * step) have a key.
+   *
+   * @return the key of the cell, or NO_KEY if it is too far from the
+   * first node
+   */
+  long getNodeKey(double x, double y)
+  {
+    long dx = Math.round(x / quantizationStep) - originX;
+    long dy = Math.round(y / quantizationStep) - originY;
+    if (dx <= Integer.MIN_VALUE || dx > Integer.MAX_VALUE ||
+      dy <= Integer.MIN_VALUE || dy > Integer.MAX_VALUE) return NO_KEY;
+    return (dx << 32) | (dy & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Makes the cell of the first node of the graph the origin of the keys.
+   */
+  private void setNodeKeyOrigin(double x, double y)
+  {
+    originX = Math.round(x / quantizationStep);
+    originY = Math.round(y / quantizationStep);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the cell is too far from the
+   * first node
+   */
+  private long getValidNodeKey(double x, double y)
+  {
+    long key = getNodeKey(x, y);
+    if (key == NO_KEY)
+      throw new IllegalArgumentException("Node too far from the graph " +
+        "for the quantization step: (" + x + ", " + y + ")");
+    return key;
+  }
+
   public Collection<Edge> getEdges()
   {
     return edges;
   }
 
+  public EdgeStore getEdgeStore()
+  {
+    return store;
+  }
+
+  public boolean isOffHeap()
+  {
+    return coordinateArena != null;
+  }
+
+  /**
+   * @return the bytes allocated outside the java heap by this graph
+   */
+  public long getOffHeapMemoryUsage()
+  {
+    long usage = 0;
+    if (store.isOffHeap()) usage += store.getMemoryUsage();
+    if (coordinateArena != null) usage += coordinateArena.getMemoryUsage();
+    return usage;
+  }
+
+  public void resetIndicators()
+  {
+    store.resetVehicleCounts();
+  }
+
   public int getNodeCount()
   {
     return nodes.size();
   }
 
+  /**
+   * @return the size of an array indexed by node id
+   */
+  public int getNodeIdCount()
+  {
+    return nodeIdCount;
+  }
+
   public int getEdgeCount()
   {
     return edges.size();
@@ -426,34 +922,89 @@ public class RoadGraph extends Layer<Edge>
   @Override
   public void clear()
   {
-    nodes.clear();
+    discardPendingLinks();
+    clearNodes();
     for (Edge edge : edges)
     {
       edge.sourceNode = null;
       edge.targetNode = null;
+      edge.release();
     }
     edges.clear();
+    invalidateSpatialIndex();
   }
 
   public void snapToGrid(double gridSize)
   {
     ArrayList<Edge> edgeList = new ArrayList<Edge>();
     edgeList.addAll(edges);
-    nodes.clear();
+    discardPendingLinks();
+    clearNodes();
     edges.clear();
     for (Edge edge : edgeList)
     {
-      List<Point3d> vertices = edge.getLineString().getVertices();
-      Point3d startPoint = vertices.get(0);
-      Point3d endPoint = vertices.get(vertices.size() - 1);
+      LineString lineString = edge.getLineString();
+      int last = lineString.getVertexCount() - 1;
+      Point3d startPoint = lineString.getVertex(0, new Point3d());
+      Point3d endPoint = lineString.getVertex(last, new Point3d());
       round(startPoint, gridSize);
       round(endPoint, gridSize);
+      lineString.setVertex(0, startPoint);
+      lineString.setVertex(last, endPoint);
       if (!startPoint.equals(endPoint))
       {
         edge.linkNodes();
         edges.add(edge);
       }
     }
+    invalidateSpatialIndex();
+  }
+
+  @Override
+  protected void endUpdate()
+  {
+    for (Edge edge : unlinkedEdges)
+    {
+      if (edge.linkPending)
+      {
+        edge.linkPending = false;
+        edge.linkNodes();
+      }
+    }
+    unlinkedEdges.clear();
+    super.endUpdate();
+  }
+
+  private int allocateNodeId()
+  {
+    if (freeNodeIdCount > 0) return freeNodeIds[--freeNodeIdCount];
+    return nodeIdCount++;
+  }
+
+  private void removeNode(Node node)
+  {
+    nodes.remove(node.key);
+    if (freeNodeIdCount == freeNodeIds.length)
+    {
+      freeNodeIds = Arrays.copyOf(freeNodeIds, 2 * freeNodeIdCount);
+    }
+    freeNodeIds[freeNodeIdCount++] = node.id;
+  }
+
+  private void clearNodes()
+  {
+    nodes.clear();
+    nodeIdCount = 0;
+    freeNodeIdCount = 0;
+  }
+
+  private void discardPendingLinks()
+  {
+    for (Edge edge : unlinkedEdges)
+    {
+      edge.linkPending = false;
+    }
+    unlinkedEdges.clear();
   }
 
   private void round(Point3d point, double gridSize)
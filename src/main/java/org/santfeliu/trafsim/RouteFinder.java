@@ -32,7 +32,6 @@ package org.santfeliu.trafsim;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import javax.vecmath.Point3d;
 import org.santfeliu.trafsim.RoadGraph.Edge;
@@ -45,15 +44,29 @@ import org.santfeliu.trafsim.RoadGraph.Node;
 public class RouteFinder
 {
   private final RoadGraph roadGraph;
-  private final HashMap<Node, NodeInfo> infos = new HashMap<Node, NodeInfo>();
+  private final SearchState searchState;
   private final PickInfo startPick = new PickInfo();
   private final PickInfo endPick = new PickInfo();
   private Node originNode;
   private Node destinationNode;
+  private int searchGeneration;
 
   public RouteFinder(RoadGraph roadGraph)
+  {
+    this(roadGraph, new SearchState());
+  }
+
+  /**
+   * @param roadGraph the graph to search
+   * @param searchState the search state to use, may be shared with other
+   * RouteFinders used from the same thread. Each search replaces the routes
+   * of the previous one, so getRoute repeats the search from the origin
+   * when another RouteFinder has used the state since.
+   */
+  public RouteFinder(RoadGraph roadGraph, SearchState searchState)
   {
     this.roadGraph = roadGraph;
+    this.searchState = searchState;
   }
 
   public void setOrigin(Point3d origin, double tolerance)
@@ -103,9 +116,13 @@ public class RouteFinder
   {
     if (originNode == null || destinationNode == null) return null;
 
+    if (searchState.getGeneration() != searchGeneration)
+    {
+      findRoutesFrom(originNode);
+    }
+
     Route route = new Route();
 
-    NodeInfo nodeInfo = infos.get(destinationNode);
     if (isRouteInFirstEdge() && isForwardRoute())
     {
       Edge edge = (Edge)startPick.getFeature();
@@ -115,7 +132,7 @@ public class RouteFinder
         endPick.getOnFeaturePoint(),
         endPick.getIndex());
     }
-    else if (nodeInfo.minTime < Double.POSITIVE_INFINITY)
+    else if (searchState.isReached(destinationNode))
     {
       if (startPick.getFeature() != null)
       {
@@ -123,10 +140,11 @@ public class RouteFinder
           startPick.getOnFeaturePoint(), startPick.getIndex());
       }
       List<Edge> reversedEdges = new ArrayList<Edge>();
-      while (nodeInfo.previous != null)
+      Edge previousEdge = searchState.getPreviousEdge(destinationNode);
+      while (previousEdge != null)
       {
-        reversedEdges.add(nodeInfo.previous);
-        nodeInfo = infos.get(nodeInfo.previous.getSourceNode());
+        reversedEdges.add(previousEdge);
+        previousEdge = searchState.getPreviousEdge(previousEdge.sourceNode);
       }
       for (int i = reversedEdges.size() - 1; i >= 0; i--)
       {
@@ -177,37 +195,32 @@ public class RouteFinder
     return null;
   }
 
+  /**
+   * Finds the fastest routes from originNode to all the other nodes
+   * (Dijkstra).
+   */
   protected void findRoutesFrom(Node originNode)
   {
     this.originNode = originNode;
-    infos.clear();
-    for (Node node : roadGraph.getNodes())
-    {
-      infos.put(node, new NodeInfo(node));
-    }
-    ArrayList<Node> list = new ArrayList<Node>();
-    list.add(originNode);
-    NodeInfo nodeInfo = infos.get(originNode);
-    nodeInfo.minTime = 0;
+    searchState.reset(roadGraph.getNodeIdCount());
+    searchState.update(originNode, 0, null);
+    searchGeneration = searchState.getGeneration();
 
-    while (!list.isEmpty())
+    Node node = searchState.poll();
+    while (node != null)
     {
-      Node node = list.remove(list.size() - 1);
-      nodeInfo = infos.get(node);
-
-      for (Edge edge : node.outEdges)
+      double nodeTime = searchState.getTime(node);
+      for (int i = 0; i < node.outDegree; i++)
       {
+        Edge edge = node.outEdges[i];
         Node nextNode = edge.targetNode;
-        NodeInfo nextNodeInfo = infos.get(nextNode);
-
-        double time = nodeInfo.minTime + RouteMeter.getTime(edge);
-        if (time < nextNodeInfo.minTime)
+        double time = nodeTime + RouteMeter.getTime(edge);
+        if (time < searchState.getTime(nextNode))
         {
-          nextNodeInfo.minTime = time;
-          nextNodeInfo.previous = edge;
-          list.add(nextNode);
+          searchState.update(nextNode, time, edge);
         }
       }
+      node = searchState.poll();
     }
   }
 
@@ -235,24 +248,4 @@ public class RouteFinder
     }
     return false;
   }
-
-  protected class NodeInfo
-  {
-    Node node;
-    double minTime;
-    Edge previous;
-
-    public NodeInfo(Node node)
-    {
-      this.node = node;
-      minTime = Double.POSITIVE_INFINITY;
-    }
-
-    @Override
-    public String toString()
-    {
-      return "{" + node.getPoint().getPosition() +
-         ", " + minTime + ", " + node.getOutEdges().size() + "}";
-    }
-  }
 }
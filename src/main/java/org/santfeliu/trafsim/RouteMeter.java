@@ -81,8 +81,7 @@ public class RouteMeter
    */
   public static double getTime(Edge edge)
   {
-    return getTime(edge.getLineString().getLength(),
-      edge.getSpeed(), edge.getDelay());
+    return getTime(edge.getLength(), edge.getSpeed(), edge.getDelay());
   }
 
   /**
@@ -127,7 +126,7 @@ public class RouteMeter
    */
   public static double getAverageSpeed(Edge edge)
   {
-    double distance = edge.getLineString().getLength();
+    double distance = edge.getLength();
     return distance / (1000 * getTime(edge));
   }
 
@@ -138,7 +137,7 @@ public class RouteMeter
    */
   public static double getOnlineVehicles(Edge edge)
   {
-    return edge.getLineString().getLength() / vehicleLength;
+    return edge.getLength() / vehicleLength;
   }
 
   /**
@@ -155,4 +154,16 @@ public class RouteMeter
     }
     return edge.getLanes() * capacity;
   }
+
+  /**
+   *
+   * @param edge
+   * @return hours to move all the vehicles of the last routing through edge
+   */
+  public static double getRequiredTime(Edge edge)
+  {
+    int vehicleCount = edge.getVehicleCount();
+    if (vehicleCount == 0) return 0;
+    return vehicleCount / getCapacity(edge);
+  }
 }
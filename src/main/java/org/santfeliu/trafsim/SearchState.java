@@ -0,0 +1,218 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.Arrays;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.RoadGraph.Node;
+
+/**
+ * Reusable state of a shortest path search over a RoadGraph: the best time
+ * found to each node, the edge used to reach it and the queue of nodes to
+ * visit.
+ *
+ * The values are stored in arrays indexed by node id. Each entry is
+ * stamped with the generation of the search that wrote it, so reset only
+ * has to increment the generation instead of clearing the arrays. The
+ * ids reached are also recorded, so that reset can release the nodes and
+ * edges of the previous search without scanning the whole arrays.
+ *
+ * A SearchState is not thread safe. Use one instance for each thread.
+ *
+ * @author realor
+ */
+public class SearchState
+{
+  private int generation;
+  private int[] stamps = new int[0];
+  private double[] times = new double[0];
+  private Edge[] previousEdges = new Edge[0];
+  private Node[] nodes = new Node[0];
+  private int[] reachedIds = new int[64];
+  private int reachedCount;
+
+  // binary heap of (time, node id), outdated entries are skipped on poll
+  private double[] heapTimes = new double[64];
+  private int[] heapNodes = new int[64];
+  private int heapSize;
+
+  /**
+   * Starts a new search.
+   *
+   * @param nodeIdCount the node id count of the graph to search
+   */
+  public void reset(int nodeIdCount)
+  {
+    for (int i = 0; i < reachedCount; i++)
+    {
+      int id = reachedIds[i];
+      previousEdges[id] = null;
+      nodes[id] = null;
+    }
+    reachedCount = 0;
+    if (stamps.length < nodeIdCount)
+    {
+      int capacity = Math.max(nodeIdCount, 2 * stamps.length);
+      stamps = Arrays.copyOf(stamps, capacity);
+      times = Arrays.copyOf(times, capacity);
+      previousEdges = Arrays.copyOf(previousEdges, capacity);
+      nodes = Arrays.copyOf(nodes, capacity);
+    }
+    generation++;
+    if (generation == 0) // overflow
+    {
+      Arrays.fill(stamps, 0);
+      generation = 1;
+    }
+    heapSize = 0;
+  }
+
+  /**
+   * @return the generation of the current search, incremented by each reset
+   */
+  public int getGeneration()
+  {
+    return generation;
+  }
+
+  /**
+   * @return true if the given node has been reached in the current search
+   */
+  public boolean isReached(Node node)
+  {
+    int id = node.id;
+    return id < stamps.length && stamps[id] == generation;
+  }
+
+  /**
+   * @return the best time found to the given node, or infinity if the node
+   * has not been reached
+   */
+  public double getTime(Node node)
+  {
+    return isReached(node) ? times[node.id] : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * @return the edge used to reach the given node, or null
+   */
+  public Edge getPreviousEdge(Node node)
+  {
+    return isReached(node) ? previousEdges[node.id] : null;
+  }
+
+  /**
+   * Records a better time to the given node and queues it.
+   *
+   * @param node the node reached
+   * @param time the time to reach it
+   * @param previousEdge the edge used to reach it, null for the origin
+   */
+  public void update(Node node, double time, Edge previousEdge)
+  {
+    int id = node.id;
+    if (stamps[id] != generation)
+    {
+      if (reachedCount == reachedIds.length)
+      {
+        reachedIds = Arrays.copyOf(reachedIds, 2 * reachedCount);
+      }
+      reachedIds[reachedCount++] = id;
+    }
+    stamps[id] = generation;
+    times[id] = time;
+    previousEdges[id] = previousEdge;
+    nodes[id] = node;
+    push(time, id);
+  }
+
+  /**
+   * Takes the queued node with the lowest time.
+   *
+   * @return the node, or null if the queue is empty
+   */
+  public Node poll()
+  {
+    while (heapSize > 0)
+    {
+      double time = heapTimes[0];
+      int id = heapNodes[0];
+      heapSize--;
+      if (heapSize > 0)
+      {
+        siftDown(heapTimes[heapSize], heapNodes[heapSize]);
+      }
+      if (time == times[id]) return nodes[id];
+    }
+    return null;
+  }
+
+  private void push(double time, int id)
+  {
+    if (heapSize == heapTimes.length)
+    {
+      heapTimes = Arrays.copyOf(heapTimes, 2 * heapSize);
+      heapNodes = Arrays.copyOf(heapNodes, 2 * heapSize);
+    }
+    int index = heapSize++;
+    while (index > 0)
+    {
+      int parent = (index - 1) >>> 1;
+      if (heapTimes[parent] <= time) break;
+      heapTimes[index] = heapTimes[parent];
+      heapNodes[index] = heapNodes[parent];
+      index = parent;
+    }
+    heapTimes[index] = time;
+    heapNodes[index] = id;
+  }
+
+  private void siftDown(double time, int id)
+  {
+    int index = 0;
+    int half = heapSize >>> 1;
+    while (index < half)
+    {
+      int child = 2 * index + 1;
+      int right = child + 1;
+      if (right < heapSize && heapTimes[right] < heapTimes[child])
+      {
+        child = right;
+      }
+      if (time <= heapTimes[child]) break;
+      heapTimes[index] = heapTimes[child];
+      heapNodes[index] = heapNodes[child];
+      index = child;
+    }
+    heapTimes[index] = time;
+    heapNodes[index] = id;
+  }
+}
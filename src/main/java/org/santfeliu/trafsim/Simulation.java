@@ -31,7 +31,6 @@
 package org.santfeliu.trafsim;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -43,19 +42,30 @@ import java.util.Map;
  */
 public class Simulation
 {
+  // system property that enables the off-heap storage of the road graph
+  public static final String OFF_HEAP_PROPERTY = "trafsim.offHeap";
   private String title;
   private String srsName = "EPSG:25831";
   private double duration = 0; // hours
   private final ArrayList<Layer> layers;
   private final Map<String, Group> groups;
   private final Indicators indicators;
+  private int transactionDepth;
+  private final ArrayList<TransactionListener> transactionListeners =
+    new ArrayList<TransactionListener>();
 
   public Simulation()
+  {
+    this(new RoadGraph(Boolean.getBoolean(OFF_HEAP_PROPERTY)));
+  }
+
+  public Simulation(RoadGraph roadGraph)
   {
     layers = new ArrayList<Layer>();
-    layers.add(new RoadGraph()); // roadGraph
-    layers.add(new Locations()); // locations
-    layers.add(new Vehicles()); // vehicles
+    Locations locations = new Locations();
+    layers.add(roadGraph); // roadGraph
+    layers.add(locations); // locations
+    layers.add(new Vehicles(locations)); // vehicles
     groups = Collections.synchronizedMap(new HashMap<String, Group>());
     indicators = new Indicators();
   }
@@ -128,6 +138,7 @@ public class Simulation
   public void addGenericLayer(GenericLayer layer)
   {
     layers.add(layer);
+    if (transactionDepth > 0) layer.beginUpdate();
   }
 
   public List<GenericLayer> getGenericLayers()
@@ -144,7 +155,8 @@ public class Simulation
   {
     while (layers.size() > 3)
     {
-      layers.remove(layers.size() - 1);
+      Layer layer = layers.remove(layers.size() - 1);
+      if (transactionDepth > 0) layer.endUpdate();
     }
   }
 
@@ -154,12 +166,87 @@ public class Simulation
 
     for (Layer layer : layers)
     {
-      Collection<Feature> features = layer.getFeatures();
-      for (Feature feature : features)
+      layer.getBoundingBox(box);
+    }
+    return box;
+  }
+
+  /**
+   * Begins a transaction. Until the matching commit, the layers defer the
+   * work that can be done once for all the changes (linking the nodes of
+   * the road graph, rebuilding indices and bounding boxes) and the map is
+   * not repainted. Transactions can be nested.
+   */
+  public void begin()
+  {
+    if (transactionDepth++ == 0)
+    {
+      for (Layer layer : layers)
       {
-        box.extend(feature.getGeometry().getBoundingBox());
+        layer.beginUpdate();
       }
     }
-    return box;
+  }
+
+  /**
+   * Ends the current transaction. When the outermost transaction ends, the
+   * deferred work is done and the transaction listeners are notified.
+   */
+  public void commit()
+  {
+    if (transactionDepth == 0)
+      throw new IllegalStateException("No transaction in progress");
+
+    if (--transactionDepth == 0)
+    {
+      for (Layer layer : layers)
+      {
+        layer.endUpdate();
+      }
+      for (TransactionListener listener :
+        new ArrayList<TransactionListener>(transactionListeners))
+      {
+        listener.transactionCommitted(this);
+      }
+    }
+  }
+
+  /**
+   * Runs the given edit inside a transaction. The transaction is committed
+   * even if the edit fails.
+   *
+   * @param edit the changes to apply
+   */
+  public void apply(Runnable edit)
+  {
+    begin();
+    try
+    {
+      edit.run();
+    }
+    finally
+    {
+      commit();
+    }
+  }
+
+  public boolean isInTransaction()
+  {
+    return transactionDepth > 0;
+  }
+
+  public void addTransactionListener(TransactionListener listener)
+  {
+    transactionListeners.add(listener);
+  }
+
+  public void removeTransactionListener(TransactionListener listener)
+  {
+    transactionListeners.remove(listener);
+  }
+
+  public interface TransactionListener
+  {
+    void transactionCommitted(Simulation simulation);
   }
 }
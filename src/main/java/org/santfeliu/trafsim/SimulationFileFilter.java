@@ -32,7 +32,10 @@ package org.santfeliu.trafsim;
 
 import java.io.File;
 import javax.swing.filechooser.FileFilter;
+import static org.santfeliu.trafsim.TrafficSimulator.BINARY_EXTENSION;
 import static org.santfeliu.trafsim.TrafficSimulator.FILE_EXTENSION;
+import static org.santfeliu.trafsim.TrafficSimulator.NETWORK_EXTENSION;
+import static org.santfeliu.trafsim.io.Compression.GZIP_EXTENSION;
 
 /**
  *
@@ -43,12 +46,17 @@ public class SimulationFileFilter extends FileFilter
   @Override
   public boolean accept(File file)
   {
-    return file.getAbsolutePath().endsWith(FILE_EXTENSION);
+    String path = file.getAbsolutePath();
+    return path.endsWith(FILE_EXTENSION) ||
+      path.endsWith(FILE_EXTENSION + GZIP_EXTENSION) ||
+      path.endsWith(BINARY_EXTENSION) || path.endsWith(NETWORK_EXTENSION);
   }
 
   @Override
   public String getDescription()
   {
-    return "Traffic Simulation (*" + FILE_EXTENSION + ")";
+    return "Traffic Simulation (*" + FILE_EXTENSION +
+      ", *" + FILE_EXTENSION + GZIP_EXTENSION +
+      ", *" + BINARY_EXTENSION + ", *" + NETWORK_EXTENSION + ")";
   }
 }
@@ -0,0 +1,337 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import javax.vecmath.Point3d;
+
+/**
+ * Static R-tree over the bounding boxes of the features of a layer, packed
+ * with the Sort-Tile-Recursive algorithm.
+ *
+ * @author realor
+ * @param <T> feature class
+ */
+public class SpatialIndex<T extends Feature>
+{
+  static final int NODE_CAPACITY = 16;
+
+  private final Feature[] items;
+  // node boxes: xmin, ymin, xmax, ymax
+  private double[] nodeBoxes;
+  private int[] firstChild;
+  private int[] childCount;
+  private boolean[] leaf;
+  private int nodeCount;
+  private int root = -1;
+
+  public SpatialIndex(Collection<T> features)
+  {
+    items = features.toArray(new Feature[features.size()]);
+    build();
+  }
+
+  public int size()
+  {
+    return items.length;
+  }
+
+  /**
+   * Returns the features of this index ordered by distance to the given
+   * point. Features are evaluated lazily, so the caller may stop iterating
+   * as soon as it has enough results.
+   *
+   * @param worldPoint the reference point
+   * @return an iterator of picks sorted by ascending distance
+   */
+  public Iterator<PickInfo> nearest(Point3d worldPoint)
+  {
+    return new NearestIterator(worldPoint);
+  }
+
+  public void findByBox(Box box, Collection<? super T> result)
+  {
+    if (root == -1) return;
+
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = root;
+    while (top > 0)
+    {
+      int node = stack[--top];
+      int first = firstChild[node];
+      int last = first + childCount[node];
+      for (int child = first; child < last; child++)
+      {
+        if (leaf[node])
+        {
+          Feature feature = items[child];
+          if (box.overlaps(feature.getGeometry().getBoundingBox()))
+          {
+            result.add((T)feature);
+          }
+        }
+        else if (overlaps(child, box))
+        {
+          if (top == stack.length) stack = Arrays.copyOf(stack, 2 * top);
+          stack[top++] = child;
+        }
+      }
+    }
+  }
+
+  private void build()
+  {
+    int count = items.length;
+    if (count == 0) return;
+
+    // sort items into tiles
+    sortTiles(items, 0, count, new ItemComparator(true),
+      new ItemComparator(false));
+
+    int maxNodes = 0;
+    for (int n = count; n > 1; n = (n + NODE_CAPACITY - 1) / NODE_CAPACITY)
+    {
+      maxNodes += (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+    }
+    maxNodes = Math.max(maxNodes, 1);
+    nodeBoxes = new double[4 * maxNodes];
+    firstChild = new int[maxNodes];
+    childCount = new int[maxNodes];
+    leaf = new boolean[maxNodes];
+
+    // leaf level
+    int levelStart = 0;
+    for (int i = 0; i < count; i += NODE_CAPACITY)
+    {
+      int node = nodeCount++;
+      leaf[node] = true;
+      firstChild[node] = i;
+      childCount[node] = Math.min(NODE_CAPACITY, count - i);
+      resetBox(node);
+      for (int j = i; j < i + childCount[node]; j++)
+      {
+        extendBox(node, items[j].getGeometry().getBoundingBox());
+      }
+    }
+    int levelEnd = nodeCount;
+
+    // upper levels, nodes are already spatially ordered
+    while (levelEnd - levelStart > 1)
+    {
+      for (int i = levelStart; i < levelEnd; i += NODE_CAPACITY)
+      {
+        int node = nodeCount++;
+        firstChild[node] = i;
+        childCount[node] = Math.min(NODE_CAPACITY, levelEnd - i);
+        resetBox(node);
+        for (int j = i; j < i + childCount[node]; j++)
+        {
+          extendBox(node, j);
+        }
+      }
+      levelStart = levelEnd;
+      levelEnd = nodeCount;
+    }
+    root = nodeCount - 1;
+  }
+
+  private void sortTiles(Feature[] array, int start, int end,
+    Comparator<Feature> xComparator, Comparator<Feature> yComparator)
+  {
+    int count = end - start;
+    int leafCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+    int sliceCount = (int)Math.ceil(Math.sqrt(leafCount));
+    int sliceSize = sliceCount * NODE_CAPACITY;
+    Arrays.sort(array, start, end, xComparator);
+    for (int i = start; i < end; i += sliceSize)
+    {
+      Arrays.sort(array, i, Math.min(i + sliceSize, end), yComparator);
+    }
+  }
+
+  private void resetBox(int node)
+  {
+    int k = 4 * node;
+    nodeBoxes[k] = Double.POSITIVE_INFINITY;
+    nodeBoxes[k + 1] = Double.POSITIVE_INFINITY;
+    nodeBoxes[k + 2] = Double.NEGATIVE_INFINITY;
+    nodeBoxes[k + 3] = Double.NEGATIVE_INFINITY;
+  }
+
+  private void extendBox(int node, Box box)
+  {
+    int k = 4 * node;
+    if (box.xmin < nodeBoxes[k]) nodeBoxes[k] = box.xmin;
+    if (box.ymin < nodeBoxes[k + 1]) nodeBoxes[k + 1] = box.ymin;
+    if (box.xmax > nodeBoxes[k + 2]) nodeBoxes[k + 2] = box.xmax;
+    if (box.ymax > nodeBoxes[k + 3]) nodeBoxes[k + 3] = box.ymax;
+  }
+
+  private void extendBox(int node, int child)
+  {
+    int k = 4 * node;
+    int c = 4 * child;
+    if (nodeBoxes[c] < nodeBoxes[k]) nodeBoxes[k] = nodeBoxes[c];
+    if (nodeBoxes[c + 1] < nodeBoxes[k + 1]) nodeBoxes[k + 1] = nodeBoxes[c + 1];
+    if (nodeBoxes[c + 2] > nodeBoxes[k + 2]) nodeBoxes[k + 2] = nodeBoxes[c + 2];
+    if (nodeBoxes[c + 3] > nodeBoxes[k + 3]) nodeBoxes[k + 3] = nodeBoxes[c + 3];
+  }
+
+  private boolean overlaps(int node, Box box)
+  {
+    int k = 4 * node;
+    return nodeBoxes[k] <= box.xmax && nodeBoxes[k + 2] >= box.xmin &&
+      nodeBoxes[k + 1] <= box.ymax && nodeBoxes[k + 3] >= box.ymin;
+  }
+
+  private double distance(int node, Point3d point)
+  {
+    int k = 4 * node;
+    double dx = Math.max(Math.max(nodeBoxes[k] - point.x, 0),
+      point.x - nodeBoxes[k + 2]);
+    double dy = Math.max(Math.max(nodeBoxes[k + 1] - point.y, 0),
+      point.y - nodeBoxes[k + 3]);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  class NearestIterator implements Iterator<PickInfo>
+  {
+    private final Point3d worldPoint;
+    private final PriorityQueue<Entry> queue;
+    private PickInfo next;
+
+    NearestIterator(Point3d worldPoint)
+    {
+      this.worldPoint = new Point3d(worldPoint);
+      this.queue = new PriorityQueue<Entry>();
+      if (root != -1)
+      {
+        queue.add(new Entry(root, distance(root, worldPoint), null));
+      }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      if (next == null) next = advance();
+      return next != null;
+    }
+
+    @Override
+    public PickInfo next()
+    {
+      if (!hasNext()) throw new NoSuchElementException();
+      PickInfo pick = next;
+      next = null;
+      return pick;
+    }
+
+    private PickInfo advance()
+    {
+      while (!queue.isEmpty())
+      {
+        Entry entry = queue.poll();
+        if (entry.pick != null) return entry.pick;
+
+        int node = entry.index;
+        int first = firstChild[node];
+        int last = first + childCount[node];
+        for (int child = first; child < last; child++)
+        {
+          if (leaf[node])
+          {
+            PickInfo pick = new PickInfo();
+            Finder.getDistance(items[child], worldPoint, pick);
+            queue.add(new Entry(child, pick.distance, pick));
+          }
+          else
+          {
+            queue.add(new Entry(child, distance(child, worldPoint), null));
+          }
+        }
+      }
+      return null;
+    }
+  }
+
+  static class Entry implements Comparable<Entry>
+  {
+    final int index;
+    final double distance;
+    final PickInfo pick;
+
+    Entry(int index, double distance, PickInfo pick)
+    {
+      this.index = index;
+      this.distance = distance;
+      this.pick = pick;
+    }
+
+    @Override
+    public int compareTo(Entry other)
+    {
+      int result = Double.compare(distance, other.distance);
+      if (result == 0)
+      {
+        // features before nodes, so ties are reported as soon as possible
+        if (pick != null && other.pick == null) result = -1;
+        else if (pick == null && other.pick != null) result = 1;
+      }
+      return result;
+    }
+  }
+
+  static class ItemComparator implements Comparator<Feature>
+  {
+    private final boolean xAxis;
+
+    ItemComparator(boolean xAxis)
+    {
+      this.xAxis = xAxis;
+    }
+
+    @Override
+    public int compare(Feature f1, Feature f2)
+    {
+      Box b1 = f1.getGeometry().getBoundingBox();
+      Box b2 = f2.getGeometry().getBoundingBox();
+      return xAxis ?
+        Double.compare(b1.xmin + b1.xmax, b2.xmin + b2.xmax) :
+        Double.compare(b1.ymin + b1.ymax, b2.ymin + b2.ymax);
+    }
+  }
+}
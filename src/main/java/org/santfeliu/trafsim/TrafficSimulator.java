@@ -35,17 +35,21 @@ import java.awt.Cursor;
 import java.awt.Font;
 import java.awt.Image;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Method;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
 import javax.swing.UIDefaults;
 import javax.swing.UIManager;
 import javax.swing.undo.CannotRedoException;
@@ -58,7 +62,14 @@ import org.santfeliu.trafsim.action.DrawEdgeTool;
 import org.santfeliu.trafsim.action.DrawLocationTool;
 import org.santfeliu.trafsim.action.DrawVehicleGroupTool;
 import org.santfeliu.trafsim.action.SelectTool;
+import org.santfeliu.trafsim.action.SimulatorAction.BasicUndoableEdit;
+import org.santfeliu.trafsim.io.BinarySimulationReader;
+import org.santfeliu.trafsim.io.BinarySimulationWriter;
+import org.santfeliu.trafsim.io.Compression;
+import org.santfeliu.trafsim.io.NetworkReader;
+import org.santfeliu.trafsim.io.NetworkWriter;
 import org.santfeliu.trafsim.io.SimulationReader;
+import org.santfeliu.trafsim.io.SimulationSnapshot;
 import org.santfeliu.trafsim.io.SimulationWriter;
 import org.santfeliu.trafsim.action.EditVerticesTool;
 import org.santfeliu.trafsim.action.FindRouteTool;
@@ -75,8 +86,13 @@ public class TrafficSimulator extends javax.swing.JFrame
   public static final String APP_NAME = "Traffic Simulator";
   public static final String APP_VERSION = "1.0";
   public static final String FILE_EXTENSION = ".tfs";
+  public static final String NETWORK_EXTENSION = ".tfn";
+  public static final String BINARY_EXTENSION = ".tfb";
   private Simulation simulation;
   private File lastFile;
+  private File networkFile; // network file mapped by the road graph
+  private final Simulation.TransactionListener transactionListener =
+    committed -> getMapViewer().repaint();
   private final ResourceBundle resourceBundle;
   private final ReverseEdgesAction reverseEdgesAction;
   private final DeleteAction deleteAction;
@@ -90,6 +106,9 @@ public class TrafficSimulator extends javax.swing.JFrame
   private final RouteVehiclesTool routeVehiclesTool;
   private Tool currentTool;
   private boolean modified;
+  private boolean backgroundSave = true;
+  private SwingWorker<Void, Void> saveWorker;
+  private EditJournal journal;
   private final SimulatorUndoManager undoManager;
   private Console console;
 
@@ -127,7 +146,12 @@ public class TrafficSimulator extends javax.swing.JFrame
   {
     if (simulation == null)
       throw new RuntimeException("Simulation can not be null");
+    if (this.simulation != null)
+    {
+      this.simulation.removeTransactionListener(transactionListener);
+    }
     this.simulation = simulation;
+    simulation.addTransactionListener(transactionListener);
     mapViewer.getSelection().clear();
   }
 
@@ -145,6 +169,20 @@ public class TrafficSimulator extends javax.swing.JFrame
     }
   }
 
+  public boolean isBackgroundSave()
+  {
+    return backgroundSave;
+  }
+
+  /**
+   * @param backgroundSave true to write the simulation files from a
+   * background thread, so the user can keep editing while it is saved
+   */
+  public void setBackgroundSave(boolean backgroundSave)
+  {
+    this.backgroundSave = backgroundSave;
+  }
+
   public MapViewer getMapViewer()
   {
     return mapViewer;
@@ -209,11 +247,320 @@ public class TrafficSimulator extends javax.swing.JFrame
 
   private void exit()
   {
+    waitForSave();
     if (modified && !confirmDiscardChanges("dialog.exit.title")) return;
 
+    deleteJournal();
     System.exit(0);
   }
 
+  /**
+   * Saves the simulation to file. The simulation is copied on the event
+   * dispatch thread and, if background save is enabled, the copy is
+   * written from a worker thread. The edits made from the copy on are
+   * still recorded in the journal of the previous file, and moved to a new
+   * journal once the file is written.
+   */
+  private void saveSimulation(final File file) throws IOException
+  {
+    waitForSave();
+    if (!file.getName().endsWith(BINARY_EXTENSION))
+    {
+      loadTiledLayers(); // only binary files have tiles
+    }
+    final SimulationSnapshot snapshot = new SimulationSnapshot(simulation);
+    if (journal == null) journal = new EditJournal(simulation, file);
+    final EditJournal savedJournal = journal;
+    savedJournal.start();
+    if (!backgroundSave)
+    {
+      try
+      {
+        writeSnapshot(snapshot, file, savedJournal);
+      }
+      catch (IOException ex)
+      {
+        if (!savedJournal.isOpen()) stopJournal(savedJournal);
+        throw ex;
+      }
+      lastFile = file;
+      setModified(false);
+      return;
+    }
+
+    final Simulation savedSimulation = simulation;
+    lastFile = file;
+    setModified(false);
+    saveWorker = new SwingWorker<Void, Void>()
+    {
+      @Override
+      protected Void doInBackground() throws Exception
+      {
+        writeSnapshot(snapshot, file, savedJournal);
+        return null;
+      }
+
+      @Override
+      protected void done()
+      {
+        try
+        {
+          get();
+        }
+        catch (InterruptedException | ExecutionException ex)
+        {
+          if (simulation == savedSimulation) setModified(true);
+          if (!savedJournal.isOpen()) stopJournal(savedJournal);
+          Throwable cause = ex.getCause();
+          showError(TrafficSimulator.this,
+            resourceBundle.getString("dialog.save.title"),
+            cause instanceof Exception ? (Exception)cause : ex);
+        }
+      }
+    };
+    saveWorker.execute();
+  }
+
+  /**
+   * Writes snapshot to a temporary file that then replaces file, so that
+   * file is never left half written, and binds journal and the tiled base
+   * layers to it (see EditJournal.replaceBase). file may be the checkpoint
+   * of journal.
+   */
+  private void writeSnapshot(SimulationSnapshot snapshot, File file,
+    EditJournal journal) throws IOException
+  {
+    File checkpointFile = journal.getCheckpointFile();
+    File tempFile = getTempFile(file);
+    boolean binary = file.getName().endsWith(BINARY_EXTENSION);
+    try
+    {
+      if (binary)
+      {
+        BinarySimulationWriter writer = new BinarySimulationWriter(tempFile);
+        writer.write(snapshot);
+      }
+      else
+      {
+        SimulationWriter writer =
+          new SimulationWriter(Compression.openOutput(tempFile));
+        writer.write(snapshot);
+      }
+      journal.replaceBase(tempFile, file);
+    }
+    catch (IOException ex)
+    {
+      Files.deleteIfExists(tempFile.toPath());
+      journal.abort();
+      throw ex;
+    }
+    if (binary)
+    {
+      // the tiled layers read their tiles from the new file from now on
+      snapshot.bindTiledLayers(file);
+    }
+    if (!file.equals(checkpointFile))
+    {
+      Files.deleteIfExists(checkpointFile.toPath());
+    }
+  }
+
+  /**
+   * Exports the road graph to a network file through a temporary file, as
+   * writeSnapshot does. The network file mapped by the road graph can not
+   * be overwritten.
+   */
+  private void writeNetwork(File file) throws IOException
+  {
+    if (networkFile != null && file.exists() &&
+      Files.isSameFile(networkFile.toPath(), file.toPath()))
+      throw new IOException("The network file " + file.getName() +
+        " is in use, save it with another name");
+
+    File tempFile = getTempFile(file);
+    try
+    {
+      NetworkWriter writer = new NetworkWriter(tempFile);
+      writer.write(simulation.getRoadGraph());
+      replaceFile(tempFile, file);
+    }
+    catch (IOException ex)
+    {
+      Files.deleteIfExists(tempFile.toPath());
+      throw ex;
+    }
+  }
+
+  /**
+   * Loads into memory the base layers that are stored in the tiles of a
+   * binary file.
+   */
+  private void loadTiledLayers() throws IOException
+  {
+    try
+    {
+      for (GenericLayer layer : simulation.getGenericLayers())
+      {
+        layer.getFeatures();
+      }
+    }
+    catch (UncheckedIOException ex)
+    {
+      throw ex.getCause();
+    }
+  }
+
+  private File getTempFile(File file)
+  {
+    return new File(file.getAbsoluteFile().getParentFile(),
+      "~" + file.getName());
+  }
+
+  private void replaceFile(File tempFile, File file) throws IOException
+  {
+    try
+    {
+      Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException ex)
+    {
+      Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Records in the journal the features changed by edit and, when the
+   * journal grows too much, compacts it in background.
+   */
+  private void recordEdit(UndoableEdit edit)
+  {
+    if (journal == null || !(edit instanceof BasicUndoableEdit)) return;
+    try
+    {
+      journal.record(((BasicUndoableEdit)edit).getFeatures());
+      if ((saveWorker == null || saveWorker.isDone()) &&
+        journal.isCompactionNeeded())
+      {
+        compactJournal();
+      }
+    }
+    catch (IOException ex)
+    {
+      deleteJournal();
+      showError(this, resourceBundle.getString("dialog.journal.title"), ex);
+    }
+  }
+
+  /**
+   * Writes the simulation to the checkpoint file of the journal, so that
+   * the journal starts again from it. The simulation file and the modified
+   * state are not changed. If the checkpoint can not be written, the edits
+   * are still recorded in the journal, and the compaction is tried again
+   * when the journal has doubled its size.
+   */
+  private void compactJournal()
+  {
+    final EditJournal compactedJournal = journal;
+    final File checkpointFile = compactedJournal.getCheckpointFile();
+    try
+    {
+      final SimulationSnapshot snapshot = new SimulationSnapshot(simulation);
+      compactedJournal.start();
+      if (!backgroundSave)
+      {
+        writeSnapshot(snapshot, checkpointFile, compactedJournal);
+        return;
+      }
+      saveWorker = new SwingWorker<Void, Void>()
+      {
+        @Override
+        protected Void doInBackground() throws Exception
+        {
+          writeSnapshot(snapshot, checkpointFile, compactedJournal);
+          return null;
+        }
+
+        @Override
+        protected void done()
+        {
+          try
+          {
+            get();
+          }
+          catch (InterruptedException | ExecutionException ex)
+          {
+            compactionFailed(compactedJournal);
+          }
+        }
+      };
+      saveWorker.execute();
+    }
+    catch (IOException ex)
+    {
+      compactionFailed(compactedJournal);
+    }
+  }
+
+  private void compactionFailed(EditJournal compactedJournal)
+  {
+    if (compactedJournal.isOpen())
+    {
+      compactedJournal.setCompactionSize(
+        2 * compactedJournal.getCompactionSize());
+    }
+    else
+    {
+      stopJournal(compactedJournal);
+    }
+  }
+
+  private void deleteJournal()
+  {
+    if (journal == null) return;
+    try
+    {
+      journal.delete();
+    }
+    catch (IOException ex)
+    {
+      // a journal of another version of the file is never replayed
+    }
+    journal = null;
+  }
+
+  /**
+   * Stops recording the edits in journal when it could not be written. The
+   * journal of the last successful save is kept for recovery, and a new
+   * journal is started by the next save.
+   */
+  private void stopJournal(EditJournal savedJournal)
+  {
+    if (journal != savedJournal) return;
+    journal = null;
+    info("journal.stopped");
+  }
+
+  /**
+   * Waits until the background save in progress, if any, ends.
+   */
+  private void waitForSave()
+  {
+    if (saveWorker == null) return;
+    try
+    {
+      saveWorker.get();
+    }
+    catch (InterruptedException | ExecutionException ex)
+    {
+      setModified(true);
+      if (journal != null && !journal.isOpen()) stopJournal(journal);
+    }
+    saveWorker = null;
+  }
+
   private boolean confirmDiscardChanges(String title)
   {
     int result = JOptionPane.showConfirmDialog(this,
@@ -693,6 +1040,7 @@ public class TrafficSimulator extends javax.swing.JFrame
 
   private void openFileMenuItemActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_openFileMenuItemActionPerformed
   {//GEN-HEADEREND:event_openFileMenuItemActionPerformed
+    waitForSave();
     if (modified && !confirmDiscardChanges("dialog.open.open")) return;
 
     try
@@ -707,16 +1055,52 @@ public class TrafficSimulator extends javax.swing.JFrame
       {
         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
         File file = fileChooser.getSelectedFile();
-        FileInputStream fis = new FileInputStream(file);
-        SimulationReader reader = new SimulationReader(fis);
-        Simulation sim = reader.read();
-        lastFile = file;
+        Simulation sim;
+        boolean checkpoint = false;
+        if (file.getName().endsWith(NETWORK_EXTENSION))
+        {
+          NetworkReader reader = new NetworkReader(file);
+          sim = new Simulation(reader.read());
+          lastFile = null;
+          networkFile = file;
+        }
+        else
+        {
+          // the unsaved edits may have been compacted to a checkpoint
+          File source = EditJournal.getRecoveryFile(file);
+          checkpoint = !source.equals(file);
+          if (source.getName().endsWith(BINARY_EXTENSION))
+          {
+            BinarySimulationReader reader =
+              new BinarySimulationReader(source);
+            sim = reader.read();
+          }
+          else
+          {
+            SimulationReader reader =
+              new SimulationReader(Compression.openInput(source));
+            sim = reader.read();
+          }
+          lastFile = file;
+          networkFile = null;
+        }
+        deleteJournal();
+        EditJournal simJournal = null;
+        int recovered = 0;
+        if (lastFile != null)
+        {
+          simJournal = new EditJournal(sim, lastFile);
+          recovered = simJournal.recover();
+        }
+        journal = simJournal;
         setSimulation(sim);
         mapViewer.zoomAll();
         mapViewer.repaint();
         setCursor(Cursor.getDefaultCursor());
         start(selectTool);
-        setModified(false);
+        // the checkpoint has unsaved edits too
+        setModified(recovered > 0 || checkpoint);
+        if (recovered > 0 || checkpoint) info("journal.recovered");
         undoManager.discardAllEdits();
       }
     }
@@ -759,9 +1143,13 @@ public class TrafficSimulator extends javax.swing.JFrame
       if (result != JFileChooser.APPROVE_OPTION) return;
 
       File file = fileChooser.getSelectedFile();
-      if (!file.getName().endsWith(FILE_EXTENSION))
+      String name = file.getName();
+      boolean network = name.endsWith(NETWORK_EXTENSION);
+      if (!network && !name.endsWith(FILE_EXTENSION) &&
+        !name.endsWith(FILE_EXTENSION + Compression.GZIP_EXTENSION) &&
+        !name.endsWith(BINARY_EXTENSION))
       {
-        file = new File(file.getName() + FILE_EXTENSION);
+        file = new File(file.getPath() + FILE_EXTENSION);
       }
       if (file.exists())
       {
@@ -773,12 +1161,17 @@ public class TrafficSimulator extends javax.swing.JFrame
       }
 
       setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-      FileOutputStream os = new FileOutputStream(file);
-      SimulationWriter writer = new SimulationWriter(os);
-      writer.write(simulation);
-      setCursor(Cursor.getDefaultCursor());
-      lastFile = file;
-      setModified(false);
+      if (network)
+      {
+        // only the road graph is exported, the simulation keeps its file
+        writeNetwork(file);
+        setCursor(Cursor.getDefaultCursor());
+      }
+      else
+      {
+        saveSimulation(file);
+        setCursor(Cursor.getDefaultCursor());
+      }
     }
     catch (Exception ex)
     {
@@ -789,11 +1182,14 @@ public class TrafficSimulator extends javax.swing.JFrame
 
   private void newMenuItemActionPerformed(java.awt.event.ActionEvent evt)//GEN-FIRST:event_newMenuItemActionPerformed
   {//GEN-HEADEREND:event_newMenuItemActionPerformed
+    waitForSave();
     if (modified && !confirmDiscardChanges("dialog.new.title")) return;
 
+    deleteJournal();
     setSimulation(new Simulation());
     mapViewer.repaint();
     lastFile = null;
+    networkFile = null;
     start(selectTool);
     setModified(false);
     undoManager.discardAllEdits();
@@ -817,11 +1213,8 @@ public class TrafficSimulator extends javax.swing.JFrame
       try
       {
         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-        FileOutputStream fos = new FileOutputStream(lastFile);
-        SimulationWriter writer = new SimulationWriter(fos);
-        writer.write(simulation);
+        saveSimulation(lastFile);
         setCursor(Cursor.getDefaultCursor());
-        setModified(false);
       }
       catch (IOException ex)
       {
@@ -895,8 +1288,7 @@ public class TrafficSimulator extends javax.swing.JFrame
         Group group = groups.get(groupName);
         if (group != null && vehicleCount > 0)
         {
-          Movements movements = distributor.getMovements(vehicleCount, group);
-          vehicleGroup.setMovements(movements);
+          distributor.distribute(vehicleGroup, group);
         }
       }
       setModified(true);
@@ -948,8 +1340,8 @@ public class TrafficSimulator extends javax.swing.JFrame
       if (value instanceof String)
       {
         Double gridSize = Double.parseDouble((String)value);
-        simulation.getRoadGraph().snapToGrid(gridSize);
-        mapViewer.repaint();
+        simulation.apply(() ->
+          simulation.getRoadGraph().snapToGrid(gridSize));
       }
     }
     catch (Exception ex)
@@ -997,6 +1389,7 @@ public class TrafficSimulator extends javax.swing.JFrame
     public synchronized boolean addEdit(UndoableEdit anEdit)
     {
       boolean added = super.addEdit(anEdit);
+      recordEdit(anEdit);
       updateMenuItems();
       return added;
     }
@@ -1004,14 +1397,18 @@ public class TrafficSimulator extends javax.swing.JFrame
     @Override
     public synchronized void redo() throws CannotRedoException
     {
+      UndoableEdit edit = editToBeRedone();
       super.redo();
+      recordEdit(edit);
       updateMenuItems();
     }
 
     @Override
     public synchronized void undo() throws CannotUndoException
     {
+      UndoableEdit edit = editToBeUndone();
       super.undo();
+      recordEdit(edit);
       updateMenuItems();
     }
 
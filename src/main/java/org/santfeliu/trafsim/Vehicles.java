@@ -30,9 +30,9 @@
  */
 package org.santfeliu.trafsim;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
+import org.santfeliu.trafsim.Locations.Location;
 import org.santfeliu.trafsim.Vehicles.VehicleGroup;
 import org.santfeliu.trafsim.geom.Geometry;
 import org.santfeliu.trafsim.geom.Point;
@@ -43,7 +43,14 @@ import org.santfeliu.trafsim.geom.Point;
  */
 public class Vehicles extends Layer<VehicleGroup>
 {
-  private final ArrayList<VehicleGroup> features = new ArrayList<>();
+  private static final int[] NO_MOVEMENTS = new int[0];
+  private final FeatureList<VehicleGroup> features = new FeatureList<>();
+  private final Locations locations;
+
+  public Vehicles(Locations locations)
+  {
+    this.locations = locations;
+  }
 
   @Override
   public String getName()
@@ -56,6 +63,11 @@ public class Vehicles extends Layer<VehicleGroup>
     return (VehicleGroup)features.get(index);
   }
 
+  public Locations getLocations()
+  {
+    return locations;
+  }
+
   @Override
   public Collection<VehicleGroup> getFeatures()
   {
@@ -65,7 +77,17 @@ public class Vehicles extends Layer<VehicleGroup>
   public VehicleGroup newVehicleGroup(Point point, int count, String group,
     Movements movements)
   {
-    return new VehicleGroup(point, count, group, movements);
+    VehicleGroup vehicleGroup = new VehicleGroup(point, count, group);
+    vehicleGroup.setMovements(movements);
+    return vehicleGroup;
+  }
+
+  public VehicleGroup newVehicleGroup(Point point, int count, String group,
+    int[] locationIds, int[] journeyCounts)
+  {
+    VehicleGroup vehicleGroup = new VehicleGroup(point, count, group);
+    vehicleGroup.setMovements(locationIds, journeyCounts);
+    return vehicleGroup;
   }
 
   @Override
@@ -76,6 +98,7 @@ public class Vehicles extends Layer<VehicleGroup>
       vehicleGroup.removed = true;
     }
     features.clear();
+    invalidateSpatialIndex();
   }
 
   public class VehicleGroup extends Feature
@@ -83,16 +106,17 @@ public class Vehicles extends Layer<VehicleGroup>
     private Point point;
     private int count;
     private String group;
-    private Movements movements;
+    // movements: journeys to each location id, null if not assigned
+    private int[] locationIds;
+    private int[] journeyCounts;
     private Indicators indicators;
     private boolean removed;
 
-    VehicleGroup(Point point, int count, String group, Movements movements)
+    VehicleGroup(Point point, int count, String group)
     {
       this.point = point;
       this.count = count;
       this.group = group;
-      this.movements = movements;
       this.removed = true;
     }
 
@@ -104,6 +128,7 @@ public class Vehicles extends Layer<VehicleGroup>
     public void setPoint(Point point)
     {
       this.point = point;
+      invalidateSpatialIndex();
     }
 
     public int getCount()
@@ -126,14 +151,86 @@ public class Vehicles extends Layer<VehicleGroup>
       this.group = group;
     }
 
+    /**
+     * Returns a copy of the movements of this vehicle group as a map
+     * from location name to journey count.
+     *
+     * @return the movements, or null if they are not assigned
+     */
     public Movements getMovements()
     {
+      if (locationIds == null) return null;
+
+      Movements movements = new Movements();
+      for (int i = 0; i < locationIds.length; i++)
+      {
+        movements.put(locations.getLocationName(locationIds[i]),
+          journeyCounts[i]);
+      }
       return movements;
     }
 
     public void setMovements(Movements movements)
     {
-      this.movements = movements;
+      if (movements == null)
+      {
+        locationIds = null;
+        journeyCounts = null;
+      }
+      else
+      {
+        int size = movements.size();
+        locationIds = size == 0 ? NO_MOVEMENTS : new int[size];
+        journeyCounts = size == 0 ? NO_MOVEMENTS : new int[size];
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : movements.entrySet())
+        {
+          locationIds[i] = locations.getLocationId(entry.getKey());
+          journeyCounts[i] = entry.getValue();
+          i++;
+        }
+      }
+    }
+
+    /**
+     * Sets the movements of this vehicle group. The arrays are not copied.
+     *
+     * @param locationIds the destination location ids
+     * @param journeyCounts the number of journeys to each location
+     */
+    public void setMovements(int[] locationIds, int[] journeyCounts)
+    {
+      if (locationIds != null && journeyCounts != null &&
+        locationIds.length != journeyCounts.length)
+        throw new IllegalArgumentException("Array lengths differ");
+
+      this.locationIds = locationIds;
+      this.journeyCounts = locationIds == null ? null : journeyCounts;
+    }
+
+    public boolean hasMovements()
+    {
+      return locationIds != null;
+    }
+
+    public int getMovementCount()
+    {
+      return locationIds == null ? 0 : locationIds.length;
+    }
+
+    public int getLocationId(int index)
+    {
+      return locationIds[index];
+    }
+
+    public Location getLocation(int index)
+    {
+      return locations.getLocation(locationIds[index]);
+    }
+
+    public int getJourneyCount(int index)
+    {
+      return journeyCounts[index];
     }
 
     @Override
@@ -148,6 +245,7 @@ public class Vehicles extends Layer<VehicleGroup>
       if (geometry instanceof Point)
       {
         point = (Point)geometry;
+        invalidateSpatialIndex();
       }
     }
 
@@ -164,6 +262,7 @@ public class Vehicles extends Layer<VehicleGroup>
       {
         features.add(this);
         removed = false;
+        invalidateSpatialIndex();
       }
     }
 
@@ -174,6 +273,7 @@ public class Vehicles extends Layer<VehicleGroup>
       {
         features.remove(this);
         removed = true;
+        invalidateSpatialIndex();
       }
     }
 
@@ -185,8 +285,13 @@ public class Vehicles extends Layer<VehicleGroup>
 
     public VehicleGroup duplicate()
     {
-      return new VehicleGroup(point.duplicate(), count, group,
-        movements == null ? null : new Movements(movements));
+      VehicleGroup vehicleGroup =
+        new VehicleGroup(point.duplicate(), count, group);
+      if (locationIds != null)
+      {
+        vehicleGroup.setMovements(locationIds.clone(), journeyCounts.clone());
+      }
+      return vehicleGroup;
     }
 
     @Override
@@ -32,12 +32,14 @@ package org.santfeliu.trafsim.action;
 
 import java.awt.event.ActionEvent;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.UndoManager;
 import org.santfeliu.trafsim.Feature;
-import org.santfeliu.trafsim.MapViewer;
+import org.santfeliu.trafsim.Layer;
 import org.santfeliu.trafsim.MapViewer.Selection;
 import org.santfeliu.trafsim.TrafficSimulator;
 
@@ -78,25 +80,37 @@ public class DeleteAction extends SimulatorAction
 
   private void addFeatures(List<Feature> features)
   {
-    for (Feature feature : features)
+    getSimulation().apply(() ->
     {
-      feature.add();
-    }
-    MapViewer mapViewer = getMapViewer();
-    mapViewer.repaint();
+      for (Layer layer : getLayers(features))
+      {
+        layer.addAll(features);
+      }
+    });
     trafficSimulator.setModified(true);
   }
 
   private void removeFeatures(List<Feature> features)
   {
+    getSimulation().apply(() ->
+    {
+      for (Layer layer : getLayers(features))
+      {
+        layer.removeAll(features);
+      }
+      getMapViewer().getSelection().removeAll(features);
+    });
+    trafficSimulator.setModified(true);
+  }
+
+  private LinkedHashSet<Layer> getLayers(List<Feature> features)
+  {
+    LinkedHashSet<Layer> layers = new LinkedHashSet<Layer>();
     for (Feature feature : features)
     {
-      feature.remove();
+      layers.add(feature.getLayer());
     }
-    MapViewer mapViewer = getMapViewer();
-    mapViewer.getSelection().removeAll(features);
-    mapViewer.repaint();
-    trafficSimulator.setModified(true);
+    return layers;
   }
 
   public class Undo extends BasicUndoableEdit
@@ -120,6 +134,12 @@ public class DeleteAction extends SimulatorAction
       removeFeatures(features);
     }
 
+    @Override
+    public Collection<Feature> getFeatures()
+    {
+      return features;
+    }
+
     @Override
     public void die()
     {
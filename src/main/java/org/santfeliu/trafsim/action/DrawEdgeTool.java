@@ -37,6 +37,8 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.vecmath.Point3d;
@@ -231,5 +233,11 @@ public class DrawEdgeTool extends Tool
       trafficSimulator.setModified(true);
       getMapViewer().repaint();
     }
+
+    @Override
+    public Collection<Edge> getFeatures()
+    {
+      return Collections.singletonList(edge);
+    }
   }
 }
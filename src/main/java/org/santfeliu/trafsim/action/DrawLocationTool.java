@@ -33,6 +33,8 @@ package org.santfeliu.trafsim.action;
 import java.awt.Cursor;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.util.Collection;
+import java.util.Collections;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.vecmath.Point3d;
@@ -143,5 +145,11 @@ public class DrawLocationTool extends Tool implements MouseListener
       trafficSimulator.setModified(true);
       getMapViewer().repaint();
     }
+
+    @Override
+    public Collection<Location> getFeatures()
+    {
+      return Collections.singletonList(location);
+    }
   }
 }
@@ -36,6 +36,7 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import javax.swing.undo.CannotRedoException;
@@ -225,8 +226,7 @@ public class EditVerticesTool extends Tool implements
         else if (geometry instanceof LineString)
         {
           LineString lineString = (LineString)geometry;
-          List<Point3d> vertices = lineString.getVertices();
-          vertices.get(pi.getIndex()).set(worldPoint);
+          lineString.setVertex(pi.getIndex(), worldPoint);
         }
         feature.add();
       }
@@ -259,11 +259,11 @@ public class EditVerticesTool extends Tool implements
       if (geometry instanceof LineString)
       {
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
-        for (int i = 0; i < vertices.size(); i++)
+        int count = lineString.getVertexCount();
+        for (int i = 0; i < count; i++)
         {
-          projector.project(vertices.get(i), dp);
-          g.setColor(i == 0 || i == vertices.size() - 1 ?
+          projector.project(lineString.getX(i), lineString.getY(i), dp);
+          g.setColor(i == 0 || i == count - 1 ?
             Color.BLACK : Color.BLUE);
           g.fillOval(dp.x - 2, dp.y - 2, 5, 5);
         }
@@ -307,11 +307,8 @@ public class EditVerticesTool extends Tool implements
         Geometry oldGeometry = geometry.duplicate();
         feature.remove();
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
         int index = pick.getIndex();
-        Point3d point = new Point3d();
-        point.set(pick.getOnFeaturePoint());
-        vertices.add(index + 1, point);
+        lineString.insertVertex(index + 1, pick.getOnFeaturePoint());
         feature.add();
         mapViewer.repaint();
         trafficSimulator.setModified(true);
@@ -337,11 +334,10 @@ public class EditVerticesTool extends Tool implements
       if (geometry instanceof LineString)
       {
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
-        if (vertices.size() > 2)
+        if (lineString.getVertexCount() > 2)
         {
           feature.remove();
-          vertices.remove(pi.getIndex());
+          lineString.removeVertex(pi.getIndex());
           feature.add();
         }
       }
@@ -551,5 +547,15 @@ public class EditVerticesTool extends Tool implements
       getMapViewer().repaint();
       trafficSimulator.setModified(true);
     }
+
+    @Override
+    public Collection<Feature> getFeatures()
+    {
+      if (newFeatures == oldFeatures) return oldFeatures;
+
+      List<Feature> features = new ArrayList<Feature>(oldFeatures);
+      features.addAll(newFeatures);
+      return features;
+    }
   }
 }
@@ -38,7 +38,6 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.geom.Path2D;
 import java.text.DecimalFormat;
-import java.util.List;
 import javax.vecmath.Point3d;
 import org.santfeliu.trafsim.MapViewer;
 import org.santfeliu.trafsim.MapViewer.Painter;
@@ -187,13 +186,13 @@ public class FindRouteTool extends Tool implements MouseListener, Painter
     Projector projector, Graphics2D g)
   {
     java.awt.Point dp = new java.awt.Point();
-    List<Point3d> vertices = lineString.getVertices();
+    int count = lineString.getVertexCount();
     Path2D path = new Path2D.Double();
-    projector.project(vertices.get(0), dp);
+    projector.project(lineString.getX(0), lineString.getY(0), dp);
     path.moveTo(dp.x, dp.y);
-    for (int i = 1; i < vertices.size(); i++)
+    for (int i = 1; i < count; i++)
     {
-      projector.project(vertices.get(i), dp);
+      projector.project(lineString.getX(i), lineString.getY(i), dp);
       path.lineTo(dp.x, dp.y);
     }
     g.draw(path);
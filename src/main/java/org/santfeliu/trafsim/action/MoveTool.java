@@ -219,11 +219,11 @@ public class MoveTool extends Tool implements
       else if (geometry instanceof LineString)
       {
         LineString lineString = (LineString)geometry;
-        List<Point3d> vertices = lineString.getVertices();
-        for (int i = 0; i < vertices.size() - 1; i++)
+        int count = lineString.getVertexCount();
+        for (int i = 0; i < count - 1; i++)
         {
-          moved1.set(vertices.get(i));
-          moved2.set(vertices.get(i + 1));
+          lineString.getVertex(i, moved1);
+          lineString.getVertex(i + 1, moved2);
           moved1.add(move);
           moved2.add(move);
           projector.project(moved1, dp1);
@@ -240,11 +240,19 @@ public class MoveTool extends Tool implements
     matrix.setIdentity();
     matrix.setTranslation(vector);
 
-    for (Feature feature : features)
+    Simulation simulation = getSimulation();
+    simulation.begin();
+    try
     {
-      feature.transform(matrix);
+      for (Feature feature : features)
+      {
+        feature.transform(matrix);
+      }
+    }
+    finally
+    {
+      simulation.commit();
     }
-    getMapViewer().repaint();
     trafficSimulator.setModified(true);
   }
 
@@ -273,6 +281,12 @@ public class MoveTool extends Tool implements
       moveFeatures(features, vector);
     }
 
+    @Override
+    public Collection<Feature> getFeatures()
+    {
+      return features;
+    }
+
     @Override
     public void die()
     {
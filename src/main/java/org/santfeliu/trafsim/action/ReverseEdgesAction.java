@@ -31,11 +31,11 @@
 package org.santfeliu.trafsim.action;
 
 import java.awt.event.ActionEvent;
+import java.util.Collection;
 import java.util.List;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.UndoManager;
-import org.santfeliu.trafsim.MapViewer;
 import org.santfeliu.trafsim.RoadGraph.Edge;
 import org.santfeliu.trafsim.TrafficSimulator;
 
@@ -70,12 +70,13 @@ public class ReverseEdgesAction extends SimulatorAction
 
   private void reverseEdges(List<Edge> edges)
   {
-    for (Edge edge : edges)
+    getSimulation().apply(() ->
     {
-      edge.reverse();
-    }
-    MapViewer mapViewer = getMapViewer();
-    mapViewer.repaint();
+      for (Edge edge : edges)
+      {
+        edge.reverse();
+      }
+    });
     trafficSimulator.setModified(true);
   }
 
@@ -100,6 +101,12 @@ public class ReverseEdgesAction extends SimulatorAction
       reverseEdges(edges);
     }
 
+    @Override
+    public Collection<Edge> getFeatures()
+    {
+      return edges;
+    }
+
     @Override
     public void die()
     {
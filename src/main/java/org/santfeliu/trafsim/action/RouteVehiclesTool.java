@@ -33,15 +33,12 @@ package org.santfeliu.trafsim.action;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.util.Iterator;
-import java.util.Set;
 import javax.vecmath.Point3d;
 import org.santfeliu.trafsim.Indicators;
 import org.santfeliu.trafsim.Locations;
 import org.santfeliu.trafsim.Locations.Location;
 import org.santfeliu.trafsim.MapViewer;
 import org.santfeliu.trafsim.MapViewer.Painter;
-import org.santfeliu.trafsim.Movements;
 import org.santfeliu.trafsim.RoadGraph;
 import org.santfeliu.trafsim.RoadGraph.Edge;
 import org.santfeliu.trafsim.Route;
@@ -142,10 +139,7 @@ public class RouteVehiclesTool extends Tool implements Painter
       indicators.reset();
       RoadGraph roadGraph = simulation.getRoadGraph();
       routeFinder = new RouteFinder(roadGraph);
-      for (Edge edge : roadGraph.getEdges())
-      {
-        edge.getIndicators().reset();
-      }
+      roadGraph.resetIndicators();
       Vehicles vehicles = simulation.getVehicles();
       for (VehicleGroup vehicleGroup : vehicles.getFeatures())
       {
@@ -159,24 +153,22 @@ public class RouteVehiclesTool extends Tool implements Painter
       while (vehicleGroupIndex < vehicleGroupCount && !abort)
       {
         VehicleGroup vehicleGroup = vehicles.getVehicleGroup(vehicleGroupIndex);
-        Movements movements = vehicleGroup.getMovements();
-        if (movements != null)
+        int movementCount = vehicleGroup.getMovementCount();
+        if (movementCount > 0)
         {
           Point3d origin = vehicleGroup.getPoint().getPosition();
           routeFinder.clear();
           routeFinder.setOrigin(origin, Double.POSITIVE_INFINITY);
-          Set<String> locationNames = movements.keySet();
-          Iterator<String> miter = locationNames.iterator();
-          while (miter.hasNext() && !abort)
+          for (int m = 0; m < movementCount && !abort; m++)
           {
-            String locationName = miter.next();
-            Location location = locations.getLocation(locationName);
+            Location location =
+              locations.getLocation(vehicleGroup.getLocationId(m));
             if (location != null && location.isDestination())
             {
               Point3d destination = location.getPoint().getPosition();
               routeFinder.setDestination(destination, Double.POSITIVE_INFINITY);
               Route route = routeFinder.getRoute();
-              int journeyCount = movements.get(locationName);
+              int journeyCount = vehicleGroup.getJourneyCount(m);
               VehicleGroup.Indicators vehicleInd = vehicleGroup.getIndicators();
               vehicleInd.journeyCount += journeyCount;
               if (route.isEmpty())
@@ -193,8 +185,7 @@ public class RouteVehiclesTool extends Tool implements Painter
                 for (Section section : route.getSections())
                 {
                   Edge edge = section.getEdge();
-                  Edge.Indicators edgeInd = edge.getIndicators();
-                  edgeInd.vehicleCount += journeyCount;
+                  edge.setVehicleCount(edge.getVehicleCount() + journeyCount);
                   indicators.update(edge);
                 }
               }
@@ -401,6 +401,12 @@ public class SelectTool extends Tool
       changeEdges(edges, speed, lanes, delay);
     }
 
+    @Override
+    public Collection<Edge> getFeatures()
+    {
+      return edges;
+    }
+
     @Override
     public void die()
     {
@@ -450,6 +456,12 @@ public class SelectTool extends Tool
       getMapViewer().repaint();
       trafficSimulator.setModified(true);
     }
+
+    @Override
+    public Collection<Location> getFeatures()
+    {
+      return Collections.singletonList(location);
+    }
   }
 
   public class UndoVehicleGroups extends BasicUndoableEdit
@@ -497,6 +509,12 @@ public class SelectTool extends Tool
       changeVehicleGroups(vehicleGroups, count, group, movements);
     }
 
+    @Override
+    public Collection<VehicleGroup> getFeatures()
+    {
+      return vehicleGroups;
+    }
+
     @Override
     public void die()
     {
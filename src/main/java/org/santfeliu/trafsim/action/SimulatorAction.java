@@ -31,6 +31,7 @@
 package org.santfeliu.trafsim.action;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -126,6 +127,12 @@ public abstract class SimulatorAction extends AbstractAction
   
   public abstract class BasicUndoableEdit implements UndoableEdit
   {
+    /**
+     * @return the features changed by this edit, that are recorded in the
+     * edit journal each time the edit is done, undone or redone
+     */
+    public abstract Collection<? extends Feature> getFeatures();
+
     @Override
     public boolean canUndo()
     {
@@ -0,0 +1,158 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.geom;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Off-heap storage for the coordinates of packed geometries. Coordinates
+ * are appended to direct buffers (chunks) that grow geometrically. The
+ * space of the geometries released is reused by the next geometries with
+ * the same number of vertices. Space is not reclaimed for the geometries
+ * that are discarded without being released.
+ *
+ * @author realor
+ */
+public class CoordinateArena
+{
+  private static final int MIN_CHUNK_SIZE = 1 << 17; // doubles (1 MB)
+  private static final int MAX_CHUNK_SIZE = 1 << 23; // doubles (64 MB)
+  private final ArrayList<DoubleBuffer> chunks = new ArrayList<DoubleBuffer>();
+  private DoubleBuffer chunk;
+  private int position;
+  private long capacity; // doubles
+  private long used; // doubles
+  // free regions (chunk index << 32 | offset) by length
+  private final HashMap<Integer, FreeRegions> freeRegions =
+    new HashMap<Integer, FreeRegions>();
+
+  /**
+   * Moves the coordinates of geometry to this arena.
+   *
+   * @param geometry the geometry to store
+   */
+  public synchronized void store(PackedGeometry geometry)
+  {
+    if (geometry.isBuffered()) return;
+
+    int length = 3 * geometry.getVertexCount();
+    if (length == 0) return;
+
+    FreeRegions regions = freeRegions.get(length);
+    if (regions != null && regions.count > 0)
+    {
+      long region = regions.offsets[--regions.count];
+      geometry.moveTo(chunks.get((int)(region >>> 32)), (int)region);
+      used += length;
+      return;
+    }
+
+    if (chunk == null || position + length > chunk.capacity())
+    {
+      int chunkSize = chunk == null ?
+        MIN_CHUNK_SIZE : Math.min(2 * chunk.capacity(), MAX_CHUNK_SIZE);
+      chunkSize = Math.max(chunkSize, length);
+      chunk = ByteBuffer.allocateDirect(8 * chunkSize).
+        order(ByteOrder.nativeOrder()).asDoubleBuffer();
+      chunks.add(chunk);
+      position = 0;
+      capacity += chunkSize;
+    }
+    geometry.moveTo(chunk, position);
+    position += length;
+    used += length;
+  }
+
+  /**
+   * Moves the coordinates of geometry back to the java heap. If they were
+   * stored in this arena, their space can be reused by store.
+   *
+   * @param geometry the geometry to release
+   */
+  public synchronized void release(PackedGeometry geometry)
+  {
+    DoubleBuffer buffer = geometry.getBuffer();
+    if (buffer == null) return;
+
+    int length = 3 * geometry.getVertexCount();
+    int offset = geometry.getOffset();
+    geometry.moveToArray();
+    // the buffers are compared by identity, equals compares their content
+    int index = chunks.size() - 1;
+    while (index >= 0 && chunks.get(index) != buffer) index--;
+    if (index == -1 || length == 0) return;
+
+    FreeRegions regions = freeRegions.get(length);
+    if (regions == null)
+    {
+      regions = new FreeRegions();
+      freeRegions.put(length, regions);
+    }
+    regions.add(((long)index << 32) | offset);
+    used -= length;
+  }
+
+  /**
+   * @return the number of bytes allocated by this arena
+   */
+  public synchronized long getMemoryUsage()
+  {
+    return 8 * capacity;
+  }
+
+  /**
+   * @return the number of bytes used by the geometries stored in this arena
+   */
+  public synchronized long getUsedMemory()
+  {
+    return 8 * used;
+  }
+
+  private static class FreeRegions
+  {
+    long[] offsets = new long[4];
+    int count;
+
+    void add(long region)
+    {
+      if (count == offsets.length)
+      {
+        offsets = Arrays.copyOf(offsets, 2 * count);
+      }
+      offsets[count++] = region;
+    }
+  }
+}
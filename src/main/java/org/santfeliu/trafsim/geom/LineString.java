@@ -30,88 +30,34 @@
  */
 package org.santfeliu.trafsim.geom;
 
-import java.util.ArrayList;
+import java.nio.DoubleBuffer;
 import java.util.List;
-import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3d;
-import org.santfeliu.trafsim.Box;
 
 /**
  *
  * @author realor
  */
-public class LineString extends Geometry
+public class LineString extends PackedGeometry
 {
-  private final List<Point3d> vertices;
-
   public LineString(List<Point3d> points)
   {
-    vertices = new ArrayList<Point3d>(points.size());
-    this.vertices.addAll(points);
+    super(points);
   }
 
-  public List<Point3d> getVertices()
+  public LineString(double[] coordinates)
   {
-    return vertices;
+    super(coordinates);
   }
 
-  public double getLength()
+  public LineString(DoubleBuffer buffer, int offset, int vertexCount)
   {
-    double length = 0;
-    for (int i = 0; i < vertices.size() - 1; i++)
-    {
-      Point3d pt1 = vertices.get(i);
-      Point3d pt2 = vertices.get(i + 1);
-      length += pt1.distance(pt2);
-    }
-    return length;
-  }
-
-  @Override
-  public String toString()
-  {
-    StringBuilder buffer = new StringBuilder();
-    buffer.append("LineString(");
-    for (int i = 0; i < vertices.size(); i++)
-    {
-      Point3d point = vertices.get(i);
-      if (i > 0) buffer.append(", ");
-      buffer.append("Point(").
-        append(point.x).append(", ").
-        append(point.y).append(", ").
-        append(point.z).append(")");
-    }
-    buffer.append(")");
-    return buffer.toString();
-  }
-
-  @Override
-  public void transform(Matrix4d matrix)
-  {
-    for (Point3d vertex : vertices)
-    {
-      matrix.transform(vertex);
-    }
-    updateBoundingBox();
+    super(buffer, offset, vertexCount);
   }
 
   @Override
   public LineString duplicate()
   {
-    List<Point3d> dupVertices = new ArrayList<Point3d>();
-    for (Point3d vertex : vertices)
-    {
-      dupVertices.add(new Point3d(vertex));
-    }
-    return new LineString(dupVertices);
-  }
-
-  @Override
-  protected void extend(Box box)
-  {
-    for (Point3d vertex : vertices)
-    {
-      box.extend(vertex);
-    }
+    return new LineString(copyCoordinates());
   }
 }
@@ -0,0 +1,383 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.geom;
+
+import java.nio.DoubleBuffer;
+import java.util.AbstractList;
+import java.util.List;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.Box;
+
+/**
+ * Geometry made of a sequence of vertices stored as packed coordinates
+ * (x, y, z interleaved), either in a double array or in a region of a
+ * DoubleBuffer (see CoordinateArena). If the buffer is read only, as the
+ * buffers mapped from a network file, the coordinates are copied to an
+ * array when they are first changed.
+ *
+ * @author realor
+ */
+public abstract class PackedGeometry extends Geometry
+{
+  private static final double[] EMPTY = new double[0];
+  private double[] coordinates;
+  private DoubleBuffer buffer;
+  private int offset;
+  private int vertexCount;
+
+  public PackedGeometry(List<Point3d> points)
+  {
+    int count = points.size();
+    coordinates = count == 0 ? EMPTY : new double[3 * count];
+    vertexCount = count;
+    for (int i = 0; i < count; i++)
+    {
+      Point3d point = points.get(i);
+      int index = 3 * i;
+      coordinates[index] = point.x;
+      coordinates[index + 1] = point.y;
+      coordinates[index + 2] = point.z;
+    }
+  }
+
+  /**
+   * @param coordinates the xyz interleaved coordinates, not copied
+   */
+  public PackedGeometry(double[] coordinates)
+  {
+    if (coordinates.length % 3 != 0)
+      throw new IllegalArgumentException("Invalid coordinates length");
+    this.coordinates = coordinates;
+    this.vertexCount = coordinates.length / 3;
+  }
+
+  /**
+   * @param buffer the buffer that holds the coordinates, not copied
+   * @param offset the index in buffer of the x coordinate of first vertex
+   * @param vertexCount the number of vertices
+   */
+  public PackedGeometry(DoubleBuffer buffer, int offset, int vertexCount)
+  {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.vertexCount = vertexCount;
+  }
+
+  /**
+   * Returns a view of the vertices of this geometry. The points returned by
+   * get are copies, so vertices must be changed through set, add and remove.
+   *
+   * @return the vertex list
+   */
+  public List<Point3d> getVertices()
+  {
+    return new VertexList();
+  }
+
+  public int getVertexCount()
+  {
+    return vertexCount;
+  }
+
+  public double getX(int index)
+  {
+    return get(3 * index);
+  }
+
+  public double getY(int index)
+  {
+    return get(3 * index + 1);
+  }
+
+  public double getZ(int index)
+  {
+    return get(3 * index + 2);
+  }
+
+  public Point3d getVertex(int index, Point3d point)
+  {
+    int i = 3 * index;
+    point.x = get(i);
+    point.y = get(i + 1);
+    point.z = get(i + 2);
+    return point;
+  }
+
+  public void setVertex(int index, double x, double y, double z)
+  {
+    int i = 3 * index;
+    put(i, x);
+    put(i + 1, y);
+    put(i + 2, z);
+    updateBoundingBox();
+  }
+
+  public void setVertex(int index, Point3d point)
+  {
+    setVertex(index, point.x, point.y, point.z);
+  }
+
+  public void insertVertex(int index, Point3d point)
+  {
+    if (index < 0 || index > vertexCount)
+      throw new IndexOutOfBoundsException("Index: " + index);
+
+    double[] oldCoordinates = copyCoordinates();
+    double[] newCoordinates = new double[oldCoordinates.length + 3];
+    System.arraycopy(oldCoordinates, 0, newCoordinates, 0, 3 * index);
+    System.arraycopy(oldCoordinates, 3 * index,
+      newCoordinates, 3 * index + 3, 3 * (vertexCount - index));
+    setCoordinates(newCoordinates);
+    setVertex(index, point);
+  }
+
+  public void removeVertex(int index)
+  {
+    if (index < 0 || index >= vertexCount)
+      throw new IndexOutOfBoundsException("Index: " + index);
+
+    double[] oldCoordinates = copyCoordinates();
+    double[] newCoordinates = vertexCount == 1 ? EMPTY :
+      new double[oldCoordinates.length - 3];
+    System.arraycopy(oldCoordinates, 0, newCoordinates, 0, 3 * index);
+    System.arraycopy(oldCoordinates, 3 * index + 3,
+      newCoordinates, 3 * index, 3 * (vertexCount - index - 1));
+    setCoordinates(newCoordinates);
+    updateBoundingBox();
+  }
+
+  public void reverse()
+  {
+    for (int i = 0, j = vertexCount - 1; i < j; i++, j--)
+    {
+      for (int k = 0; k < 3; k++)
+      {
+        double temp = get(3 * i + k);
+        put(3 * i + k, get(3 * j + k));
+        put(3 * j + k, temp);
+      }
+    }
+  }
+
+  /**
+   * @return a copy of the coordinates of this geometry (x, y, z interleaved)
+   */
+  public double[] getCoordinates()
+  {
+    return copyCoordinates();
+  }
+
+  /**
+   * @return true if the coordinates are stored in a DoubleBuffer
+   */
+  public boolean isBuffered()
+  {
+    return buffer != null;
+  }
+
+  /**
+   * Moves the coordinates of this geometry to a region of the given buffer.
+   * The previous storage is released.
+   *
+   * @param buffer the destination buffer
+   * @param offset the index in buffer where the coordinates are written
+   */
+  public void moveTo(DoubleBuffer buffer, int offset)
+  {
+    int length = 3 * vertexCount;
+    for (int i = 0; i < length; i++)
+    {
+      buffer.put(offset + i, get(i));
+    }
+    this.buffer = buffer;
+    this.offset = offset;
+    this.coordinates = null;
+  }
+
+  /**
+   * Moves the coordinates of this geometry to an array, if they are stored
+   * in a buffer.
+   */
+  public void moveToArray()
+  {
+    if (buffer != null) setCoordinates(copyCoordinates());
+  }
+
+  DoubleBuffer getBuffer()
+  {
+    return buffer;
+  }
+
+  int getOffset()
+  {
+    return offset;
+  }
+
+  public double getLength()
+  {
+    double length = 0;
+    int end = 3 * vertexCount - 3;
+    for (int i = 0; i < end; i += 3)
+    {
+      double dx = get(i + 3) - get(i);
+      double dy = get(i + 4) - get(i + 1);
+      double dz = get(i + 5) - get(i + 2);
+      length += Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+    return length;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder builder = new StringBuilder();
+    builder.append(getClass().getSimpleName()).append("(");
+    for (int i = 0; i < 3 * vertexCount; i += 3)
+    {
+      if (i > 0) builder.append(", ");
+      builder.append("Point(").
+        append(get(i)).append(", ").
+        append(get(i + 1)).append(", ").
+        append(get(i + 2)).append(")");
+    }
+    builder.append(")");
+    return builder.toString();
+  }
+
+  @Override
+  public void transform(Matrix4d matrix)
+  {
+    Point3d point = new Point3d();
+    for (int i = 0; i < vertexCount; i++)
+    {
+      getVertex(i, point);
+      matrix.transform(point);
+      int index = 3 * i;
+      put(index, point.x);
+      put(index + 1, point.y);
+      put(index + 2, point.z);
+    }
+    updateBoundingBox();
+  }
+
+  @Override
+  protected void extend(Box box)
+  {
+    for (int i = 0; i < 3 * vertexCount; i += 3)
+    {
+      box.extend(get(i), get(i + 1), get(i + 2));
+    }
+  }
+
+  protected double[] copyCoordinates()
+  {
+    if (vertexCount == 0) return EMPTY;
+    if (buffer == null) return coordinates.clone();
+
+    double[] copy = new double[3 * vertexCount];
+    for (int i = 0; i < copy.length; i++)
+    {
+      copy[i] = buffer.get(offset + i);
+    }
+    return copy;
+  }
+
+  private void setCoordinates(double[] coordinates)
+  {
+    this.coordinates = coordinates;
+    this.vertexCount = coordinates.length / 3;
+    this.buffer = null;
+    this.offset = 0;
+  }
+
+  private double get(int index)
+  {
+    return buffer == null ? coordinates[index] : buffer.get(offset + index);
+  }
+
+  private void put(int index, double value)
+  {
+    if (buffer != null && buffer.isReadOnly())
+    {
+      setCoordinates(copyCoordinates());
+    }
+    if (buffer == null)
+    {
+      coordinates[index] = value;
+    }
+    else
+    {
+      buffer.put(offset + index, value);
+    }
+  }
+
+  class VertexList extends AbstractList<Point3d>
+  {
+    @Override
+    public Point3d get(int index)
+    {
+      if (index < 0 || index >= size())
+        throw new IndexOutOfBoundsException("Index: " + index);
+      return getVertex(index, new Point3d());
+    }
+
+    @Override
+    public Point3d set(int index, Point3d point)
+    {
+      Point3d oldPoint = get(index);
+      setVertex(index, point);
+      return oldPoint;
+    }
+
+    @Override
+    public void add(int index, Point3d point)
+    {
+      insertVertex(index, point);
+      modCount++;
+    }
+
+    @Override
+    public Point3d remove(int index)
+    {
+      Point3d oldPoint = get(index);
+      removeVertex(index);
+      modCount++;
+      return oldPoint;
+    }
+
+    @Override
+    public int size()
+    {
+      return getVertexCount();
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+/**
+ * Layout of the binary simulation files (.tfb).
+ *
+ * The file starts with a header of HEADER_SIZE bytes: magic, version and
+ * section count (int), followed by the offset and length (long) of each
+ * section, so every section can be read on its own. Values are encoded as:
+ *
+ *   varint:     unsigned LEB128
+ *   string:     varint, index in STRINGS plus one, 0 for null
+ *   number:     varint 2 * zigzag(n) for integral values, or varint 1
+ *               followed by the 8 bytes of the double (big endian)
+ *   vertex:     x, y, z as coordinates
+ *   coordinate: varint 2 * zigzag(q - previous q), where q is the
+ *               coordinate multiplied by 10^decimals, for the coordinates
+ *               that are exactly q / 10^decimals, or varint 1 followed by
+ *               the 8 bytes of the double. Each axis has its own previous
+ *               q, which starts at 0 at the beginning of each section.
+ *
+ * Sections:
+ *
+ *   META:       title, srs (string), duration (number), decimals (varint)
+ *   GRAPH:      edge count, then vertex count, vertices, speed, lanes
+ *               (varint) and delay (number) of each edge
+ *   LAYERS:     layer count, then label (string), color (ARGB varint),
+ *               feature count, tile count and tiles: bounding box (xmin,
+ *               ymin, zmin, xmax, ymax, zmax as numbers), feature count,
+ *               length in bytes of the features (int, big endian) and
+ *               features: position (varint), type (varint), vertex count
+ *               (except for points) and vertices. The previous q of the
+ *               coordinates starts at 0 at the beginning of each tile, so
+ *               that tiles can be read on their own. The features of a
+ *               layer are partitioned in tiles by the cell of a grid that
+ *               contains the center of their bounding box, with about
+ *               TILE_SIZE features per tile, in ascending order of their
+ *               position in the layer. The position of the first feature
+ *               of a tile is written as is, and the others as the
+ *               difference with the previous one, so that the order of the
+ *               layer can be restored. In version 2 the features have no
+ *               position: the order of the layer is the order of the tiles.
+ *               In version 1 there are no tiles: the feature count is
+ *               followed by the features.
+ *   GROUPS:     group count, then name (string), journey count and
+ *               journeys: location name (string) and factor (number)
+ *   LOCATIONS:  location count, then name, label (string), origin (varint
+ *               0 or 1) and vertex of each location
+ *   VEHICLES:   vehicle group count, then vertex, count (varint), group
+ *               (string), movement count plus one (0 for no movements) and
+ *               movements: location name (string) and journey count (varint)
+ *   INDICATORS: vehicle count of each edge (varint), then journey, routed
+ *               and unrouted counts (varint), distance and time (number) of
+ *               each vehicle group
+ *   STRINGS:    string count, then length (varint) and UTF-8 bytes of each
+ *               string
+ *
+ * @author realor
+ */
+class BinaryFormat
+{
+  static final int MAGIC = 0x54464231; // TFB1
+  static final int VERSION = 3;
+
+  static final int META = 0;
+  static final int GRAPH = 1;
+  static final int LAYERS = 2;
+  static final int GROUPS = 3;
+  static final int LOCATIONS = 4;
+  static final int VEHICLES = 5;
+  static final int INDICATORS = 6;
+  static final int STRINGS = 7;
+  static final int SECTION_COUNT = 8;
+
+  static final int HEADER_SIZE = 12 + 16 * SECTION_COUNT;
+
+  static final int TILE_SIZE = 4096;
+
+  static final int POINT = 0;
+  static final int LINE_STRING = 1;
+  static final int POLYGON = 2;
+
+  static final int MAX_DECIMALS = 9;
+  static final double MAX_EXACT_LONG = 9007199254740992.0; // 2^53
+  static final double[] POW10 =
+  {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9
+  };
+}
@@ -0,0 +1,160 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.RouteMeter;
+import org.santfeliu.trafsim.Vehicles.VehicleGroup;
+
+/**
+ * Writes the results of the last routing as a columnar binary file (.tfr)
+ * with two tables, EDGES and VEHICLE_GROUPS. All values are big endian:
+ *
+ *   file:   magic, version and table count (int), then the tables
+ *   table:  name (UTF), row count and column count (int), then the columns
+ *   column: name (UTF), type (byte, INT or DOUBLE), then the value of each
+ *           row (int or double)
+ *
+ * Edges have the columns of EDGE_COLUMNS: id, vehicle count, capacity
+ * (vehicles / hour), travel time and time required to move all their
+ * vehicles (seconds). Vehicle groups have the columns of
+ * VEHICLE_GROUP_COLUMNS: id, journey, routed and unrouted counts, distance
+ * (meters) and time (seconds). The id is the position of the feature in
+ * its layer, as the fid of the GML and GeoJSON exports.
+ *
+ * Each column is written in a pass over the features, reading the values
+ * from the edge store and the indicators of each vehicle group.
+ *
+ * @author realor
+ */
+public class BinaryResultWriter
+{
+  public static final String EXTENSION = ".tfr";
+  static final int MAGIC = 0x54465231; // TFR1
+  static final int VERSION = 1;
+  static final int INT = 0;
+  static final int DOUBLE = 1;
+
+  static final String[] EDGE_COLUMNS =
+  {
+    "ID", "VEHICLE_COUNT", "CAPACITY", "TRAVEL_TIME", "REQUIRED_TIME"
+  };
+  static final int[] EDGE_TYPES =
+  {
+    INT, INT, DOUBLE, DOUBLE, DOUBLE
+  };
+  static final String[] VEHICLE_GROUP_COLUMNS =
+  {
+    "ID", "JOURNEY_COUNT", "ROUTED_COUNT", "UNROUTED_COUNT", "DISTANCE",
+    "TIME"
+  };
+  static final int[] VEHICLE_GROUP_TYPES =
+  {
+    INT, INT, INT, INT, DOUBLE, DOUBLE
+  };
+
+  private final DataOutputStream out;
+
+  public BinaryResultWriter(OutputStream os)
+  {
+    out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+  }
+
+  public void write(Collection<Edge> edges,
+    Collection<VehicleGroup> vehicleGroups) throws IOException
+  {
+    try
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(2);
+
+      writeTableHeader("EDGES", edges.size(), EDGE_COLUMNS.length);
+      for (int column = 0; column < EDGE_COLUMNS.length; column++)
+      {
+        out.writeUTF(EDGE_COLUMNS[column]);
+        out.writeByte(EDGE_TYPES[column]);
+        int id = 0;
+        for (Edge edge : edges)
+        {
+          switch (column)
+          {
+            case 0: out.writeInt(id++); break;
+            case 1: out.writeInt(edge.getVehicleCount()); break;
+            case 2: out.writeDouble(RouteMeter.getCapacity(edge)); break;
+            case 3: out.writeDouble(3600 * RouteMeter.getTime(edge)); break;
+            default:
+              out.writeDouble(3600 * RouteMeter.getRequiredTime(edge));
+          }
+        }
+      }
+
+      writeTableHeader("VEHICLE_GROUPS", vehicleGroups.size(),
+        VEHICLE_GROUP_COLUMNS.length);
+      for (int column = 0; column < VEHICLE_GROUP_COLUMNS.length; column++)
+      {
+        out.writeUTF(VEHICLE_GROUP_COLUMNS[column]);
+        out.writeByte(VEHICLE_GROUP_TYPES[column]);
+        int id = 0;
+        for (VehicleGroup vehicleGroup : vehicleGroups)
+        {
+          VehicleGroup.Indicators indicators = vehicleGroup.getIndicators();
+          switch (column)
+          {
+            case 0: out.writeInt(id++); break;
+            case 1: out.writeInt(indicators.journeyCount); break;
+            case 2: out.writeInt(indicators.routedCount); break;
+            case 3: out.writeInt(indicators.unroutedCount); break;
+            case 4: out.writeDouble(indicators.distance); break;
+            default: out.writeDouble(3600 * indicators.time);
+          }
+        }
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private void writeTableHeader(String name, int rowCount, int columnCount)
+    throws IOException
+  {
+    out.writeUTF(name);
+    out.writeInt(rowCount);
+    out.writeInt(columnCount);
+  }
+}
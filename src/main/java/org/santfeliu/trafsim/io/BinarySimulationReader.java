@@ -0,0 +1,659 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.Box;
+import org.santfeliu.trafsim.GenericLayer;
+import org.santfeliu.trafsim.Group;
+import org.santfeliu.trafsim.Indicators;
+import org.santfeliu.trafsim.Locations;
+import org.santfeliu.trafsim.RoadGraph;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.Simulation;
+import org.santfeliu.trafsim.Vehicles;
+import org.santfeliu.trafsim.Vehicles.VehicleGroup;
+import org.santfeliu.trafsim.geom.Geometry;
+import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.Point;
+import org.santfeliu.trafsim.geom.Polygon;
+import static org.santfeliu.trafsim.io.BinaryFormat.*;
+
+/**
+ * Reads a binary simulation file (see BinaryFormat).
+ *
+ * read() loads the whole simulation, but each section can also be loaded
+ * on its own with the other read methods, for example to get only the
+ * road graph of a scenario.
+ *
+ * The features of the base layers are not read: each layer reads them
+ * from the tiles of the file when they are needed. If the file is saved
+ * again, the layers read their tiles from the new file.
+ *
+ * @author realor
+ */
+public class BinarySimulationReader
+{
+  private final File file;
+  private int version;
+  private long fileLength;
+  private long fileModified;
+  private long[] offsets;
+  private long[] lengths;
+  private String[] strings;
+  private int decimals = -1;
+  private ByteBuffer buffer;
+  private final long[] previous = new long[3];
+
+  public BinarySimulationReader(File file)
+  {
+    this.file = file;
+  }
+
+  public Simulation read() throws IOException
+  {
+    Simulation simulation = new Simulation();
+    simulation.begin();
+    try
+    {
+      readMetadata(simulation);
+      readRoadGraph(simulation.getRoadGraph());
+      readGenericLayers(simulation);
+      readGroups(simulation.getGroups());
+      readLocations(simulation.getLocations());
+      readVehicles(simulation.getVehicles());
+      readIndicators(simulation);
+    }
+    finally
+    {
+      simulation.commit();
+    }
+    return simulation;
+  }
+
+  public void readMetadata(Simulation simulation) throws IOException
+  {
+    openSection(META);
+    simulation.setTitle(readString());
+    String srsName = readString();
+    if (srsName != null && srsName.length() > 0)
+    {
+      simulation.setSrsName(srsName);
+    }
+    simulation.setDuration(readNumber());
+  }
+
+  public void readRoadGraph(RoadGraph roadGraph) throws IOException
+  {
+    openSection(GRAPH);
+    int edgeCount = readCount();
+    for (int i = 0; i < edgeCount; i++)
+    {
+      LineString lineString = new LineString(readVertices());
+      int speed = (int)readVarint();
+      int lanes = (int)readVarint();
+      double delay = readNumber();
+      roadGraph.newEdge(lineString, speed, lanes, delay).add();
+    }
+  }
+
+  public void readGenericLayers(Simulation simulation) throws IOException
+  {
+    openSection(LAYERS);
+    int layerCount = readCount();
+    for (int i = 0; i < layerCount; i++)
+    {
+      String label = readString();
+      Color color = new Color((int)readVarint(), true);
+      if (version == 1)
+      {
+        GenericLayer layer = new GenericLayer(label, color);
+        simulation.addGenericLayer(layer);
+        int featureCount = readCount();
+        for (int j = 0; j < featureCount; j++)
+        {
+          layer.newFeature(readGeometry()).add();
+        }
+      }
+      else
+      {
+        LayerTiles tiles = readLayerTiles(i, label);
+        simulation.addGenericLayer(new GenericLayer(label, color, tiles));
+      }
+    }
+  }
+
+  public void readGroups(Map<String, Group> groups) throws IOException
+  {
+    openSection(GROUPS);
+    int groupCount = readCount();
+    for (int i = 0; i < groupCount; i++)
+    {
+      String groupName = readString();
+      Group group = new Group(groupName);
+      groups.put(groupName, group);
+      int journeyCount = readCount();
+      for (int j = 0; j < journeyCount; j++)
+      {
+        String locationName = readString();
+        group.addJourney(locationName, readNumber());
+      }
+    }
+  }
+
+  public void readLocations(Locations locations) throws IOException
+  {
+    openSection(LOCATIONS);
+    int locationCount = readCount();
+    for (int i = 0; i < locationCount; i++)
+    {
+      String name = readString();
+      String label = readString();
+      boolean origin = readVarint() != 0;
+      Point point = readPoint();
+      locations.newLocation(name, label, point, origin).add();
+    }
+  }
+
+  public void readVehicles(Vehicles vehicles) throws IOException
+  {
+    openSection(VEHICLES);
+    Locations locations = vehicles.getLocations();
+    int vehicleGroupCount = readCount();
+    for (int i = 0; i < vehicleGroupCount; i++)
+    {
+      Point point = readPoint();
+      int count = (int)readVarint();
+      String group = readString();
+      int movementCount = readCount() - 1;
+      int[] locationIds = null;
+      int[] journeyCounts = null;
+      if (movementCount >= 0)
+      {
+        locationIds = new int[movementCount];
+        journeyCounts = new int[movementCount];
+        for (int j = 0; j < movementCount; j++)
+        {
+          locationIds[j] = locations.getLocationId(readString());
+          journeyCounts[j] = (int)readVarint();
+        }
+      }
+      vehicles.newVehicleGroup(point, count, group,
+        locationIds, journeyCounts).add();
+    }
+  }
+
+  /**
+   * Reads the indicators of the last routing. The road graph and the
+   * vehicles of the simulation must have been read from this file.
+   *
+   * @param simulation the simulation to update
+   * @throws IOException if the file can not be read
+   */
+  public void readIndicators(Simulation simulation) throws IOException
+  {
+    openSection(INDICATORS);
+    Collection<Edge> edges = simulation.getRoadGraph().getFeatures();
+    Collection<VehicleGroup> vehicleGroups =
+      simulation.getVehicles().getFeatures();
+    for (Edge edge : edges)
+    {
+      edge.setVehicleCount((int)readVarint());
+    }
+    for (VehicleGroup vehicleGroup : vehicleGroups)
+    {
+      VehicleGroup.Indicators vehicleInd = vehicleGroup.getIndicators();
+      vehicleInd.journeyCount = (int)readVarint();
+      vehicleInd.routedCount = (int)readVarint();
+      vehicleInd.unroutedCount = (int)readVarint();
+      vehicleInd.distance = readNumber();
+      vehicleInd.time = readNumber();
+    }
+    if (buffer.hasRemaining())
+      throw new IOException("Indicators do not match the simulation");
+
+    Indicators indicators = simulation.getIndicators();
+    indicators.reset();
+    for (VehicleGroup vehicleGroup : vehicleGroups)
+    {
+      indicators.update(vehicleGroup);
+    }
+    for (Edge edge : edges)
+    {
+      indicators.update(edge);
+    }
+    indicators.updateAverages();
+  }
+
+  private void openSection(int section) throws IOException
+  {
+    if (offsets == null)
+    {
+      readHeader();
+    }
+    if (strings == null && section != STRINGS)
+    {
+      readStrings();
+    }
+    if (decimals == -1 && section != META && section != STRINGS)
+    {
+      openSection(META);
+      readString();
+      readString();
+      readNumber();
+      decimals = readCount();
+      if (decimals > MAX_DECIMALS)
+        throw new IOException("Invalid number of decimals: " + decimals);
+    }
+    buffer = map(offsets[section], lengths[section]);
+    previous[0] = previous[1] = previous[2] = 0;
+  }
+
+  private void readHeader() throws IOException
+  {
+    fileLength = file.length();
+    fileModified = file.lastModified();
+    ByteBuffer header = map(0, HEADER_SIZE);
+    if (header.getInt() != MAGIC)
+      throw new IOException("Not a binary simulation file");
+    version = header.getInt();
+    if (version < 1 || version > VERSION)
+      throw new IOException("Unsupported binary simulation file version");
+    if (header.getInt() != SECTION_COUNT)
+      throw new IOException("Invalid section count");
+    long[] sectionOffsets = new long[SECTION_COUNT];
+    long[] sectionLengths = new long[SECTION_COUNT];
+    for (int section = 0; section < SECTION_COUNT; section++)
+    {
+      sectionOffsets[section] = header.getLong();
+      sectionLengths[section] = header.getLong();
+    }
+    offsets = sectionOffsets;
+    lengths = sectionLengths;
+  }
+
+  private void readStrings() throws IOException
+  {
+    openSection(STRINGS);
+    String[] table = new String[readCount()];
+    byte[] bytes = new byte[256];
+    for (int i = 0; i < table.length; i++)
+    {
+      int length = readCount();
+      if (length > bytes.length)
+      {
+        bytes = new byte[Math.max(length, 2 * bytes.length)];
+      }
+      buffer.get(bytes, 0, length);
+      table[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+    strings = table;
+  }
+
+  private ByteBuffer map(long offset, long length) throws IOException
+  {
+    try (FileChannel channel =
+      FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      if (offset + length > channel.size())
+        throw new IOException("Truncated binary simulation file");
+      return channel.map(MapMode.READ_ONLY, offset, length);
+    }
+  }
+
+  /**
+   * Reads the tile directory of a base layer, so that its features can be
+   * read from the tiles of this file (see GenericLayer.setTileSource).
+   *
+   * @param layerIndex the index of the layer in the file
+   * @return the tiles of the layer
+   * @throws IOException if the file can not be read or has no tiles
+   */
+  public GenericLayer.TileSource readTileSource(int layerIndex)
+    throws IOException
+  {
+    return rereadLayerTiles(layerIndex);
+  }
+
+  /**
+   * Reads the tile directory of a layer, skipping the features. The LAYERS
+   * section must be open, positioned after the color of the layer.
+   */
+  private LayerTiles readLayerTiles(int layerIndex, String label)
+    throws IOException
+  {
+    LayerTiles tiles = new LayerTiles(layerIndex, label);
+    tiles.featureCount = readCount();
+    int tileCount = readCount();
+    tiles.boxes = new Box[tileCount];
+    tiles.counts = new int[tileCount];
+    tiles.firsts = new int[tileCount];
+    tiles.positions = new long[tileCount];
+    tiles.lengths = new int[tileCount];
+    for (int tile = 0; tile < tileCount; tile++)
+    {
+      tiles.boxes[tile] = new Box(readNumber(), readNumber(), readNumber(),
+        readNumber(), readNumber(), readNumber());
+      tiles.counts[tile] = readCount();
+      if (tile > 0)
+      {
+        tiles.firsts[tile] = tiles.firsts[tile - 1] + tiles.counts[tile - 1];
+      }
+      int length = buffer.getInt();
+      if (length < 0 || length > buffer.remaining())
+        throw new IOException("Invalid tile length: " + length);
+      tiles.positions[tile] = offsets[LAYERS] + buffer.position();
+      tiles.lengths[tile] = length;
+      buffer.position(buffer.position() + length);
+    }
+    tiles.fileLength = fileLength;
+    tiles.fileModified = fileModified;
+    return tiles;
+  }
+
+  /**
+   * Reads again the header of the file and the tile directory of a layer.
+   */
+  private LayerTiles rereadLayerTiles(int layerIndex) throws IOException
+  {
+    offsets = null;
+    strings = null;
+    decimals = -1;
+    openSection(LAYERS);
+    if (version == 1)
+      throw new IOException("The file has no tiles: " + file);
+    int layerCount = readCount();
+    if (layerIndex >= layerCount)
+      throw new IOException("Layer not found in " + file);
+    LayerTiles tiles = null;
+    for (int i = 0; i <= layerIndex; i++)
+    {
+      String label = readString();
+      readVarint(); // color
+      tiles = readLayerTiles(i, label);
+    }
+    return tiles;
+  }
+
+  private Geometry readGeometry() throws IOException
+  {
+    int type = (int)readVarint();
+    if (type == POINT) return readPoint();
+    if (type == LINE_STRING) return new LineString(readVertices());
+    if (type == POLYGON) return new Polygon(readVertices());
+    throw new IOException("Invalid geometry type: " + type);
+  }
+
+  private double[] readVertices() throws IOException
+  {
+    int vertexCount = readCount();
+    double[] coordinates = new double[3 * vertexCount];
+    for (int i = 0; i < coordinates.length; i += 3)
+    {
+      coordinates[i] = readCoordinate(0);
+      coordinates[i + 1] = readCoordinate(1);
+      coordinates[i + 2] = readCoordinate(2);
+    }
+    return coordinates;
+  }
+
+  private Point readPoint() throws IOException
+  {
+    double x = readCoordinate(0);
+    double y = readCoordinate(1);
+    double z = readCoordinate(2);
+    return new Point(new Point3d(x, y, z));
+  }
+
+  private double readCoordinate(int axis) throws IOException
+  {
+    long tag = readVarint();
+    if (tag == 1) return readRawDouble();
+    long q = previous[axis] + unzigzag(tag >>> 1);
+    previous[axis] = q;
+    return q / POW10[decimals];
+  }
+
+  private double readNumber() throws IOException
+  {
+    long tag = readVarint();
+    if (tag == 1) return readRawDouble();
+    return unzigzag(tag >>> 1);
+  }
+
+  private double readRawDouble()
+  {
+    return Double.longBitsToDouble(buffer.getLong());
+  }
+
+  private String readString() throws IOException
+  {
+    int index = readCount();
+    if (index == 0) return null;
+    if (index > strings.length)
+      throw new IOException("Invalid string index: " + index);
+    return strings[index - 1];
+  }
+
+  private int readCount() throws IOException
+  {
+    long value = readVarint();
+    if (value > Integer.MAX_VALUE)
+      throw new IOException("Invalid count: " + value);
+    return (int)value;
+  }
+
+  private long readVarint() throws IOException
+  {
+    long value = 0;
+    int shift = 0;
+    while (true)
+    {
+      byte b = buffer.get();
+      value |= (long)(b & 0x7f) << shift;
+      if (b >= 0) return value;
+      shift += 7;
+      if (shift > 63) throw new IOException("Invalid varint");
+    }
+  }
+
+  private static long unzigzag(long value)
+  {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * The tiles of a layer of the file. The tiles are read with the reader,
+   * so the reads of the layers of a file are serialized. When the file
+   * changes, as happens when the simulation is saved again, the tile
+   * directory is read again from the new file.
+   */
+  class LayerTiles implements GenericLayer.TileSource
+  {
+    final int layerIndex;
+    final String label;
+    int featureCount;
+    Box[] boxes;
+    int[] counts;
+    // position in the layer of the first feature of each tile (version 2)
+    int[] firsts;
+    long[] positions;
+    int[] lengths;
+    long fileLength;
+    long fileModified;
+
+    LayerTiles(int layerIndex, String label)
+    {
+      this.layerIndex = layerIndex;
+      this.label = label;
+    }
+
+    @Override
+    public int getFeatureCount()
+    {
+      return featureCount;
+    }
+
+    @Override
+    public int getTileCount()
+    {
+      return boxes.length;
+    }
+
+    @Override
+    public Box getTileBox(int tile)
+    {
+      return boxes[tile];
+    }
+
+    File getFile()
+    {
+      return file;
+    }
+
+    /**
+     * @return the decimals of the coordinates of the file
+     * @throws IOException if the file can not be read
+     */
+    int getDecimals() throws IOException
+    {
+      synchronized (BinarySimulationReader.this)
+      {
+        checkFile();
+        return decimals;
+      }
+    }
+
+    @Override
+    public int getTileFeatureCount(int tile)
+    {
+      return counts[tile];
+    }
+
+    @Override
+    public List<Geometry> readTile(int tile, int[] featurePositions)
+      throws IOException
+    {
+      synchronized (BinarySimulationReader.this)
+      {
+        checkFile();
+        buffer = readTileBytes(tile);
+        previous[0] = previous[1] = previous[2] = 0;
+        List<Geometry> geometries = new ArrayList<Geometry>(counts[tile]);
+        int position = 0;
+        for (int i = 0; i < counts[tile]; i++)
+        {
+          position = version == 2 ? firsts[tile] + i :
+            position + readCount();
+          if (featurePositions != null) featurePositions[i] = position;
+          geometries.add(readGeometry());
+        }
+        return geometries;
+      }
+    }
+
+    /**
+     * Reads the bytes of a tile, to copy them as they are to another file
+     * of the current version.
+     *
+     * @param tile the tile index
+     * @param decimals the decimals of the coordinates of the other file
+     * @return the bytes of the tile, or null if the file has another
+     * version or another number of decimals
+     * @throws IOException if the tile can not be read
+     */
+    byte[] readRawTile(int tile, int decimals) throws IOException
+    {
+      synchronized (BinarySimulationReader.this)
+      {
+        checkFile();
+        if (version != VERSION ||
+          BinarySimulationReader.this.decimals != decimals) return null;
+        return readTileBytes(tile).array();
+      }
+    }
+
+    private void checkFile() throws IOException
+    {
+      if (file.length() != fileLength ||
+        file.lastModified() != fileModified)
+      {
+        update();
+      }
+    }
+
+    private ByteBuffer readTileBytes(int tile) throws IOException
+    {
+      ByteBuffer bytes = ByteBuffer.allocate(lengths[tile]);
+      try (FileChannel channel =
+        FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+        while (bytes.hasRemaining())
+        {
+          if (channel.read(bytes, positions[tile] + bytes.position()) < 0)
+            throw new IOException("Truncated binary simulation file");
+        }
+      }
+      bytes.flip();
+      return bytes;
+    }
+
+    private void update() throws IOException
+    {
+      LayerTiles tiles = rereadLayerTiles(layerIndex);
+      if (!Objects.equals(tiles.label, label) ||
+        tiles.featureCount != featureCount ||
+        tiles.boxes.length != boxes.length)
+        throw new IOException("The layer " + label + " has changed in " +
+          file);
+      boxes = tiles.boxes;
+      counts = tiles.counts;
+      firsts = tiles.firsts;
+      positions = tiles.positions;
+      lengths = tiles.lengths;
+      fileLength = tiles.fileLength;
+      fileModified = tiles.fileModified;
+    }
+  }
+}
@@ -0,0 +1,656 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.Box;
+import org.santfeliu.trafsim.GenericLayer;
+import org.santfeliu.trafsim.Simulation;
+import org.santfeliu.trafsim.geom.Geometry;
+import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.PackedGeometry;
+import org.santfeliu.trafsim.geom.Point;
+import static org.santfeliu.trafsim.io.BinaryFormat.*;
+
+/**
+ * Writes a simulation as a binary simulation file (see BinaryFormat).
+ *
+ * @author realor
+ */
+public class BinarySimulationWriter
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private FileChannel channel;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int count;
+  private long position;
+  private int decimals;
+  private final long[] previous = new long[3];
+  private final HashMap<String, Integer> stringIndex =
+    new HashMap<String, Integer>();
+  private final ArrayList<String> strings = new ArrayList<String>();
+
+  public BinarySimulationWriter(File file)
+  {
+    this.file = file;
+  }
+
+  public void write(Simulation simulation) throws IOException
+  {
+    write(new SimulationSnapshot(simulation));
+  }
+
+  /**
+   * Writes a snapshot of a simulation. As the snapshot does not change,
+   * this method can be called from a background thread.
+   *
+   * @param snapshot the snapshot to write
+   * @throws IOException if the snapshot can not be written
+   */
+  public void write(SimulationSnapshot snapshot) throws IOException
+  {
+    for (GenericLayer.TileSource tiles : snapshot.layerTiles)
+    {
+      if (tiles instanceof BinarySimulationReader.LayerTiles &&
+        ((BinarySimulationReader.LayerTiles)tiles).getFile()
+        .getAbsoluteFile().equals(file.getAbsoluteFile()))
+        throw new IOException("The layers are read from " + file);
+    }
+    decimals = chooseDecimals(snapshot);
+    stringIndex.clear();
+    strings.clear();
+    long[] offsets = new long[SECTION_COUNT];
+    long[] lengths = new long[SECTION_COUNT];
+
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try
+    {
+      position = HEADER_SIZE;
+      channel.position(HEADER_SIZE);
+      count = 0;
+
+      for (int section = 0; section < SECTION_COUNT; section++)
+      {
+        offsets[section] = position + count;
+        previous[0] = previous[1] = previous[2] = 0;
+        writeSection(section, snapshot);
+        lengths[section] = position + count - offsets[section];
+      }
+      flush();
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.putInt(SECTION_COUNT);
+      for (int section = 0; section < SECTION_COUNT; section++)
+      {
+        header.putLong(offsets[section]);
+        header.putLong(lengths[section]);
+      }
+      header.flip();
+      while (header.hasRemaining())
+      {
+        channel.write(header, header.position());
+      }
+    }
+    finally
+    {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private void writeSection(int section, SimulationSnapshot snapshot)
+    throws IOException
+  {
+    switch (section)
+    {
+      case META:
+        writeString(snapshot.title);
+        writeString(snapshot.srsName);
+        writeNumber(snapshot.duration);
+        writeVarint(decimals);
+        break;
+
+      case GRAPH:
+        writeVarint(snapshot.edgeLineStrings.length);
+        for (int i = 0; i < snapshot.edgeLineStrings.length; i++)
+        {
+          writeVertices(snapshot.edgeLineStrings[i]);
+          writeVarint(snapshot.edgeSpeeds[i]);
+          writeVarint(snapshot.edgeLanes[i]);
+          writeNumber(snapshot.edgeDelays[i]);
+        }
+        break;
+
+      case LAYERS:
+        writeVarint(snapshot.layerLabels.length);
+        for (int i = 0; i < snapshot.layerLabels.length; i++)
+        {
+          writeString(snapshot.layerLabels[i]);
+          Color color = snapshot.layerColors[i];
+          writeVarint(color.getRGB() & 0xffffffffL);
+          if (snapshot.layerTiles[i] == null)
+          {
+            writeTiles(snapshot.layerGeometries[i]);
+          }
+          else
+          {
+            writeTiles(snapshot.layerTiles[i]);
+          }
+        }
+        break;
+
+      case GROUPS:
+        writeVarint(snapshot.groupNames.length);
+        for (int i = 0; i < snapshot.groupNames.length; i++)
+        {
+          writeString(snapshot.groupNames[i]);
+          String[] locationNames = snapshot.journeyLocationNames[i];
+          writeVarint(locationNames.length);
+          for (int j = 0; j < locationNames.length; j++)
+          {
+            writeString(locationNames[j]);
+            writeNumber(snapshot.journeyFactors[i][j]);
+          }
+        }
+        break;
+
+      case LOCATIONS:
+        writeVarint(snapshot.locationNames.length);
+        for (int i = 0; i < snapshot.locationNames.length; i++)
+        {
+          writeString(snapshot.locationNames[i]);
+          writeString(snapshot.locationLabels[i]);
+          writeVarint(snapshot.locationOrigins[i] ? 1 : 0);
+          writeVertex(snapshot.locationPoints[i].getPosition());
+        }
+        break;
+
+      case VEHICLES:
+        writeVarint(snapshot.vehiclePoints.length);
+        for (int i = 0; i < snapshot.vehiclePoints.length; i++)
+        {
+          writeVertex(snapshot.vehiclePoints[i].getPosition());
+          writeVarint(snapshot.vehicleCounts[i]);
+          writeString(snapshot.vehicleGroups[i]);
+          String[] locationNames = snapshot.movementLocationNames[i];
+          if (locationNames == null)
+          {
+            writeVarint(0);
+          }
+          else
+          {
+            int[] journeyCounts = snapshot.movementJourneyCounts[i];
+            writeVarint(locationNames.length + 1);
+            for (int j = 0; j < locationNames.length; j++)
+            {
+              writeString(locationNames[j]);
+              writeVarint(journeyCounts[j]);
+            }
+          }
+        }
+        break;
+
+      case INDICATORS:
+        for (int vehicleCount : snapshot.edgeVehicleCounts)
+        {
+          writeVarint(vehicleCount);
+        }
+        for (int i = 0; i < snapshot.vehiclePoints.length; i++)
+        {
+          writeVarint(snapshot.vehicleJourneyCounts[i]);
+          writeVarint(snapshot.vehicleRoutedCounts[i]);
+          writeVarint(snapshot.vehicleUnroutedCounts[i]);
+          writeNumber(snapshot.vehicleDistances[i]);
+          writeNumber(snapshot.vehicleTimes[i]);
+        }
+        break;
+
+      case STRINGS:
+        writeVarint(strings.size());
+        for (String string : strings)
+        {
+          byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+          writeVarint(bytes.length);
+          writeBytes(bytes);
+        }
+        break;
+    }
+  }
+
+  /**
+   * Writes the geometries of a layer partitioned in tiles. The geometries
+   * are sorted by the cell of a square grid over the layer that contains
+   * the center of their bounding box, keeping their order within each
+   * cell, and the geometries of each cell that is not empty form a tile.
+   * Each geometry is preceded by its position, so that the order of the
+   * layer can be restored.
+   */
+  private void writeTiles(Geometry[] geometries) throws IOException
+  {
+    Box box = new Box();
+    for (Geometry geometry : geometries)
+    {
+      box.extend(geometry.getBoundingBox());
+    }
+    int side = (int)Math.ceil(Math.sqrt(
+      (double)geometries.length / TILE_SIZE));
+    if (side == 0) side = 1;
+
+    int[] cells = new int[geometries.length];
+    int[] starts = new int[side * side + 1];
+    for (int i = 0; i < geometries.length; i++)
+    {
+      Box geometryBox = geometries[i].getBoundingBox();
+      int column = getCell(0.5 * (geometryBox.xmin + geometryBox.xmax),
+        box.xmin, box.getWidth(), side);
+      int row = getCell(0.5 * (geometryBox.ymin + geometryBox.ymax),
+        box.ymin, box.getHeight(), side);
+      cells[i] = row * side + column;
+      starts[cells[i] + 1]++;
+    }
+    int tileCount = 0;
+    for (int cell = 0; cell < side * side; cell++)
+    {
+      if (starts[cell + 1] > 0) tileCount++;
+      starts[cell + 1] += starts[cell];
+    }
+    int[] order = new int[geometries.length];
+    int[] next = starts.clone();
+    for (int i = 0; i < geometries.length; i++)
+    {
+      order[next[cells[i]]++] = i;
+    }
+
+    writeVarint(geometries.length);
+    writeVarint(tileCount);
+    for (int cell = 0; cell < side * side; cell++)
+    {
+      int start = starts[cell];
+      int end = starts[cell + 1];
+      if (start == end) continue;
+
+      Box tileBox = new Box();
+      for (int i = start; i < end; i++)
+      {
+        tileBox.extend(geometries[order[i]].getBoundingBox());
+      }
+      writeNumber(tileBox.xmin);
+      writeNumber(tileBox.ymin);
+      writeNumber(tileBox.zmin);
+      writeNumber(tileBox.xmax);
+      writeNumber(tileBox.ymax);
+      writeNumber(tileBox.zmax);
+      writeVarint(end - start);
+
+      long lengthOffset = startTile();
+      int last = 0;
+      for (int i = start; i < end; i++)
+      {
+        writeVarint(order[i] - last);
+        last = order[i];
+        writeGeometry(geometries[order[i]]);
+      }
+      endTile(lengthOffset);
+    }
+  }
+
+  /**
+   * Writes the tiles of a layer that is stored in the tiles of another
+   * file, one tile at a time, keeping its tiling. The bytes of the tiles
+   * are copied as they are when the other file has the same encoding.
+   */
+  private void writeTiles(GenericLayer.TileSource tiles) throws IOException
+  {
+    writeVarint(tiles.getFeatureCount());
+    writeVarint(tiles.getTileCount());
+    for (int tile = 0; tile < tiles.getTileCount(); tile++)
+    {
+      byte[] bytes = null;
+      List<Geometry> geometries = null;
+      int[] positions = null;
+      if (tiles instanceof BinarySimulationReader.LayerTiles)
+      {
+        bytes = ((BinarySimulationReader.LayerTiles)tiles).readRawTile(tile,
+          decimals);
+      }
+      if (bytes == null)
+      {
+        positions = new int[tiles.getTileFeatureCount(tile)];
+        geometries = tiles.readTile(tile, positions);
+      }
+
+      // the directory is read after the tile, as reading may update it
+      Box tileBox = tiles.getTileBox(tile);
+      writeNumber(tileBox.xmin);
+      writeNumber(tileBox.ymin);
+      writeNumber(tileBox.zmin);
+      writeNumber(tileBox.xmax);
+      writeNumber(tileBox.ymax);
+      writeNumber(tileBox.zmax);
+      writeVarint(tiles.getTileFeatureCount(tile));
+
+      long lengthOffset = startTile();
+      if (bytes == null)
+      {
+        int last = 0;
+        for (int i = 0; i < geometries.size(); i++)
+        {
+          writeVarint(positions[i] - last);
+          last = positions[i];
+          writeGeometry(geometries.get(i));
+        }
+      }
+      else
+      {
+        writeBytes(bytes);
+      }
+      endTile(lengthOffset);
+    }
+  }
+
+  /**
+   * Reserves the length of the features of a tile.
+   *
+   * @return the offset of the length
+   */
+  private long startTile() throws IOException
+  {
+    if (count + 4 > buffer.length) flush();
+    long lengthOffset = position + count;
+    count += 4;
+    previous[0] = previous[1] = previous[2] = 0;
+    return lengthOffset;
+  }
+
+  private void endTile(long lengthOffset) throws IOException
+  {
+    writeInt(lengthOffset, (int)(position + count - lengthOffset - 4));
+  }
+
+  private static int getCell(double value, double min, double size,
+    int side)
+  {
+    if (!(size > 0)) return 0;
+    int cell = (int)((value - min) / size * side);
+    return Math.max(0, Math.min(side - 1, cell));
+  }
+
+  private void writeGeometry(Geometry geometry) throws IOException
+  {
+    if (geometry instanceof Point)
+    {
+      writeVarint(POINT);
+      writeVertex(((Point)geometry).getPosition());
+    }
+    else
+    {
+      writeVarint(geometry instanceof LineString ? LINE_STRING : POLYGON);
+      writeVertices((PackedGeometry)geometry);
+    }
+  }
+
+  /**
+   * Writes an int at offset of the file, that may have been flushed or not.
+   * The int can not span a flush.
+   */
+  private void writeInt(long offset, int value) throws IOException
+  {
+    if (offset >= position)
+    {
+      int index = (int)(offset - position);
+      for (int shift = 24; shift >= 0; shift -= 8)
+      {
+        buffer[index++] = (byte)(value >>> shift);
+      }
+    }
+    else
+    {
+      ByteBuffer bytes = ByteBuffer.allocate(4);
+      bytes.putInt(value);
+      bytes.flip();
+      while (bytes.hasRemaining())
+      {
+        channel.write(bytes, offset + bytes.position());
+      }
+    }
+  }
+
+  /**
+   * Chooses the number of decimals of the coordinates: the lowest one that
+   * represents exactly 95% of the coordinates that can be represented with
+   * up to MAX_DECIMALS decimals. The others are written as raw doubles.
+   * The coordinates of the tiled layers are not read: each of their
+   * features counts as a vertex with the decimals of the file it is stored
+   * in, so that their tiles are copied as they are when those decimals are
+   * still the right ones.
+   */
+  private int chooseDecimals(SimulationSnapshot snapshot) throws IOException
+  {
+    long[] histogram = new long[MAX_DECIMALS + 2];
+    for (GenericLayer.TileSource tiles : snapshot.layerTiles)
+    {
+      if (tiles instanceof BinarySimulationReader.LayerTiles)
+      {
+        int tileDecimals =
+          ((BinarySimulationReader.LayerTiles)tiles).getDecimals();
+        histogram[tileDecimals] += 3L * tiles.getFeatureCount();
+      }
+    }
+
+    for (LineString lineString : snapshot.edgeLineStrings)
+    {
+      addToHistogram(lineString, histogram);
+    }
+    for (Geometry[] geometries : snapshot.layerGeometries)
+    {
+      if (geometries == null) continue;
+
+      for (Geometry geometry : geometries)
+      {
+        if (geometry instanceof PackedGeometry)
+        {
+          addToHistogram((PackedGeometry)geometry, histogram);
+        }
+      }
+    }
+    long exact = 0;
+    for (int i = 0; i <= MAX_DECIMALS; i++)
+    {
+      exact += histogram[i];
+    }
+    long covered = 0;
+    for (int i = 0; i <= MAX_DECIMALS; i++)
+    {
+      covered += histogram[i];
+      if (covered >= 0.95 * exact) return i;
+    }
+    return 0;
+  }
+
+  private void addToHistogram(PackedGeometry geometry, long[] histogram)
+  {
+    for (int i = 0; i < geometry.getVertexCount(); i++)
+    {
+      histogram[getDecimals(geometry.getX(i))]++;
+      histogram[getDecimals(geometry.getY(i))]++;
+      histogram[getDecimals(geometry.getZ(i))]++;
+    }
+  }
+
+  /**
+   * @return the lowest number of decimals that represents value exactly,
+   * or MAX_DECIMALS + 1 if there is none
+   */
+  private static int getDecimals(double value)
+  {
+    for (int i = 0; i <= MAX_DECIMALS; i++)
+    {
+      if (isExact(value, i)) return i;
+    }
+    return MAX_DECIMALS + 1;
+  }
+
+  private static boolean isExact(double value, int decimals)
+  {
+    double scaled = value * POW10[decimals];
+    if (Math.abs(scaled) >= MAX_EXACT_LONG) return false;
+    long q = Math.round(scaled);
+    return Double.doubleToLongBits(q / POW10[decimals]) ==
+      Double.doubleToLongBits(value);
+  }
+
+  private void writeVertices(PackedGeometry geometry) throws IOException
+  {
+    int vertexCount = geometry.getVertexCount();
+    writeVarint(vertexCount);
+    for (int i = 0; i < vertexCount; i++)
+    {
+      writeCoordinate(0, geometry.getX(i));
+      writeCoordinate(1, geometry.getY(i));
+      writeCoordinate(2, geometry.getZ(i));
+    }
+  }
+
+  private void writeVertex(Point3d point) throws IOException
+  {
+    writeCoordinate(0, point.x);
+    writeCoordinate(1, point.y);
+    writeCoordinate(2, point.z);
+  }
+
+  private void writeCoordinate(int axis, double value) throws IOException
+  {
+    if (isExact(value, decimals))
+    {
+      long q = Math.round(value * POW10[decimals]);
+      writeVarint(zigzag(q - previous[axis]) << 1);
+      previous[axis] = q;
+    }
+    else
+    {
+      writeRawDouble(value);
+    }
+  }
+
+  private void writeNumber(double value) throws IOException
+  {
+    if (isExact(value, 0))
+    {
+      writeVarint(zigzag((long)value) << 1);
+    }
+    else
+    {
+      writeRawDouble(value);
+    }
+  }
+
+  private void writeRawDouble(double value) throws IOException
+  {
+    writeVarint(1);
+    long bits = Double.doubleToRawLongBits(value);
+    for (int shift = 56; shift >= 0; shift -= 8)
+    {
+      writeByte((int)(bits >>> shift));
+    }
+  }
+
+  private void writeString(String string) throws IOException
+  {
+    if (string == null)
+    {
+      writeVarint(0);
+      return;
+    }
+    Integer index = stringIndex.get(string);
+    if (index == null)
+    {
+      index = strings.size();
+      stringIndex.put(string, index);
+      strings.add(string);
+    }
+    writeVarint(index + 1);
+  }
+
+  private static long zigzag(long value)
+  {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private void writeVarint(long value) throws IOException
+  {
+    while ((value & ~0x7fL) != 0)
+    {
+      writeByte((int)((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    writeByte((int)value);
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException
+  {
+    for (byte b : bytes)
+    {
+      writeByte(b);
+    }
+  }
+
+  private void writeByte(int b) throws IOException
+  {
+    if (count == buffer.length) flush();
+    buffer[count++] = (byte)b;
+  }
+
+  private void flush() throws IOException
+  {
+    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+    while (bytes.hasRemaining())
+    {
+      channel.write(bytes);
+    }
+    position += count;
+    count = 0;
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes text encoded as UTF-8 into a reusable byte buffer. Numbers are
+ * formatted without creating intermediate strings. This is the base of the
+ * writers of text formats, like XML, GeoJSON or CSV.
+ *
+ * I/O errors are kept and thrown by close, so the write methods can be
+ * called without handling them.
+ *
+ * @author realor
+ */
+public abstract class BufferedTextWriter
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final double MAX_EXACT_LONG = 9007199254740992.0; // 2^53
+  private static final double[] POW10 =
+  {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private final OutputStream os;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final byte[] digits = new byte[32];
+  private int count;
+  private int coordinatePrecision = -1;
+  private IOException error;
+
+  protected BufferedTextWriter(OutputStream os)
+  {
+    this.os = os;
+  }
+
+  public int getCoordinatePrecision()
+  {
+    return coordinatePrecision;
+  }
+
+  /**
+   * Sets the number of decimals written for coordinates, for example 3 to
+   * round them to millimetres in a metric reference system.
+   *
+   * @param decimals the number of decimals, or -1 to write the shortest
+   * representation that reads back to the same value
+   */
+  public void setCoordinatePrecision(int decimals)
+  {
+    if (decimals < -1 || decimals >= POW10.length)
+      throw new IllegalArgumentException("Invalid precision: " + decimals);
+    this.coordinatePrecision = decimals;
+  }
+
+  public void close() throws IOException
+  {
+    try
+    {
+      flushBuffer();
+      os.close();
+    }
+    catch (IOException ex)
+    {
+      if (error == null) error = ex;
+    }
+    if (error != null) throw error;
+  }
+
+  protected void writeCoordinate(double value)
+  {
+    if (coordinatePrecision >= 0)
+    {
+      double scaled = Math.abs(value) * POW10[coordinatePrecision];
+      if (scaled < MAX_EXACT_LONG)
+      {
+        long mantissa = Math.round(scaled);
+        int decimals = coordinatePrecision;
+        while (decimals > 0 && mantissa % 10 == 0)
+        {
+          mantissa /= 10;
+          decimals--;
+        }
+        if (value < 0 && mantissa != 0) writeByte('-');
+        writeDecimal(mantissa, decimals);
+        return;
+      }
+    }
+    writeDouble(value);
+  }
+
+  /**
+   * Writes the shortest decimal that reads back to the same double. The
+   * candidate with the fewest decimals is found by scaling with exact
+   * powers of ten: if mantissa / 10^decimals rounds to value, parsing the
+   * decimal string gives value too. Numbers that do not fit in 53 bits
+   * once scaled are written with Double.toString.
+   *
+   * @param value the value to write
+   */
+  protected void writeDouble(double value)
+  {
+    double abs = Math.abs(value);
+    if (abs < MAX_EXACT_LONG)
+    {
+      for (int decimals = 0; decimals < POW10.length; decimals++)
+      {
+        double scaled = abs * POW10[decimals];
+        if (scaled >= MAX_EXACT_LONG) break;
+        long mantissa = Math.round(scaled);
+        if (mantissa / POW10[decimals] == abs)
+        {
+          if (value < 0 || (value == 0 && 1 / value < 0)) writeByte('-');
+          writeDecimal(mantissa, decimals);
+          return;
+        }
+      }
+    }
+    writeChars(Double.toString(value));
+  }
+
+  protected void writeLong(long value)
+  {
+    if (value == Long.MIN_VALUE)
+    {
+      writeChars(Long.toString(value));
+    }
+    else
+    {
+      if (value < 0)
+      {
+        writeByte('-');
+        value = -value;
+      }
+      writeDecimal(value, 0);
+    }
+  }
+
+  /**
+   * Writes mantissa / 10^decimals in plain decimal notation.
+   */
+  private void writeDecimal(long mantissa, int decimals)
+  {
+    int pos = digits.length;
+    int written = 0;
+    do
+    {
+      digits[--pos] = (byte)('0' + mantissa % 10);
+      mantissa /= 10;
+      if (++written == decimals) digits[--pos] = '.';
+    } while (mantissa > 0 || written <= decimals);
+
+    int length = digits.length - pos;
+    ensureCapacity(length);
+    System.arraycopy(digits, pos, buffer, count, length);
+    count += length;
+  }
+
+  protected void writeChars(String text)
+  {
+    writeChars(text, 0, text.length());
+  }
+
+  /**
+   * Writes the characters of text from start to end (exclusive), so that
+   * the runs of characters that need no escaping can be written without
+   * creating substrings.
+   */
+  protected void writeChars(String text, int start, int end)
+  {
+    for (int i = start; i < end; i++)
+    {
+      char ch = text.charAt(i);
+      if (ch < 0x80)
+      {
+        writeByte(ch);
+      }
+      else
+      {
+        ensureCapacity(4);
+        if (ch < 0x800)
+        {
+          buffer[count++] = (byte)(0xc0 | (ch >> 6));
+          buffer[count++] = (byte)(0x80 | (ch & 0x3f));
+        }
+        else if (Character.isHighSurrogate(ch) && i + 1 < end &&
+          Character.isLowSurrogate(text.charAt(i + 1)))
+        {
+          int codePoint = Character.toCodePoint(ch, text.charAt(++i));
+          buffer[count++] = (byte)(0xf0 | (codePoint >> 18));
+          buffer[count++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+          buffer[count++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+          buffer[count++] = (byte)(0x80 | (codePoint & 0x3f));
+        }
+        else
+        {
+          if (Character.isSurrogate(ch)) ch = '?';
+          buffer[count++] = (byte)(0xe0 | (ch >> 12));
+          buffer[count++] = (byte)(0x80 | ((ch >> 6) & 0x3f));
+          buffer[count++] = (byte)(0x80 | (ch & 0x3f));
+        }
+      }
+    }
+  }
+
+  protected void writeByte(int b)
+  {
+    if (count == buffer.length) flush();
+    buffer[count++] = (byte)b;
+  }
+
+  private void ensureCapacity(int length)
+  {
+    if (count + length > buffer.length) flush();
+  }
+
+  private void flush()
+  {
+    try
+    {
+      flushBuffer();
+    }
+    catch (IOException ex)
+    {
+      if (error == null) error = ex;
+      count = 0;
+    }
+  }
+
+  private void flushBuffer() throws IOException
+  {
+    if (error == null && count > 0)
+    {
+      os.write(buffer, 0, count);
+    }
+    count = 0;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens streams that are transparently compressed. Compressed input is
+ * detected by its magic bytes, so it does not depend on the file name, and
+ * is inflated while it is parsed.
+ *
+ * @author realor
+ */
+public class Compression
+{
+  public static final String GZIP_EXTENSION = ".gz";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int GZIP_MAGIC = 0x1f8b;
+  private static final int ZSTD_MAGIC = 0x28b52ffd;
+
+  private Compression()
+  {
+  }
+
+  public static InputStream openInput(File file) throws IOException
+  {
+    return decompress(new FileInputStream(file));
+  }
+
+  /**
+   * Opens a file for writing. If its name ends with GZIP_EXTENSION the
+   * output is gzip compressed.
+   *
+   * @param file the file to write
+   * @return the output stream
+   * @throws IOException if the file can not be created
+   */
+  public static OutputStream openOutput(File file) throws IOException
+  {
+    OutputStream os = new FileOutputStream(file);
+    if (file.getName().endsWith(GZIP_EXTENSION))
+    {
+      return compress(os);
+    }
+    return os;
+  }
+
+  /**
+   * @param is the stream to read, plain or gzip compressed
+   * @return a stream that returns the uncompressed data of is
+   * @throws IOException if the stream can not be read
+   */
+  public static InputStream decompress(InputStream is) throws IOException
+  {
+    BufferedInputStream bis = new BufferedInputStream(is, BUFFER_SIZE);
+    bis.mark(4);
+    int magic = 0;
+    int count = 0;
+    int b;
+    while (count < 4 && (b = bis.read()) != -1)
+    {
+      magic = (magic << 8) | b;
+      count++;
+    }
+    bis.reset();
+
+    if (count >= 2 && (magic >>> (8 * (count - 2))) == GZIP_MAGIC)
+    {
+      return new GZIPInputStream(bis, BUFFER_SIZE);
+    }
+    if (count == 4 && magic == ZSTD_MAGIC)
+    {
+      bis.close();
+      throw new IOException("Zstandard compression is not supported");
+    }
+    return bis;
+  }
+
+  /**
+   * Compresses with gzip at the fastest level, that keeps the save time
+   * close to the time of writing the plain file while repetitive XML still
+   * shrinks several times.
+   *
+   * @param os the stream to write the compressed data to
+   * @return the stream to write the uncompressed data to
+   * @throws IOException if the gzip header can not be written
+   */
+  public static OutputStream compress(OutputStream os) throws IOException
+  {
+    return new GZIPOutputStream(os, BUFFER_SIZE)
+    {
+      {
+        def.setLevel(Deflater.BEST_SPEED);
+      }
+    };
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.util.Arrays;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Gathers the text of XML elements into a reusable char buffer and parses
+ * the coordinates it contains without splitting it into Strings.
+ *
+ * @author realor
+ */
+class CoordinateParser
+{
+  private static final double[] POW10 =
+  {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  private char[] text = new char[256];
+  private int textLength;
+  private double[] coordinates = new double[48];
+
+  void clear()
+  {
+    textLength = 0;
+  }
+
+  /**
+   * Appends the text of the current event of reader to the buffer.
+   */
+  void append(XMLStreamReader reader) throws XMLStreamException
+  {
+    int count = reader.getTextLength();
+    if (textLength + count > text.length)
+    {
+      text = Arrays.copyOf(text, Math.max(2 * text.length, textLength + count));
+    }
+    reader.getTextCharacters(0, text, textLength, count);
+    textLength += count;
+  }
+
+  @Override
+  public String toString()
+  {
+    return new String(text, 0, textLength);
+  }
+
+  /**
+   * Parses a list of vertices with the form "x,y[,z] x,y[,z] ...".
+   *
+   * @return the coordinates of the vertices, 3 per vertex
+   */
+  double[] parseTuples()
+  {
+    int count = 0;
+    int i = 0;
+    while (true)
+    {
+      while (i < textLength && Character.isWhitespace(text[i])) i++;
+      if (i == textLength) break;
+
+      ensureCapacity(count + 3);
+      int dimension = 0;
+      while (true)
+      {
+        int start = i;
+        while (i < textLength && text[i] != ',' &&
+          !Character.isWhitespace(text[i])) i++;
+        if (dimension < 3)
+        {
+          coordinates[count + dimension] = parseDouble(text, start, i);
+        }
+        dimension++;
+        if (i < textLength && text[i] == ',') i++;
+        else break;
+      }
+      if (dimension < 2)
+        throw new NumberFormatException("Invalid vertex");
+      if (dimension == 2)
+      {
+        coordinates[count + 2] = 0.0;
+      }
+      count += 3;
+    }
+    return Arrays.copyOf(coordinates, count);
+  }
+
+  /**
+   * Parses a list of numbers separated by whitespace, as in GML 3 pos and
+   * posList elements.
+   *
+   * @param dimension the number of coordinates of each vertex, 2 or 3
+   * @return the coordinates of the vertices, 3 per vertex
+   */
+  double[] parseList(int dimension)
+  {
+    int count = 0;
+    int axis = 0;
+    int i = 0;
+    while (true)
+    {
+      while (i < textLength && Character.isWhitespace(text[i])) i++;
+      if (i == textLength) break;
+
+      int start = i;
+      while (i < textLength && !Character.isWhitespace(text[i])) i++;
+      if (axis == 0) ensureCapacity(count + 3);
+      if (axis < 3)
+      {
+        coordinates[count + axis] = parseDouble(text, start, i);
+      }
+      if (++axis == dimension)
+      {
+        if (dimension == 2) coordinates[count + 2] = 0.0;
+        count += 3;
+        axis = 0;
+      }
+    }
+    if (axis != 0)
+      throw new NumberFormatException("Invalid vertex");
+    return Arrays.copyOf(coordinates, count);
+  }
+
+  private void ensureCapacity(int length)
+  {
+    if (length > coordinates.length)
+    {
+      coordinates = Arrays.copyOf(coordinates,
+        Math.max(2 * coordinates.length, length));
+    }
+  }
+
+  /**
+   * Parses a plain decimal number without creating a String. Numbers with
+   * up to 15 digits are exactly representable as a long and 10^22 is the
+   * largest exact power of ten, so the division is correctly rounded as in
+   * Double.parseDouble. Other numbers are delegated to it.
+   */
+  static double parseDouble(char[] chars, int start, int end)
+  {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (chars[i] == '-' || chars[i] == '+'))
+    {
+      negative = chars[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int decimals = -1;
+    for (; i < end; i++)
+    {
+      char ch = chars[i];
+      if (ch >= '0' && ch <= '9')
+      {
+        mantissa = 10 * mantissa + (ch - '0');
+        digits++;
+        if (decimals >= 0) decimals++;
+      }
+      else if (ch == '.' && decimals == -1)
+      {
+        decimals = 0;
+      }
+      else
+      {
+        digits = Integer.MAX_VALUE;
+        break;
+      }
+    }
+    if (digits == 0 || digits > 15 || decimals > 22)
+    {
+      return Double.parseDouble(new String(chars, start, end - start));
+    }
+    double value = decimals > 0 ? mantissa / POW10[decimals] : mantissa;
+    return negative ? -value : value;
+  }
+}
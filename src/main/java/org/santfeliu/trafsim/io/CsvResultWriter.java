@@ -0,0 +1,120 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.RouteMeter;
+import org.santfeliu.trafsim.Vehicles.VehicleGroup;
+
+/**
+ * Writes the results of the last routing as CSV: one row per edge or per
+ * vehicle group, with the columns of BinaryResultWriter. The values are
+ * read from the edge store and the indicators of each vehicle group and
+ * encoded into the byte buffer of BufferedTextWriter.
+ *
+ * @author realor
+ */
+public class CsvResultWriter extends BufferedTextWriter
+{
+  public CsvResultWriter(OutputStream os)
+  {
+    super(os);
+  }
+
+  public void writeEdges(Collection<Edge> edges) throws IOException
+  {
+    try
+    {
+      writeHeader(BinaryResultWriter.EDGE_COLUMNS);
+      int id = 0;
+      for (Edge edge : edges)
+      {
+        writeLong(id++);
+        writeByte(',');
+        writeLong(edge.getVehicleCount());
+        writeByte(',');
+        writeDouble(RouteMeter.getCapacity(edge));
+        writeByte(',');
+        writeDouble(3600 * RouteMeter.getTime(edge));
+        writeByte(',');
+        writeDouble(3600 * RouteMeter.getRequiredTime(edge));
+        writeByte('\n');
+      }
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  public void writeVehicleGroups(Collection<VehicleGroup> vehicleGroups)
+    throws IOException
+  {
+    try
+    {
+      writeHeader(BinaryResultWriter.VEHICLE_GROUP_COLUMNS);
+      int id = 0;
+      for (VehicleGroup vehicleGroup : vehicleGroups)
+      {
+        VehicleGroup.Indicators indicators = vehicleGroup.getIndicators();
+        writeLong(id++);
+        writeByte(',');
+        writeLong(indicators.journeyCount);
+        writeByte(',');
+        writeLong(indicators.routedCount);
+        writeByte(',');
+        writeLong(indicators.unroutedCount);
+        writeByte(',');
+        writeDouble(indicators.distance);
+        writeByte(',');
+        writeDouble(3600 * indicators.time);
+        writeByte('\n');
+      }
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  private void writeHeader(String[] columns)
+  {
+    for (int i = 0; i < columns.length; i++)
+    {
+      if (i > 0) writeByte(',');
+      writeChars(columns[i]);
+    }
+    writeByte('\n');
+  }
+}
@@ -34,23 +34,31 @@ package org.santfeliu.trafsim.io;
 import org.santfeliu.trafsim.geom.Geometry;
 import org.santfeliu.trafsim.geom.LineString;
 import org.santfeliu.trafsim.geom.Point;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.ArrayList;
+import java.net.URLEncoder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.vecmath.Point3d;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.santfeliu.trafsim.geom.Polygon;
 
 /**
@@ -59,7 +67,19 @@ import org.santfeliu.trafsim.geom.Polygon;
  */
 public class GMLReader
 {
+  private static final String GML_NAMESPACE = "http://www.opengis.net/gml";
+  private static final Set<String> GEOMETRY_TYPES = new HashSet<String>(
+    Arrays.asList("Point", "LineString", "Polygon", "LinearRing", "Curve",
+    "Surface", "MultiPoint", "MultiLineString", "MultiPolygon",
+    "MultiCurve", "MultiSurface", "MultiGeometry", "Envelope", "Box"));
+
   private String srsName = "EPSG:25831";
+  private int pageSize = 1000;
+  private int threadCount = 4;
+  private int maxRetries = 3;
+  private int retryDelay = 500;
+  private int timeout = 30000;
+  private final CoordinateParser parser = new CoordinateParser();
 
   public String getSrsName()
   {
@@ -71,145 +91,542 @@ public class GMLReader
     this.srsName = srsName;
   }
 
+  public int getPageSize()
+  {
+    return pageSize;
+  }
+
+  /**
+   * @param pageSize the number of features requested per page from a WFS
+   * 2.0 server, or 0 to request the whole layer at once with WFS 1.0
+   */
+  public void setPageSize(int pageSize)
+  {
+    this.pageSize = pageSize;
+  }
+
+  public int getThreadCount()
+  {
+    return threadCount;
+  }
+
+  /**
+   * @param threadCount the maximum number of pages requested concurrently
+   */
+  public void setThreadCount(int threadCount)
+  {
+    if (threadCount < 1)
+      throw new IllegalArgumentException("Invalid thread count");
+    this.threadCount = threadCount;
+  }
+
+  public int getMaxRetries()
+  {
+    return maxRetries;
+  }
+
+  public void setMaxRetries(int maxRetries)
+  {
+    this.maxRetries = maxRetries;
+  }
+
+  public int getRetryDelay()
+  {
+    return retryDelay;
+  }
+
+  /**
+   * @param retryDelay milliseconds to wait before the first retry of a
+   * request, doubled on each retry
+   */
+  public void setRetryDelay(int retryDelay)
+  {
+    this.retryDelay = retryDelay;
+  }
+
+  public int getTimeout()
+  {
+    return timeout;
+  }
+
+  /**
+   * @param timeout the connect and read timeout of requests in milliseconds
+   */
+  public void setTimeout(int timeout)
+  {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Reads a layer from a WFS server. When pageSize is greater than 0 the
+   * layer is requested in pages (WFS 2.0 count and startIndex), up to
+   * threadCount pages at a time. Pages are parsed in order on the calling
+   * thread as they arrive, and the next page starts after the features
+   * actually returned: if the server returns less features than requested,
+   * because it limits the features per page, the pages requested ahead are
+   * discarded and requested again with the limit of the server. Paging
+   * ends with an empty page, or when numberMatched features are read.
+   * Failed requests are retried with exponential backoff.
+   */
   public void readLayer(String wfsUrl, String layerName,
      String username, String password, Processor processor) throws Exception
   {
-    URL url = new URL(wfsUrl +
-      "?service=WFS&version=1.0.0&request=GetFeature&typeName=" + layerName +
-      "&outputFormat=text/xml;%20subtype=gml/2.1.2&srsName=" + srsName);
-    URLConnection conn = url.openConnection();
-    conn.setConnectTimeout(10000);
-    conn.setReadTimeout(10000);
+    String authorization = getAuthorization(username, password);
+    String baseUrl = wfsUrl + (wfsUrl.indexOf('?') == -1 ? "?" : "&");
+    String typeName = URLEncoder.encode(layerName, "UTF-8");
+    String srs = URLEncoder.encode(srsName, "UTF-8");
+
+    if (pageSize <= 0)
+    {
+      URL url = new URL(baseUrl +
+        "service=WFS&version=1.0.0&request=GetFeature&typeName=" + typeName +
+        "&outputFormat=text/xml;%20subtype=gml/2.1.2&srsName=" + srs);
+      readLayer(openStream(url, authorization), processor);
+      return;
+    }
+
+    String pageUrl = baseUrl +
+      "service=WFS&version=2.0.0&request=GetFeature&typeNames=" + typeName +
+      "&srsName=" + srs + "&count=" + pageSize + "&startIndex=";
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+      runnable ->
+      {
+        Thread thread = new Thread(runnable, "WFS reader");
+        thread.setDaemon(true);
+        return thread;
+      });
+    try
+    {
+      ArrayDeque<Future<byte[]>> pages = new ArrayDeque<Future<byte[]>>();
+      int[] featureCount = new int[1];
+      Processor pageProcessor = (geometry, attributes) ->
+      {
+        featureCount[0]++;
+        processor.processEntity(geometry, attributes);
+      };
+      long startIndex = 0; // start of the next page to request
+      long readCount = 0; // features read
+      int step = pageSize; // features expected per page
+      while (true)
+      {
+        while (pages.size() < threadCount)
+        {
+          URL url = new URL(pageUrl + startIndex);
+          pages.add(executor.submit(() -> fetch(url, authorization)));
+          startIndex += step;
+        }
+        byte[] page;
+        try
+        {
+          page = pages.poll().get();
+        }
+        catch (ExecutionException ex)
+        {
+          Throwable cause = ex.getCause();
+          throw cause instanceof Exception ? (Exception)cause : ex;
+        }
+        featureCount[0] = 0;
+        long matchedCount =
+          readCollection(new ByteArrayInputStream(page), pageProcessor);
+        int returnedCount = featureCount[0];
+        readCount += returnedCount;
+        if (returnedCount == 0 ||
+          (matchedCount >= 0 && readCount >= matchedCount)) break;
+
+        if (returnedCount != step)
+        {
+          // the pages requested ahead do not start after this one
+          for (Future<byte[]> future : pages)
+          {
+            future.cancel(true);
+          }
+          pages.clear();
+          step = returnedCount;
+          startIndex = readCount;
+        }
+      }
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  private String getAuthorization(String username, String password)
+  {
     if (username != null && password != null &&
         username.length() > 0 && password.length() > 0)
     {
       String userPassString = username + ":" + password;
-      String autho = "Basic " +
+      return "Basic " +
         new String(Base64.getEncoder().encode(userPassString.getBytes()));
-      conn.setRequestProperty("Authorization", autho);
     }
-    // set username / password to conn
-    readLayer(conn.getInputStream(), processor);
+    return null;
+  }
+
+  /**
+   * Gets the content of url, retrying with exponential backoff when the
+   * request fails with an I/O error or a server error.
+   */
+  protected byte[] fetch(URL url, String authorization)
+    throws IOException, InterruptedException
+  {
+    int attempt = 0;
+    while (true)
+    {
+      try (InputStream is = connect(url, authorization))
+      {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = is.read(buffer)) != -1)
+        {
+          os.write(buffer, 0, count);
+        }
+        return os.toByteArray();
+      }
+      catch (IOException ex)
+      {
+        if (!isRetryable(ex) || attempt >= maxRetries) throw ex;
+        Thread.sleep((long)retryDelay << attempt++);
+      }
+    }
+  }
+
+  /**
+   * Opens a stream to read url, retrying with exponential backoff when the
+   * connection fails. Errors while reading the stream are not retried.
+   */
+  protected InputStream openStream(URL url, String authorization)
+    throws IOException, InterruptedException
+  {
+    int attempt = 0;
+    while (true)
+    {
+      try
+      {
+        return connect(url, authorization);
+      }
+      catch (IOException ex)
+      {
+        if (!isRetryable(ex) || attempt >= maxRetries) throw ex;
+        Thread.sleep((long)retryDelay << attempt++);
+      }
+    }
+  }
+
+  private InputStream connect(URL url, String authorization)
+    throws IOException
+  {
+    URLConnection conn = url.openConnection();
+    conn.setConnectTimeout(timeout);
+    conn.setReadTimeout(timeout);
+    if (authorization != null)
+    {
+      conn.setRequestProperty("Authorization", authorization);
+    }
+    if (conn instanceof HttpURLConnection)
+    {
+      HttpURLConnection httpConn = (HttpURLConnection)conn;
+      int status = httpConn.getResponseCode();
+      if (status >= 400)
+      {
+        httpConn.disconnect();
+        throw new HttpStatusException(url, status);
+      }
+    }
+    return conn.getInputStream();
+  }
+
+  private boolean isRetryable(IOException ex)
+  {
+    if (ex instanceof HttpStatusException)
+    {
+      int status = ((HttpStatusException)ex).getStatus();
+      return status >= 500 || status == 429;
+    }
+    return true;
   }
 
   public void readLayer(File file, Processor processor) throws Exception
   {
-    readLayer(new FileInputStream(file), processor);
+    readLayer(Compression.openInput(file), processor);
   }
 
+  /**
+   * Reads the features of a GML 2 or GML 3 feature collection. The stream
+   * is parsed as it is read and processor is called once per feature, so
+   * the memory used does not depend on the number of features. The
+   * attributes map passed to processor is reused for all the features.
+   *
+   * @param is the stream to read
+   * @param processor the processor of the features
+   * @throws Exception if the stream can not be read
+   */
   public void readLayer(InputStream is, Processor processor) throws Exception
   {
+    readCollection(is, processor);
+  }
+
+  /**
+   * Reads a feature collection as readLayer does.
+   *
+   * @return the numberMatched attribute of the collection (WFS 2.0), or -1
+   * if it is missing or unknown
+   */
+  private long readCollection(InputStream is, Processor processor)
+    throws Exception
+  {
+    long matchedCount = -1;
+    XMLStreamReader reader = null;
     try
     {
-      DocumentBuilderFactory factory =
-      DocumentBuilderFactory.newInstance();
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(is);
-      Element collection = doc.getDocumentElement();
-      NodeList features = collection.getElementsByTagName("gml:featureMember");
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      reader = factory.createXMLStreamReader(is);
+      reader.nextTag();
+      String rootName = reader.getLocalName();
+      if ("ExceptionReport".equals(rootName) ||
+        "ServiceExceptionReport".equals(rootName))
+      {
+        readText(reader);
+        throw new IOException("WFS error: " + parser.toString().trim());
+      }
+      String numberMatched = reader.getAttributeValue(null, "numberMatched");
+      if (numberMatched != null)
+      {
+        try
+        {
+          matchedCount = Long.parseLong(numberMatched.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+          // "unknown"
+        }
+      }
       HashMap attributes = new HashMap();
-      for (int i = 0; i < features.getLength(); i++)
-      {
-        Element featureMember = (Element)features.item(i);
-        NodeList nodeList = featureMember.getElementsByTagName("*");
-        Element feature = (Element)nodeList.item(0);
-        attributes.clear();
-        Geometry geometry = null;
-        NodeList featureList = feature.getElementsByTagName("*");
-        for (int j = 0; j < featureList.getLength(); j++)
+      while (reader.hasNext())
+      {
+        if (reader.next() == XMLStreamConstants.START_ELEMENT)
         {
-          Element field = (Element)featureList.item(j);
-          Node content = field.getFirstChild();
-          if (content == null)
-          {
-            // ignore
-          }
-          else if (content.getNodeType() == Node.TEXT_NODE)
+          String name = reader.getLocalName();
+          if ("featureMember".equals(name) ||
+            "featureMembers".equals(name) || "member".equals(name))
           {
-            String fieldName = field.getNodeName();
-            int index = fieldName.indexOf(":");
-            if (index != -1) fieldName = fieldName.substring(index + 1);
-            attributes.put(fieldName, content.getTextContent());
-          }
-          else if (content.getNodeType() == Node.ELEMENT_NODE)
-          {
-            String geometryType = content.getNodeName();
-            if ("gml:Point".equals(geometryType))
+            while (nextChild(reader))
             {
-              geometry = parsePoint(content.getTextContent());
-            }
-            else if ("gml:LineString".equals(geometryType))
-            {
-              geometry = parseLineString(content.getTextContent());
-            }
-            else if ("gml:Polygon".equals(geometryType))
-            {
-              geometry = parsePolygon(content.getTextContent());
+              readFeature(reader, attributes, processor);
             }
           }
         }
-        processor.processEntity(geometry, attributes);
       }
     }
     finally
     {
+      if (reader != null) reader.close();
       is.close();
     }
+    return matchedCount;
   }
 
-  protected Point parsePoint(String text)
+  /**
+   * Reads the feature that starts at the current element. The elements of
+   * the feature that only have text, nested or not, are attributes named
+   * by their local name, and the first GML Point, LineString or Polygon is
+   * the geometry.
+   */
+  protected void readFeature(XMLStreamReader reader, Map attributes,
+    Processor processor) throws XMLStreamException
   {
-    String parts[] = text.split(",");
-    Point3d coords = new Point3d();
-    coords.x = Double.parseDouble(parts[0]);
-    coords.y = Double.parseDouble(parts[1]);
-    if (parts.length >= 3)
+    attributes.clear();
+    Geometry geometry = null;
+    while (nextChild(reader))
     {
-      coords.z = Double.parseDouble(parts[2]);
+      Geometry fieldGeometry = readProperty(reader, attributes);
+      if (geometry == null) geometry = fieldGeometry;
     }
-    return new Point(coords);
+    processor.processEntity(geometry, attributes);
   }
 
-  protected LineString parseLineString(String text)
+  /**
+   * Reads the property that starts at the current element. Its text is an
+   * attribute if it has no child elements, otherwise its child elements are
+   * read as geometries or as nested properties.
+   *
+   * @return the first geometry of the property, or null if it has none
+   */
+  private Geometry readProperty(XMLStreamReader reader, Map attributes)
+    throws XMLStreamException
   {
-    List<Point3d> points = new ArrayList<Point3d>();
-    String vertices[] = text.split(" ");
-    for (String vertex : vertices)
+    String name = reader.getLocalName();
+    Geometry geometry = null;
+    boolean hasText = false;
+    boolean hasChildren = false;
+    parser.clear();
+    while (true)
     {
-      String[] parts = vertex.split(",");
-      Point3d coords = new Point3d();
-      coords.x = Double.parseDouble(parts[0]);
-      coords.y = Double.parseDouble(parts[1]);
-      if (parts.length >= 3)
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT)
       {
-        coords.z = Double.parseDouble(parts[2]);
+        if (hasText && !hasChildren)
+        {
+          attributes.put(name, parser.toString());
+        }
+        return geometry;
+      }
+      else if (event == XMLStreamConstants.START_ELEMENT)
+      {
+        hasChildren = true;
+        Geometry childGeometry = isGeometry(reader) ?
+          readGeometry(reader) : readProperty(reader, attributes);
+        if (geometry == null) geometry = childGeometry;
+      }
+      else if (event == XMLStreamConstants.CHARACTERS ||
+        event == XMLStreamConstants.CDATA)
+      {
+        parser.append(reader);
+        hasText = true;
       }
-      points.add(coords);
     }
-    return new LineString(points);
   }
 
-  protected Polygon parsePolygon(String text)
+  /**
+   * @return true if the current element is a GML geometry
+   */
+  private boolean isGeometry(XMLStreamReader reader)
   {
-    List<Point3d> points = new ArrayList<Point3d>();
-    String vertices[] = text.split(" ");
-    for (String vertex : vertices)
+    if (!GEOMETRY_TYPES.contains(reader.getLocalName())) return false;
+    String namespace = reader.getNamespaceURI();
+    return namespace == null || namespace.length() == 0 ||
+      namespace.startsWith(GML_NAMESPACE);
+  }
+
+  /**
+   * Reads the geometry that starts at the current element. Only the
+   * exterior ring of polygons is read.
+   *
+   * @return the geometry, or null if its type is not supported
+   */
+  protected Geometry readGeometry(XMLStreamReader reader)
+    throws XMLStreamException
+  {
+    String geometryType = reader.getLocalName();
+    int dimension = getDimension(reader, 2);
+    double[] coordinates = null;
+    int depth = 1;
+    while (depth > 0)
     {
-      String[] parts = vertex.split(",");
-      Point3d coords = new Point3d();
-      coords.x = Double.parseDouble(parts[0]);
-      coords.y = Double.parseDouble(parts[1]);
-      if (parts.length >= 3)
+      int event = reader.next();
+      if (event == XMLStreamConstants.END_ELEMENT)
       {
-        coords.z = Double.parseDouble(parts[2]);
+        depth--;
       }
-      points.add(coords);
+      else if (event == XMLStreamConstants.START_ELEMENT)
+      {
+        String name = reader.getLocalName();
+        if ("interior".equals(name) || "innerBoundaryIs".equals(name) ||
+          coordinates != null)
+        {
+          skipElement(reader);
+        }
+        else if ("coordinates".equals(name))
+        {
+          readText(reader);
+          coordinates = parser.parseTuples();
+        }
+        else if ("pos".equals(name) || "posList".equals(name))
+        {
+          int posDimension = getDimension(reader, dimension);
+          readText(reader);
+          coordinates = parser.parseList(posDimension);
+        }
+        else
+        {
+          depth++;
+        }
+      }
+    }
+    if (coordinates == null || coordinates.length == 0) return null;
+
+    if ("Point".equals(geometryType))
+    {
+      return new Point(
+        new Point3d(coordinates[0], coordinates[1], coordinates[2]));
+    }
+    else if ("LineString".equals(geometryType))
+    {
+      return new LineString(coordinates);
+    }
+    else if ("Polygon".equals(geometryType))
+    {
+      return new Polygon(coordinates);
+    }
+    return null;
+  }
+
+  private int getDimension(XMLStreamReader reader, int defaultDimension)
+  {
+    String value = reader.getAttributeValue(null, "srsDimension");
+    if (value == null) return defaultDimension;
+    return "3".equals(value.trim()) ? 3 : 2;
+  }
+
+  private boolean nextChild(XMLStreamReader reader) throws XMLStreamException
+  {
+    while (reader.hasNext())
+    {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) return true;
+      if (event == XMLStreamConstants.END_ELEMENT) return false;
+    }
+    return false;
+  }
+
+  private void skipElement(XMLStreamReader reader) throws XMLStreamException
+  {
+    int depth = 1;
+    while (depth > 0)
+    {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+    }
+  }
+
+  private void readText(XMLStreamReader reader) throws XMLStreamException
+  {
+    parser.clear();
+    int depth = 1;
+    while (depth > 0)
+    {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+      else if (event == XMLStreamConstants.CHARACTERS ||
+        event == XMLStreamConstants.CDATA) parser.append(reader);
     }
-    return new Polygon(points);
   }
 
   public interface Processor
   {
     public void processEntity(Geometry geometry, Map attributes);
   }
+
+  public static class HttpStatusException extends IOException
+  {
+    private final int status;
+
+    public HttpStatusException(URL url, int status)
+    {
+      super("HTTP " + status + ": " + url);
+      this.status = status;
+    }
+
+    public int getStatus()
+    {
+      return status;
+    }
+  }
 }
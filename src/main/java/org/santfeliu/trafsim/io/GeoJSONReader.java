@@ -0,0 +1,515 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.geom.Geometry;
+import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.Point;
+import org.santfeliu.trafsim.geom.Polygon;
+import org.santfeliu.trafsim.io.GMLReader.Processor;
+
+/**
+ * Reads GeoJSON features one by one and passes them to a Processor, so
+ * memory does not depend on the size of the input.
+ *
+ * Feature properties are passed as Strings, like GMLReader does. Nested
+ * objects, arrays and null properties are ignored. Point, LineString and
+ * Polygon geometries are supported (only the exterior ring of polygons).
+ *
+ * @author realor
+ */
+public class GeoJSONReader
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private Reader reader;
+  private final char[] buffer = new char[BUFFER_SIZE];
+  private int position;
+  private int limit;
+  private final StringBuilder text = new StringBuilder();
+  private char[] number = new char[32];
+  private double[] coordinates = new double[48];
+  private int coordinateCount;
+  private int[] ringEnds = new int[8];
+  private int ringCount;
+  private final Map<String, String> attributes = new HashMap<>();
+
+  public void readLayer(File file, Processor processor) throws IOException
+  {
+    readLayer(Compression.openInput(file), processor);
+  }
+
+  /**
+   * Reads a FeatureCollection or a single Feature.
+   *
+   * @param is the GeoJSON stream, closed on return
+   * @param processor the processor that receives each feature
+   * @throws IOException if the stream can not be read or is not GeoJSON
+   */
+  public void readLayer(InputStream is, Processor processor)
+    throws IOException
+  {
+    try (Reader r = new InputStreamReader(is, StandardCharsets.UTF_8))
+    {
+      reader = r;
+      position = limit = 0;
+      expect('{');
+      if (isEmpty('}')) return;
+      do
+      {
+        String name = readString();
+        expect(':');
+        if ("features".equals(name))
+        {
+          readFeatures(processor);
+        }
+        else if ("geometry".equals(name) || "properties".equals(name))
+        {
+          // a single Feature: read it all from here
+          readFeature(name, processor);
+          return;
+        }
+        else
+        {
+          skipValue();
+        }
+      } while (nextItem('}'));
+    }
+    finally
+    {
+      reader = null;
+      attributes.clear();
+    }
+  }
+
+  private void readFeatures(Processor processor) throws IOException
+  {
+    expect('[');
+    if (isEmpty(']')) return;
+    do
+    {
+      expect('{');
+      String name = null;
+      if (!isEmpty('}'))
+      {
+        name = readString();
+        expect(':');
+      }
+      readFeature(name, processor);
+    } while (nextItem(']'));
+  }
+
+  /**
+   * Reads the members of a feature object and processes it.
+   *
+   * @param name the name of the first member, already followed by ':',
+   * or null if the object is empty
+   */
+  private void readFeature(String name, Processor processor)
+    throws IOException
+  {
+    attributes.clear();
+    Geometry geometry = null;
+    if (name != null)
+    {
+      do
+      {
+        if (name == null)
+        {
+          name = readString();
+          expect(':');
+        }
+        if ("geometry".equals(name))
+        {
+          geometry = readGeometry();
+        }
+        else if ("properties".equals(name))
+        {
+          readProperties();
+        }
+        else
+        {
+          skipValue();
+        }
+        name = null;
+      } while (nextItem('}'));
+    }
+    processor.processEntity(geometry, attributes);
+  }
+
+  private void readProperties() throws IOException
+  {
+    int ch = peek();
+    if (ch == 'n')
+    {
+      skipValue();
+      return;
+    }
+    expect('{');
+    if (isEmpty('}')) return;
+    do
+    {
+      String name = readString();
+      expect(':');
+      ch = peek();
+      if (ch == '"')
+      {
+        attributes.put(name, readString());
+      }
+      else if (ch == '-' || (ch >= '0' && ch <= '9'))
+      {
+        int length = readNumber();
+        attributes.put(name, new String(number, 0, length));
+      }
+      else if (ch == 't' || ch == 'f')
+      {
+        attributes.put(name, readLiteral());
+      }
+      else
+      {
+        skipValue();
+      }
+    } while (nextItem('}'));
+  }
+
+  /**
+   * Reads a geometry object. Its members may come in any order, so the
+   * coordinates are read before knowing the geometry type.
+   *
+   * @return the geometry, or null if its type is not supported
+   */
+  private Geometry readGeometry() throws IOException
+  {
+    if (peek() == 'n')
+    {
+      skipValue();
+      return null;
+    }
+    String type = null;
+    coordinateCount = 0;
+    ringCount = 0;
+    expect('{');
+    if (!isEmpty('}'))
+    {
+      do
+      {
+        String name = readString();
+        expect(':');
+        if ("type".equals(name))
+        {
+          type = readString();
+        }
+        else if ("coordinates".equals(name))
+        {
+          readPositions();
+        }
+        else
+        {
+          skipValue();
+        }
+      } while (nextItem('}'));
+    }
+    if (coordinateCount == 0) return null;
+
+    if ("Point".equals(type))
+    {
+      return new Point(new Point3d(coordinates[0], coordinates[1],
+        coordinates[2]));
+    }
+    int end = ringCount > 0 ? ringEnds[0] : coordinateCount;
+    if ("LineString".equals(type))
+    {
+      return new LineString(Arrays.copyOf(coordinates, end));
+    }
+    else if ("Polygon".equals(type))
+    {
+      return new Polygon(Arrays.copyOf(coordinates, end));
+    }
+    return null;
+  }
+
+  /**
+   * Reads nested coordinate arrays into coordinates, 3 per position, and
+   * records in ringEnds where each array of positions ends.
+   *
+   * @return true if the array read was a position
+   */
+  private boolean readPositions() throws IOException
+  {
+    expect('[');
+    if (isEmpty(']')) return false;
+    int ch = peek();
+    if (ch == '-' || (ch >= '0' && ch <= '9'))
+    {
+      if (coordinateCount + 3 > coordinates.length)
+      {
+        coordinates = Arrays.copyOf(coordinates, 2 * coordinates.length);
+      }
+      int axis = 0;
+      do
+      {
+        int length = readNumber();
+        if (axis < 3)
+        {
+          coordinates[coordinateCount + axis] =
+            CoordinateParser.parseDouble(number, 0, length);
+        }
+        axis++;
+      } while (nextItem(']'));
+      if (axis < 2) throw new IOException("Invalid position");
+      if (axis == 2) coordinates[coordinateCount + 2] = 0.0;
+      coordinateCount += 3;
+      return true;
+    }
+    boolean positions = false;
+    do
+    {
+      positions = readPositions();
+    } while (nextItem(']'));
+    if (positions)
+    {
+      if (ringCount == ringEnds.length)
+      {
+        ringEnds = Arrays.copyOf(ringEnds, 2 * ringEnds.length);
+      }
+      ringEnds[ringCount++] = coordinateCount;
+    }
+    return false;
+  }
+
+  private void skipValue() throws IOException
+  {
+    int ch = peek();
+    if (ch == '"')
+    {
+      readString();
+    }
+    else if (ch == '{')
+    {
+      expect('{');
+      if (!isEmpty('}'))
+      {
+        do
+        {
+          readString();
+          expect(':');
+          skipValue();
+        } while (nextItem('}'));
+      }
+    }
+    else if (ch == '[')
+    {
+      expect('[');
+      if (!isEmpty(']'))
+      {
+        do
+        {
+          skipValue();
+        } while (nextItem(']'));
+      }
+    }
+    else if (ch == '-' || (ch >= '0' && ch <= '9'))
+    {
+      readNumber();
+    }
+    else
+    {
+      readLiteral();
+    }
+  }
+
+  /**
+   * Consumes the closing character of an object or array that has just
+   * been opened, if it is empty.
+   */
+  private boolean isEmpty(char close) throws IOException
+  {
+    if (peek() != close) return false;
+    position++;
+    return true;
+  }
+
+  /**
+   * Consumes the ',' that separates items or the closing character.
+   *
+   * @return true if there is another item to read
+   */
+  private boolean nextItem(char close) throws IOException
+  {
+    int ch = peek();
+    if (ch == ',')
+    {
+      position++;
+      return true;
+    }
+    if (ch == close)
+    {
+      position++;
+      return false;
+    }
+    throw new IOException("Expected ',' or '" + close + "'");
+  }
+
+  private String readString() throws IOException
+  {
+    expect('"');
+    text.setLength(0);
+    while (true)
+    {
+      int start = position;
+      while (position < limit)
+      {
+        char ch = buffer[position];
+        if (ch == '"' || ch == '\\') break;
+        position++;
+      }
+      text.append(buffer, start, position - start);
+      if (position == limit)
+      {
+        if (!fill()) throw new IOException("Unterminated string");
+        continue;
+      }
+      char ch = buffer[position++];
+      if (ch == '"') return text.toString();
+      text.append(readEscape());
+    }
+  }
+
+  private char readEscape() throws IOException
+  {
+    int ch = read();
+    switch (ch)
+    {
+      case 'b': return '\b';
+      case 'f': return '\f';
+      case 'n': return '\n';
+      case 'r': return '\r';
+      case 't': return '\t';
+      case 'u':
+        int code = 0;
+        for (int i = 0; i < 4; i++)
+        {
+          int digit = Character.digit(read(), 16);
+          if (digit == -1) throw new IOException("Invalid escape");
+          code = 16 * code + digit;
+        }
+        return (char)code;
+      case -1: throw new IOException("Unterminated string");
+      default: return (char)ch;
+    }
+  }
+
+  /**
+   * Copies the characters of the number at position into number.
+   *
+   * @return the length of the number
+   */
+  private int readNumber() throws IOException
+  {
+    peek();
+    int length = 0;
+    while (true)
+    {
+      if (position == limit && !fill()) break;
+      char ch = buffer[position];
+      if ((ch < '0' || ch > '9') && ch != '-' && ch != '+' && ch != '.' &&
+        ch != 'e' && ch != 'E') break;
+      if (length == number.length)
+      {
+        number = Arrays.copyOf(number, 2 * length);
+      }
+      number[length++] = ch;
+      position++;
+    }
+    return length;
+  }
+
+  private String readLiteral() throws IOException
+  {
+    peek();
+    text.setLength(0);
+    while ((position < limit || fill()) &&
+      Character.isLetter(buffer[position]))
+    {
+      text.append(buffer[position++]);
+    }
+    String literal = text.toString();
+    if (!literal.equals("true") && !literal.equals("false") &&
+      !literal.equals("null"))
+      throw new IOException("Unexpected value: " + literal);
+    return literal;
+  }
+
+  private void expect(char expected) throws IOException
+  {
+    if (peek() != expected)
+      throw new IOException("Expected '" + expected + "'");
+    position++;
+  }
+
+  /**
+   * Skips whitespace and returns the next character without consuming it.
+   */
+  private int peek() throws IOException
+  {
+    while (true)
+    {
+      if (position == limit && !fill()) return -1;
+      char ch = buffer[position];
+      if (ch != ' ' && ch != '\n' && ch != '\r' && ch != '\t' &&
+        ch != '\uFEFF') return ch;
+      position++;
+    }
+  }
+
+  private int read() throws IOException
+  {
+    if (position == limit && !fill()) return -1;
+    return buffer[position++];
+  }
+
+  private boolean fill() throws IOException
+  {
+    position = 0;
+    limit = Math.max(0, reader.read(buffer));
+    return limit > 0;
+  }
+}
@@ -0,0 +1,249 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.Feature;
+import org.santfeliu.trafsim.geom.Geometry;
+import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.PackedGeometry;
+import org.santfeliu.trafsim.geom.Point;
+import org.santfeliu.trafsim.geom.Polygon;
+
+/**
+ * Writes features as a GeoJSON FeatureCollection. Features are encoded one
+ * by one into the byte buffer of BufferedTextWriter, with their
+ * loadAttributes values as properties, so memory does not depend on the
+ * number of features.
+ *
+ * @author realor
+ */
+public class GeoJSONWriter extends BufferedTextWriter
+{
+  private String srsName = "EPSG:25831";
+  private final Map<String, Object> attributes = new LinkedHashMap<>();
+  private final Point3d vertex = new Point3d();
+
+  public GeoJSONWriter(OutputStream os)
+  {
+    super(os);
+  }
+
+  public String getSrsName()
+  {
+    return srsName;
+  }
+
+  public void setSrsName(String srsName)
+  {
+    this.srsName = srsName;
+  }
+
+  public void write(Collection<? extends Feature> features)
+    throws IOException
+  {
+    try
+    {
+      writeChars("{\"type\":\"FeatureCollection\",\"crs\":{\"type\":\"name\"," +
+        "\"properties\":{\"name\":");
+      writeString(getCrsName());
+      writeChars("}},\"features\":[");
+      int fid = 0;
+      for (Feature feature : features)
+      {
+        if (fid > 0) writeByte(',');
+        writeByte('\n');
+        writeFeature(feature, fid++);
+      }
+      writeChars("\n]}\n");
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  private String getCrsName()
+  {
+    if (srsName.startsWith("EPSG:"))
+    {
+      return "urn:ogc:def:crs:EPSG::" + srsName.substring(5);
+    }
+    return srsName;
+  }
+
+  private void writeFeature(Feature feature, int fid)
+  {
+    writeChars("{\"type\":\"Feature\",\"id\":");
+    writeLong(fid);
+    writeChars(",\"geometry\":");
+    writeGeometry(feature.getGeometry());
+    writeChars(",\"properties\":{");
+    attributes.clear();
+    feature.loadAttributes(attributes);
+    boolean first = true;
+    for (Map.Entry<String, Object> entry : attributes.entrySet())
+    {
+      if (!first) writeByte(',');
+      first = false;
+      writeString(entry.getKey());
+      writeByte(':');
+      writeJSONValue(entry.getValue());
+    }
+    writeChars("}}");
+  }
+
+  private void writeGeometry(Geometry geometry)
+  {
+    if (geometry instanceof Point)
+    {
+      writeChars("{\"type\":\"Point\",\"coordinates\":");
+      writePosition(((Point)geometry).getPosition());
+      writeByte('}');
+    }
+    else if (geometry instanceof LineString)
+    {
+      writeChars("{\"type\":\"LineString\",\"coordinates\":");
+      writePositions((LineString)geometry);
+      writeByte('}');
+    }
+    else if (geometry instanceof Polygon)
+    {
+      writeChars("{\"type\":\"Polygon\",\"coordinates\":[");
+      writePositions((Polygon)geometry);
+      writeChars("]}");
+    }
+    else
+    {
+      writeChars("null");
+    }
+  }
+
+  private void writePositions(PackedGeometry geometry)
+  {
+    writeByte('[');
+    int count = geometry.getVertexCount();
+    for (int i = 0; i < count; i++)
+    {
+      if (i > 0) writeByte(',');
+      writePosition(geometry.getVertex(i, vertex));
+    }
+    writeByte(']');
+  }
+
+  /**
+   * Writes x and y, and z only if it is not 0.
+   */
+  private void writePosition(Point3d point)
+  {
+    writeByte('[');
+    writeCoordinate(point.x);
+    writeByte(',');
+    writeCoordinate(point.y);
+    if (point.z != 0)
+    {
+      writeByte(',');
+      writeCoordinate(point.z);
+    }
+    writeByte(']');
+  }
+
+  private void writeJSONValue(Object value)
+  {
+    if (value == null)
+    {
+      writeChars("null");
+    }
+    else if (value instanceof Double || value instanceof Float)
+    {
+      double number = ((Number)value).doubleValue();
+      if (Double.isNaN(number) || Double.isInfinite(number))
+      {
+        writeChars("null"); // not representable in JSON
+      }
+      else
+      {
+        writeDouble(number);
+      }
+    }
+    else if (value instanceof Integer || value instanceof Long ||
+      value instanceof Short || value instanceof Byte)
+    {
+      writeLong(((Number)value).longValue());
+    }
+    else if (value instanceof Number || value instanceof Boolean)
+    {
+      writeChars(String.valueOf(value));
+    }
+    else
+    {
+      writeString(String.valueOf(value));
+    }
+  }
+
+  /**
+   * Writes text as a JSON string. The runs of characters that need no
+   * escaping are encoded directly from text by writeChars.
+   */
+  private void writeString(String text)
+  {
+    writeByte('"');
+    int length = text.length();
+    int start = 0;
+    for (int i = 0; i < length; i++)
+    {
+      char ch = text.charAt(i);
+      if (ch == '"' || ch == '\\' || ch < 0x20)
+      {
+        writeChars(text, start, i);
+        writeByte('\\');
+        switch (ch)
+        {
+          case '"': writeByte('"'); break;
+          case '\\': writeByte('\\'); break;
+          case '\n': writeByte('n'); break;
+          case '\r': writeByte('r'); break;
+          case '\t': writeByte('t'); break;
+          default:
+            writeChars(String.format("u%04x", (int)ch));
+        }
+        start = i + 1;
+      }
+    }
+    writeChars(text, start, length);
+    writeByte('"');
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+/**
+ * Layout of the prebuilt network files (.tfn).
+ *
+ * All values are big endian. The file starts with a header of HEADER_SIZE
+ * bytes followed by these sections, each one aligned to 8 bytes:
+ *
+ *   NODES:       x, y, z (double) for each node
+ *   OUT_OFFSETS: int[nodeCount + 1], first out edge of each node
+ *   OUT_EDGES:   int[edgeCount], out edges sorted by source node
+ *   IN_OFFSETS:  int[nodeCount + 1], first in edge of each node
+ *   IN_EDGES:    int[edgeCount], in edges sorted by target node
+ *   EDGES:       source, target, first coordinate, vertex count (int)
+ *   ATTRIBUTES:  one BufferEdgeStore record for each edge
+ *   COORDINATES: x, y, z (double) of the vertices of all edges
+ *
+ * @author realor
+ */
+class NetworkFormat
+{
+  static final int MAGIC = 0x54464E31; // TFN1
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int EDGE_RECORD_SIZE = 16;
+
+  static final int NODES = 0;
+  static final int OUT_OFFSETS = 1;
+  static final int OUT_EDGES = 2;
+  static final int IN_OFFSETS = 3;
+  static final int IN_EDGES = 4;
+  static final int EDGES = 5;
+  static final int ATTRIBUTES = 6;
+  static final int COORDINATES = 7;
+  static final int SECTION_COUNT = 8;
+
+  /**
+   * Computes the position of each section in the file.
+   *
+   * @return the start of each section, plus the file size at the end
+   */
+  static long[] getSectionOffsets(int nodeCount, int edgeCount,
+    long coordinateCount, int attributeRecordSize)
+  {
+    long[] sizes = new long[SECTION_COUNT];
+    sizes[NODES] = 24L * nodeCount;
+    sizes[OUT_OFFSETS] = 4L * (nodeCount + 1);
+    sizes[OUT_EDGES] = 4L * edgeCount;
+    sizes[IN_OFFSETS] = 4L * (nodeCount + 1);
+    sizes[IN_EDGES] = 4L * edgeCount;
+    sizes[EDGES] = (long)EDGE_RECORD_SIZE * edgeCount;
+    sizes[ATTRIBUTES] = (long)attributeRecordSize * edgeCount;
+    sizes[COORDINATES] = 8L * coordinateCount;
+
+    long[] offsets = new long[SECTION_COUNT + 1];
+    long offset = HEADER_SIZE;
+    for (int i = 0; i < SECTION_COUNT; i++)
+    {
+      offsets[i] = offset;
+      offset = align(offset + sizes[i]);
+    }
+    offsets[SECTION_COUNT] = offset;
+    return offsets;
+  }
+
+  static long align(long offset)
+  {
+    return (offset + 7) & ~7L;
+  }
+}
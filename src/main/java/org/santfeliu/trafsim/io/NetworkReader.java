@@ -0,0 +1,213 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.BufferEdgeStore;
+import org.santfeliu.trafsim.RoadGraph;
+import org.santfeliu.trafsim.geom.CoordinateArena;
+import org.santfeliu.trafsim.geom.LineString;
+import static org.santfeliu.trafsim.io.NetworkFormat.*;
+
+/**
+ * Opens a prebuilt network file (see NetworkFormat). The file is mapped in
+ * memory and the edge attributes and coordinates of the returned RoadGraph
+ * are read from the mapped buffers, without copying them.
+ *
+ * The file is opened and mapped read only. The edge attributes are copied
+ * to a direct buffer when an edge is first changed (see BufferEdgeStore),
+ * and so are the coordinates of an edge when its geometry is first changed
+ * (see PackedGeometry), so changes made to the graph are never written to
+ * the file.
+ *
+ * @author realor
+ */
+public class NetworkReader
+{
+  private final File file;
+
+  public NetworkReader(File file)
+  {
+    this.file = file;
+  }
+
+  public RoadGraph read() throws IOException
+  {
+    FileChannel channel =
+      FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try
+    {
+      ByteBuffer header = map(channel, MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if (header.getInt(0) != MAGIC)
+        throw new IOException("Not a network file");
+      if (header.getInt(4) != VERSION)
+        throw new IOException("Unsupported network file version");
+
+      int nodeCount = header.getInt(8);
+      int edgeCount = header.getInt(12);
+      long coordinateCount = header.getLong(16);
+      double quantizationStep = header.getDouble(24);
+      long[] offsets = getSectionOffsets(nodeCount, edgeCount,
+        coordinateCount, BufferEdgeStore.RECORD_SIZE);
+      if (channel.size() < offsets[SECTION_COUNT])
+        throw new IOException("Truncated network file");
+
+      MappedTopology topology = new MappedTopology();
+      topology.nodeCount = nodeCount;
+      topology.edgeCount = edgeCount;
+      topology.nodes = map(channel, MapMode.READ_ONLY,
+        offsets[NODES], 24L * nodeCount).asDoubleBuffer();
+      topology.outOffsets = mapInts(channel, offsets[OUT_OFFSETS],
+        nodeCount + 1);
+      topology.outEdges = mapInts(channel, offsets[OUT_EDGES], edgeCount);
+      topology.inOffsets = mapInts(channel, offsets[IN_OFFSETS],
+        nodeCount + 1);
+      topology.inEdges = mapInts(channel, offsets[IN_EDGES], edgeCount);
+      topology.edges = mapInts(channel, offsets[EDGES], 4L * edgeCount);
+
+      ByteBuffer attributes = map(channel, MapMode.READ_ONLY,
+        offsets[ATTRIBUTES], (long)BufferEdgeStore.RECORD_SIZE * edgeCount);
+      topology.coordinates = map(channel, MapMode.READ_ONLY,
+        offsets[COORDINATES], 8L * coordinateCount).asDoubleBuffer();
+
+      BufferEdgeStore store = new BufferEdgeStore(attributes, edgeCount);
+      RoadGraph roadGraph = new RoadGraph(store, new CoordinateArena());
+      roadGraph.setQuantizationStep(quantizationStep);
+      roadGraph.load(topology);
+      return roadGraph;
+    }
+    finally
+    {
+      channel.close();
+    }
+  }
+
+  private ByteBuffer map(FileChannel channel, MapMode mode,
+    long offset, long size) throws IOException
+  {
+    if (size > Integer.MAX_VALUE)
+      throw new IOException("Network file section too large");
+    return channel.map(mode, offset, size).order(ByteOrder.BIG_ENDIAN);
+  }
+
+  private IntBuffer mapInts(FileChannel channel, long offset, long count)
+    throws IOException
+  {
+    return map(channel, MapMode.READ_ONLY, offset, 4 * count).asIntBuffer();
+  }
+
+  class MappedTopology implements RoadGraph.Topology
+  {
+    int nodeCount;
+    int edgeCount;
+    DoubleBuffer nodes;
+    IntBuffer outOffsets;
+    IntBuffer outEdges;
+    IntBuffer inOffsets;
+    IntBuffer inEdges;
+    IntBuffer edges;
+    DoubleBuffer coordinates;
+
+    @Override
+    public int getNodeCount()
+    {
+      return nodeCount;
+    }
+
+    @Override
+    public Point3d getNodePosition(int node, Point3d position)
+    {
+      int index = 3 * node;
+      position.x = nodes.get(index);
+      position.y = nodes.get(index + 1);
+      position.z = nodes.get(index + 2);
+      return position;
+    }
+
+    @Override
+    public int getOutDegree(int node)
+    {
+      return outOffsets.get(node + 1) - outOffsets.get(node);
+    }
+
+    @Override
+    public int getOutEdge(int node, int index)
+    {
+      return outEdges.get(outOffsets.get(node) + index);
+    }
+
+    @Override
+    public int getInDegree(int node)
+    {
+      return inOffsets.get(node + 1) - inOffsets.get(node);
+    }
+
+    @Override
+    public int getInEdge(int node, int index)
+    {
+      return inEdges.get(inOffsets.get(node) + index);
+    }
+
+    @Override
+    public int getEdgeCount()
+    {
+      return edgeCount;
+    }
+
+    @Override
+    public int getSourceNode(int edge)
+    {
+      return edges.get(4 * edge);
+    }
+
+    @Override
+    public int getTargetNode(int edge)
+    {
+      return edges.get(4 * edge + 1);
+    }
+
+    @Override
+    public LineString getLineString(int edge)
+    {
+      return new LineString(coordinates,
+        edges.get(4 * edge + 2), edges.get(4 * edge + 3));
+    }
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.BufferEdgeStore;
+import org.santfeliu.trafsim.RoadGraph;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.RoadGraph.Node;
+import org.santfeliu.trafsim.geom.LineString;
+import static org.santfeliu.trafsim.io.NetworkFormat.*;
+
+/**
+ * Writes a RoadGraph as a prebuilt network file (see NetworkFormat).
+ *
+ * @author realor
+ */
+public class NetworkWriter
+{
+  private final File file;
+  private DataOutputStream out;
+  private long position;
+
+  public NetworkWriter(File file)
+  {
+    this.file = file;
+  }
+
+  public void write(RoadGraph roadGraph) throws IOException
+  {
+    // assign indices to nodes and edges
+    List<Node> nodeList = new ArrayList<Node>(roadGraph.getNodes());
+    HashMap<Node, Integer> nodeIndex = new HashMap<Node, Integer>();
+    for (int i = 0; i < nodeList.size(); i++)
+    {
+      nodeIndex.put(nodeList.get(i), i);
+    }
+    Collection<Edge> edges = roadGraph.getEdges();
+    int[] edgeIndex = new int[roadGraph.getEdgeStore().size()];
+    long coordinateCount = 0;
+    int index = 0;
+    for (Edge edge : edges)
+    {
+      edgeIndex[edge.getId()] = index++;
+      coordinateCount += 3 * edge.getLineString().getVertexCount();
+    }
+    if (coordinateCount > Integer.MAX_VALUE)
+      throw new IOException("Too many vertices");
+
+    int nodeCount = nodeList.size();
+    int edgeCount = edges.size();
+    long[] offsets = getSectionOffsets(nodeCount, edgeCount,
+      coordinateCount, BufferEdgeStore.RECORD_SIZE);
+
+    out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(file), 65536));
+    position = 0;
+    try
+    {
+      // header
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(nodeCount);
+      out.writeInt(edgeCount);
+      out.writeLong(coordinateCount);
+      out.writeDouble(roadGraph.getQuantizationStep());
+      position = 32;
+      pad(HEADER_SIZE);
+
+      // nodes
+      for (Node node : nodeList)
+      {
+        Point3d point = node.getPoint().getPosition();
+        writePosition(point.x, point.y, point.z);
+      }
+      pad(offsets[OUT_OFFSETS]);
+
+      // out adjacency
+      int offset = 0;
+      for (Node node : nodeList)
+      {
+        writeInt(offset);
+        offset += node.getOutDegree();
+      }
+      writeInt(offset);
+      pad(offsets[OUT_EDGES]);
+      for (Node node : nodeList)
+      {
+        for (int i = 0; i < node.getOutDegree(); i++)
+        {
+          writeInt(edgeIndex[node.getOutEdge(i).getId()]);
+        }
+      }
+      pad(offsets[IN_OFFSETS]);
+
+      // in adjacency
+      offset = 0;
+      for (Node node : nodeList)
+      {
+        writeInt(offset);
+        offset += node.getInDegree();
+      }
+      writeInt(offset);
+      pad(offsets[IN_EDGES]);
+      for (Node node : nodeList)
+      {
+        for (int i = 0; i < node.getInDegree(); i++)
+        {
+          writeInt(edgeIndex[node.getInEdge(i).getId()]);
+        }
+      }
+      pad(offsets[EDGES]);
+
+      // edges
+      long coordinate = 0;
+      for (Edge edge : edges)
+      {
+        int vertexCount = edge.getLineString().getVertexCount();
+        writeInt(nodeIndex.get(edge.getSourceNode()));
+        writeInt(nodeIndex.get(edge.getTargetNode()));
+        writeInt((int)coordinate);
+        writeInt(vertexCount);
+        coordinate += 3 * vertexCount;
+      }
+      pad(offsets[ATTRIBUTES]);
+
+      // attributes
+      for (Edge edge : edges)
+      {
+        writeInt(edge.getSpeed());
+        writeInt(edge.getLanes());
+        writeDouble(edge.getDelay());
+        writeDouble(edge.getLength());
+        writeInt(0); // vehicle count
+        writeInt(0); // padding
+      }
+      pad(offsets[COORDINATES]);
+
+      // coordinates
+      for (Edge edge : edges)
+      {
+        LineString lineString = edge.getLineString();
+        for (int i = 0; i < lineString.getVertexCount(); i++)
+        {
+          writePosition(lineString.getX(i), lineString.getY(i),
+            lineString.getZ(i));
+        }
+      }
+      pad(offsets[SECTION_COUNT]);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  private void writeInt(int value) throws IOException
+  {
+    out.writeInt(value);
+    position += 4;
+  }
+
+  private void writeDouble(double value) throws IOException
+  {
+    out.writeDouble(value);
+    position += 8;
+  }
+
+  private void writePosition(double x, double y, double z)
+    throws IOException
+  {
+    writeDouble(x);
+    writeDouble(y);
+    writeDouble(z);
+  }
+
+  private void pad(long offset) throws IOException
+  {
+    while (position < offset)
+    {
+      out.writeByte(0);
+      position++;
+    }
+  }
+}
@@ -0,0 +1,550 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.santfeliu.trafsim.RoadGraph;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.geom.LineString;
+
+/**
+ * Reads the road network of an OpenStreetMap XML file (.osm or .osm.gz).
+ *
+ * The file is streamed twice: the first pass keeps the highway ways and
+ * counts how many times each node is referenced, the second one reads the
+ * coordinates of the referenced nodes only. Ways are split into edges at
+ * the nodes shared with other ways, so that they get connected in the graph.
+ *
+ * @author realor
+ */
+public class OsmReader
+{
+  private static final int FORWARD = 1;
+  private static final int BACKWARD = 2;
+  private static final int BOTH = 3;
+  private static final Map<String, Integer> SPEEDS = new HashMap<>();
+
+  static
+  {
+    SPEEDS.put("motorway", 120);
+    SPEEDS.put("motorway_link", 60);
+    SPEEDS.put("trunk", 100);
+    SPEEDS.put("trunk_link", 50);
+    SPEEDS.put("primary", 80);
+    SPEEDS.put("primary_link", 50);
+    SPEEDS.put("secondary", 60);
+    SPEEDS.put("secondary_link", 40);
+    SPEEDS.put("tertiary", 50);
+    SPEEDS.put("tertiary_link", 40);
+    SPEEDS.put("unclassified", 40);
+    SPEEDS.put("road", 40);
+    SPEEDS.put("residential", 30);
+    SPEEDS.put("service", 20);
+    SPEEDS.put("living_street", 20);
+  }
+
+  private String srsName = "EPSG:25831";
+  private final Map<String, String> tags = new HashMap<>();
+  private long[] refs = new long[256];
+  private int refCount;
+
+  // ways: node slots of way i are wayNodes[wayStarts[i]..wayStarts[i + 1]]
+  private int wayCount;
+  private int[] wayStarts;
+  private int[] wayNodes;
+  private int wayNodeCount;
+  private int[] waySpeeds;
+  private int[] wayForwardLanes;
+  private int[] wayBackwardLanes;
+  private byte[] wayDirections;
+
+  // nodes: open addressing map from node id to slot
+  private long[] nodeIds;
+  private int[] nodeSlots;
+  private int nodeMask;
+  private int nodeCount;
+  private int[] nodeUses;
+  private double[] nodeCoordinates;
+
+  public String getSrsName()
+  {
+    return srsName;
+  }
+
+  /**
+   * @param srsName the srs of the edges: a UTM zone (EPSG:258zz, EPSG:326zz,
+   * EPSG:327zz) or EPSG:4326 to keep longitude and latitude
+   */
+  public void setSrsName(String srsName)
+  {
+    this.srsName = srsName;
+  }
+
+  /**
+   * Reads the highways of file and adds to edges the edges they make.
+   * The edges are created by roadGraph but not added to it.
+   *
+   * @param file the osm file, optionally gzip compressed
+   * @param roadGraph the graph that creates the edges
+   * @param edges the collection that receives the edges
+   * @throws IOException if the file can not be read
+   */
+  public void read(File file, RoadGraph roadGraph,
+    Collection<? super Edge> edges) throws IOException
+  {
+    UTMProjection projection = UTMProjection.forSrsName(srsName);
+    try
+    {
+      allocate();
+      try (InputStream is = Compression.openInput(file))
+      {
+        readWays(createReader(is));
+      }
+      if (wayCount == 0) return;
+
+      nodeCoordinates = new double[2 * nodeCount];
+      Arrays.fill(nodeCoordinates, Double.NaN);
+      try (InputStream is = Compression.openInput(file))
+      {
+        readNodes(createReader(is), projection);
+      }
+      createEdges(roadGraph, edges);
+    }
+    catch (XMLStreamException | NumberFormatException ex)
+    {
+      throw new IOException("Invalid osm file: " + ex.getMessage(), ex);
+    }
+    finally
+    {
+      release();
+    }
+  }
+
+  private XMLStreamReader createReader(InputStream is)
+    throws XMLStreamException
+  {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(
+      XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory.createXMLStreamReader(is);
+  }
+
+  private void readWays(XMLStreamReader reader) throws XMLStreamException
+  {
+    while (reader.hasNext())
+    {
+      if (reader.next() == XMLStreamConstants.START_ELEMENT &&
+        "way".equals(reader.getLocalName()))
+      {
+        readWay(reader);
+      }
+    }
+  }
+
+  private void readWay(XMLStreamReader reader) throws XMLStreamException
+  {
+    refCount = 0;
+    tags.clear();
+    int depth = 1;
+    while (depth > 0)
+    {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT)
+      {
+        depth++;
+        String name = reader.getLocalName();
+        if ("nd".equals(name))
+        {
+          long id = Long.parseLong(reader.getAttributeValue(null, "ref"));
+          if (refCount == refs.length)
+          {
+            refs = Arrays.copyOf(refs, 2 * refs.length);
+          }
+          refs[refCount++] = id;
+        }
+        else if ("tag".equals(name))
+        {
+          tags.put(reader.getAttributeValue(null, "k"),
+            reader.getAttributeValue(null, "v"));
+        }
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT)
+      {
+        depth--;
+      }
+    }
+
+    String highway = tags.get("highway");
+    Integer defaultSpeed = highway == null ? null : SPEEDS.get(highway);
+    if (defaultSpeed == null || refCount < 2 ||
+      "yes".equals(tags.get("area"))) return;
+
+    int start = wayNodeCount;
+    if (wayNodeCount + refCount > wayNodes.length)
+    {
+      wayNodes = Arrays.copyOf(wayNodes,
+        Math.max(2 * wayNodes.length, wayNodeCount + refCount));
+    }
+    for (int i = 0; i < refCount; i++)
+    {
+      int slot = getSlot(refs[i], true);
+      nodeUses[slot]++;
+      wayNodes[wayNodeCount++] = slot;
+    }
+    addWay(start, highway, defaultSpeed);
+  }
+
+  private void addWay(int start, String highway, int defaultSpeed)
+  {
+    if (wayCount + 1 == wayStarts.length)
+    {
+      int length = 2 * wayStarts.length;
+      wayStarts = Arrays.copyOf(wayStarts, length);
+      waySpeeds = Arrays.copyOf(waySpeeds, length);
+      wayForwardLanes = Arrays.copyOf(wayForwardLanes, length);
+      wayBackwardLanes = Arrays.copyOf(wayBackwardLanes, length);
+      wayDirections = Arrays.copyOf(wayDirections, length);
+    }
+    int direction = getDirection(highway);
+    int lanes = parseInt(tags.get("lanes"));
+    int forwardLanes = parseInt(tags.get("lanes:forward"));
+    int backwardLanes = parseInt(tags.get("lanes:backward"));
+    if (direction != BOTH)
+    {
+      if (lanes <= 0)
+      {
+        lanes = highway.startsWith("motorway") ||
+          highway.startsWith("trunk") ? 2 : 1;
+      }
+      forwardLanes = backwardLanes = lanes;
+    }
+    else
+    {
+      if (forwardLanes <= 0) forwardLanes = Math.max(1, lanes / 2);
+      if (backwardLanes <= 0)
+        backwardLanes = Math.max(1, lanes - forwardLanes);
+    }
+    wayStarts[wayCount] = start;
+    waySpeeds[wayCount] = parseSpeed(tags.get("maxspeed"), defaultSpeed);
+    wayForwardLanes[wayCount] = forwardLanes;
+    wayBackwardLanes[wayCount] = backwardLanes;
+    wayDirections[wayCount] = (byte)direction;
+    wayCount++;
+    wayStarts[wayCount] = wayNodeCount;
+  }
+
+  private int getDirection(String highway)
+  {
+    String oneway = tags.get("oneway");
+    if (oneway != null)
+    {
+      switch (oneway)
+      {
+        case "yes": case "true": case "1": return FORWARD;
+        case "-1": case "reverse": return BACKWARD;
+        case "no": case "false": case "0": return BOTH;
+      }
+    }
+    String junction = tags.get("junction");
+    if (highway.equals("motorway") || "roundabout".equals(junction) ||
+      "circular".equals(junction)) return FORWARD;
+    return BOTH;
+  }
+
+  /**
+   * Reads the coordinates of the nodes referenced by ways. Nodes precede
+   * ways in osm files, so reading stops at the first way.
+   */
+  private void readNodes(XMLStreamReader reader, UTMProjection projection)
+    throws XMLStreamException
+  {
+    int located = 0;
+    while (reader.hasNext() && located < nodeCount)
+    {
+      if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+
+      String name = reader.getLocalName();
+      if ("node".equals(name))
+      {
+        long id = Long.parseLong(reader.getAttributeValue(null, "id"));
+        int slot = getSlot(id, false);
+        if (slot != -1 && Double.isNaN(nodeCoordinates[2 * slot]))
+        {
+          double lon = Double.parseDouble(reader.getAttributeValue(null,
+            "lon"));
+          double lat = Double.parseDouble(reader.getAttributeValue(null,
+            "lat"));
+          if (projection == null)
+          {
+            nodeCoordinates[2 * slot] = lon;
+            nodeCoordinates[2 * slot + 1] = lat;
+          }
+          else
+          {
+            projection.project(lon, lat, nodeCoordinates, 2 * slot);
+          }
+          located++;
+        }
+      }
+      else if ("way".equals(name)) break;
+    }
+  }
+
+  /**
+   * Splits ways at shared nodes. Nodes missing from the file (ways clipped
+   * by the extract) also break the way.
+   */
+  private void createEdges(RoadGraph roadGraph,
+    Collection<? super Edge> edges)
+  {
+    for (int way = 0; way < wayCount; way++)
+    {
+      int end = wayStarts[way + 1];
+      int first = -1;
+      for (int i = wayStarts[way]; i < end; i++)
+      {
+        int slot = wayNodes[i];
+        if (Double.isNaN(nodeCoordinates[2 * slot]))
+        {
+          if (first != -1 && i - 1 > first)
+          {
+            addEdges(way, first, i - 1, roadGraph, edges);
+          }
+          first = -1;
+        }
+        else if (first == -1)
+        {
+          first = i;
+        }
+        else if (i == end - 1 || nodeUses[slot] > 1)
+        {
+          addEdges(way, first, i, roadGraph, edges);
+          first = i;
+        }
+      }
+    }
+  }
+
+  private void addEdges(int way, int first, int last, RoadGraph roadGraph,
+    Collection<? super Edge> edges)
+  {
+    double[] coordinates = new double[3 * (last - first + 1)];
+    int count = 0;
+    int previous = -1;
+    for (int i = first; i <= last; i++)
+    {
+      int slot = wayNodes[i];
+      if (slot == previous) continue;
+      coordinates[3 * count] = nodeCoordinates[2 * slot];
+      coordinates[3 * count + 1] = nodeCoordinates[2 * slot + 1];
+      count++;
+      previous = slot;
+    }
+    if (count < 2) return;
+    if (3 * count < coordinates.length)
+    {
+      coordinates = Arrays.copyOf(coordinates, 3 * count);
+    }
+
+    int speed = waySpeeds[way];
+    int direction = wayDirections[way];
+    if (direction == BOTH)
+    {
+      double[] reversed = reverse(coordinates);
+      edges.add(roadGraph.newEdge(new LineString(coordinates), speed,
+        wayForwardLanes[way], 0));
+      edges.add(roadGraph.newEdge(new LineString(reversed), speed,
+        wayBackwardLanes[way], 0));
+    }
+    else
+    {
+      if (direction == BACKWARD) coordinates = reverse(coordinates);
+      edges.add(roadGraph.newEdge(new LineString(coordinates), speed,
+        wayForwardLanes[way], 0));
+    }
+  }
+
+  private double[] reverse(double[] coordinates)
+  {
+    double[] reversed = new double[coordinates.length];
+    int last = coordinates.length - 3;
+    for (int i = 0; i <= last; i += 3)
+    {
+      System.arraycopy(coordinates, i, reversed, last - i, 3);
+    }
+    return reversed;
+  }
+
+  private int getSlot(long id, boolean create)
+  {
+    int index = hash(id) & nodeMask;
+    int slot;
+    while ((slot = nodeSlots[index]) != -1)
+    {
+      if (nodeIds[index] == id) return slot;
+      index = (index + 1) & nodeMask;
+    }
+    if (!create) return -1;
+
+    slot = nodeCount++;
+    nodeIds[index] = id;
+    nodeSlots[index] = slot;
+    if (slot == nodeUses.length)
+    {
+      nodeUses = Arrays.copyOf(nodeUses, 2 * nodeUses.length);
+    }
+    if (4 * nodeCount > 3 * nodeSlots.length) rehash();
+    return slot;
+  }
+
+  private void rehash()
+  {
+    long[] oldIds = nodeIds;
+    int[] oldSlots = nodeSlots;
+    int capacity = 2 * oldSlots.length;
+    nodeIds = new long[capacity];
+    nodeSlots = new int[capacity];
+    Arrays.fill(nodeSlots, -1);
+    nodeMask = capacity - 1;
+    for (int i = 0; i < oldSlots.length; i++)
+    {
+      if (oldSlots[i] != -1)
+      {
+        int index = hash(oldIds[i]) & nodeMask;
+        while (nodeSlots[index] != -1)
+        {
+          index = (index + 1) & nodeMask;
+        }
+        nodeIds[index] = oldIds[i];
+        nodeSlots[index] = oldSlots[i];
+      }
+    }
+  }
+
+  private static int hash(long key)
+  {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int)key;
+  }
+
+  private void allocate()
+  {
+    wayCount = 0;
+    wayStarts = new int[1024];
+    waySpeeds = new int[1024];
+    wayForwardLanes = new int[1024];
+    wayBackwardLanes = new int[1024];
+    wayDirections = new byte[1024];
+    wayNodes = new int[8192];
+    wayNodeCount = 0;
+    nodeCount = 0;
+    nodeIds = new long[16384];
+    nodeSlots = new int[16384];
+    Arrays.fill(nodeSlots, -1);
+    nodeMask = nodeSlots.length - 1;
+    nodeUses = new int[8192];
+  }
+
+  private void release()
+  {
+    wayStarts = wayNodes = waySpeeds = null;
+    wayForwardLanes = wayBackwardLanes = null;
+    wayDirections = null;
+    nodeIds = null;
+    nodeSlots = nodeUses = null;
+    nodeCoordinates = null;
+    tags.clear();
+  }
+
+  private static int parseInt(String value)
+  {
+    if (value == null) return 0;
+    try
+    {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException ex)
+    {
+      return 0;
+    }
+  }
+
+  /**
+   * Parses a maxspeed value: a number in km/h, a number followed by mph,
+   * or an implicit limit like ES:urban. Multiple values take the first.
+   */
+  static int parseSpeed(String value, int defaultSpeed)
+  {
+    if (value == null) return defaultSpeed;
+    int separator = value.indexOf(';');
+    if (separator != -1) value = value.substring(0, separator);
+    value = value.trim();
+
+    if (value.endsWith(":urban")) return 50;
+    if (value.endsWith(":rural")) return 90;
+    if (value.endsWith(":motorway")) return 120;
+    if (value.endsWith(":living_street")) return 20;
+    if (value.equals("walk")) return 10;
+
+    int length = 0;
+    while (length < value.length() &&
+      (Character.isDigit(value.charAt(length)) ||
+       value.charAt(length) == '.'))
+    {
+      length++;
+    }
+    if (length == 0) return defaultSpeed;
+    try
+    {
+      double speed = Double.parseDouble(value.substring(0, length));
+      if (value.endsWith("mph")) speed *= 1.609344;
+      int kmh = (int)Math.round(speed);
+      return kmh > 0 ? kmh : defaultSpeed;
+    }
+    catch (NumberFormatException ex)
+    {
+      return defaultSpeed;
+    }
+  }
+}
@@ -31,295 +31,502 @@
 package org.santfeliu.trafsim.io;
 
 import java.awt.Color;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import javax.vecmath.Point3d;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import org.santfeliu.trafsim.GenericLayer;
 import org.santfeliu.trafsim.Group;
 import org.santfeliu.trafsim.Locations;
-import org.santfeliu.trafsim.Movements;
 import org.santfeliu.trafsim.RoadGraph;
 import org.santfeliu.trafsim.Simulation;
 import org.santfeliu.trafsim.Vehicles;
 import org.santfeliu.trafsim.geom.LineString;
 import org.santfeliu.trafsim.geom.Point;
 import org.santfeliu.trafsim.geom.Polygon;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
 /**
+ * Reads a simulation file in one forward pass with a StAX parser, without
+ * building a document tree in memory.
  *
  * @author realor
  */
 public class SimulationReader
 {
-  private final InputStream is;
+  private static final long MIN_PROGRESS_STEP = 64 * 1024;
+
+  private final CountingInputStream is;
+  private final long length;
+  private ProgressListener progressListener;
+  private long nextProgress;
+  private XMLStreamReader reader;
+  private final CoordinateParser parser = new CoordinateParser();
 
   public SimulationReader(InputStream is)
   {
-    this.is = is;
+    this(is, -1);
+  }
+
+  /**
+   * @param is the stream to read from
+   * @param length the length of the stream in bytes, or -1 if unknown
+   */
+  public SimulationReader(InputStream is, long length)
+  {
+    this.is = new CountingInputStream(is);
+    this.length = length;
+  }
+
+  public ProgressListener getProgressListener()
+  {
+    return progressListener;
+  }
+
+  public void setProgressListener(ProgressListener progressListener)
+  {
+    this.progressListener = progressListener;
   }
 
   public Simulation read() throws IOException
   {
     Simulation simulation = new Simulation();
+    simulation.begin();
     try
     {
-      DocumentBuilderFactory factory =
-      DocumentBuilderFactory.newInstance();
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(is);
-      Element root = doc.getDocumentElement();
-      simulation.setTitle(getString(root, "title"));
-      String srsName = getString(root, "srs");
-      if (srsName != null && srsName.length() > 0)
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      factory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+      reader = factory.createXMLStreamReader(is);
+      reader.nextTag();
+      while (nextChild())
       {
-        simulation.setSrsName(srsName);
-      }
-      String duration = getString(root, "duration");
-      if (duration != null)
-      {
-        try
+        String name = reader.getLocalName();
+        if ("title".equals(name))
         {
-          simulation.setDuration(Double.parseDouble(duration));
+          simulation.setTitle(readString());
         }
-        catch (NumberFormatException ex)
+        else if ("srs".equals(name))
         {
-          // ignore
+          String srsName = readString();
+          if (srsName.length() > 0)
+          {
+            simulation.setSrsName(srsName);
+          }
+        }
+        else if ("duration".equals(name))
+        {
+          try
+          {
+            simulation.setDuration(Double.parseDouble(readString()));
+          }
+          catch (NumberFormatException ex)
+          {
+            // ignore
+          }
+        }
+        else if ("road-graph".equals(name))
+        {
+          readRoadGraph(simulation.getRoadGraph());
+        }
+        else if ("layers".equals(name))
+        {
+          readLayers(simulation);
+        }
+        else if ("groups".equals(name))
+        {
+          readGroups(simulation.getGroups());
+        }
+        else if ("locations".equals(name))
+        {
+          readLocations(simulation.getLocations());
+        }
+        else if ("vehicles".equals(name))
+        {
+          readVehicles(simulation.getVehicles(), simulation.getLocations());
+        }
+        else
+        {
+          skipElement();
         }
       }
+      if (progressListener != null)
+      {
+        progressListener.progressChanged(is.position, length);
+      }
+    }
+    catch (XMLStreamException | RuntimeException ex)
+    {
+      throw new IOException(ex);
+    }
+    finally
+    {
+      simulation.commit();
+      is.close();
+    }
+    return simulation;
+  }
 
-      Element graphElement = getElement(root, "road-graph");
-      if (graphElement != null)
+  protected void readRoadGraph(RoadGraph roadGraph)
+    throws XMLStreamException
+  {
+    while (nextChild())
+    {
+      if (!"edge".equals(reader.getLocalName()))
       {
-        RoadGraph roadGraph = simulation.getRoadGraph();
-        NodeList edgeList = graphElement.getElementsByTagName("edge");
-        for (int i = 0; i < edgeList.getLength(); i++)
+        skipElement();
+        continue;
+      }
+      LineString lineString = null;
+      int speed = 50;
+      int lanes = 1;
+      double delay = 0.0;
+      while (nextChild())
+      {
+        String name = reader.getLocalName();
+        if ("line-string".equals(name))
+        {
+          lineString = new LineString(readCoordinates());
+        }
+        else if ("speed".equals(name))
+        {
+          speed = Integer.parseInt(readString().trim());
+        }
+        else if ("lanes".equals(name))
+        {
+          lanes = Integer.parseInt(readString().trim());
+        }
+        else if ("delay".equals(name))
+        {
+          delay = Double.parseDouble(readString());
+        }
+        else
         {
-          Element edgeElement = (Element)edgeList.item(i);
-          Element lineStringElement = getElement(edgeElement, "line-string");
-          LineString lineString = getLineString(lineStringElement);
-          int speed = getInteger(edgeElement, "speed", 50);
-          int lanes = getInteger(edgeElement, "lanes", 1);
-          double delay = getDouble(edgeElement, "delay", 0.0);
-          roadGraph.newEdge(lineString, speed, lanes, delay).add();
+          skipElement();
         }
       }
+      if (lineString == null)
+        throw new XMLStreamException("Edge without line-string",
+          reader.getLocation());
+      roadGraph.newEdge(lineString, speed, lanes, delay).add();
+      updateProgress();
+    }
+  }
 
-      Element layersElement = getElement(root, "layers");
-      if (layersElement != null)
+  protected void readLayers(Simulation simulation) throws XMLStreamException
+  {
+    while (nextChild())
+    {
+      if (!"layer".equals(reader.getLocalName()))
       {
-        NodeList layerList = layersElement.getElementsByTagName("layer");
-        for (int i = 0; i < layerList.getLength(); i++)
+        skipElement();
+        continue;
+      }
+      String label = reader.getAttributeValue(null, "label");
+      GenericLayer layer = new GenericLayer(label, Color.LIGHT_GRAY);
+      simulation.addGenericLayer(layer);
+      while (nextChild())
+      {
+        String geomType = reader.getLocalName();
+        if ("point".equals(geomType))
         {
-          Element layerNode = (Element)layerList.item(i);
-          String label = layerNode.getAttribute("label");
-          GenericLayer layer = new GenericLayer(label, Color.LIGHT_GRAY);
-          simulation.addGenericLayer(layer);
-          NodeList geomElements = layerNode.getElementsByTagName("*");
-          for (int j = 0; j < geomElements.getLength(); j++)
-          {
-            Element geomElem = (Element)geomElements.item(j);
-            String geomType = geomElem.getNodeName();
-            if ("point".equals(geomType))
-            {
-              layer.newFeature(getPoint(geomElem)).add();
-            }
-            else if ("line-string".equals(geomType))
-            {
-              layer.newFeature(getLineString(geomElem)).add();
-            }
-            else if ("polygon".equals(geomType))
-            {
-              layer.newFeature(getPolygon(geomElem)).add();
-            }
-          }
+          layer.newFeature(readPoint()).add();
+        }
+        else if ("line-string".equals(geomType))
+        {
+          layer.newFeature(new LineString(readCoordinates())).add();
+        }
+        else if ("polygon".equals(geomType))
+        {
+          layer.newFeature(new Polygon(readCoordinates())).add();
         }
+        else
+        {
+          skipElement();
+        }
+        updateProgress();
       }
+    }
+  }
 
-      Element groupsElement = getElement(root, "groups");
-      if (groupsElement != null)
+  protected void readGroups(Map<String, Group> groups)
+    throws XMLStreamException
+  {
+    while (nextChild())
+    {
+      if (!"group".equals(reader.getLocalName()))
+      {
+        skipElement();
+        continue;
+      }
+      String groupName = reader.getAttributeValue(null, "name");
+      Group group = new Group(groupName);
+      groups.put(groupName, group);
+      while (nextChild())
       {
-        Map<String, Group> groups = simulation.getGroups();
-        NodeList groupList =
-          groupsElement.getElementsByTagName("group");
-        for (int i = 0; i < groupList.getLength(); i++)
+        if ("location".equals(reader.getLocalName()))
         {
-          Element groupElement = (Element)groupList.item(i);
-          String groupName = groupElement.getAttribute("name");
-          Group group = new Group(groupName);
-          groups.put(groupName, group);
-          NodeList fromList =
-            groupElement.getElementsByTagName("location");
-          for (int j = 0; j < fromList.getLength(); j++)
+          String locationName = reader.getAttributeValue(null, "name");
+          if (locationName != null)
           {
-            Element fromElement = (Element)fromList.item(j);
-            String locationName = fromElement.getAttribute("name");
-            if (locationName != null)
-            {
-              double factor =
-                Double.parseDouble(fromElement.getAttribute("factor"));
-              group.addJourney(locationName, factor);
-            }
+            double factor =
+              Double.parseDouble(reader.getAttributeValue(null, "factor"));
+            group.addJourney(locationName, factor);
           }
         }
+        skipElement();
       }
+    }
+  }
 
-      Element locationsElement = getElement(root, "locations");
-      if (locationsElement != null)
+  protected void readLocations(Locations locations)
+    throws XMLStreamException
+  {
+    while (nextChild())
+    {
+      if (!"location".equals(reader.getLocalName()))
       {
-        Locations locations = simulation.getLocations();
-        NodeList locationList =
-          locationsElement.getElementsByTagName("location");
-        for (int i = 0; i < locationList.getLength(); i++)
+        skipElement();
+        continue;
+      }
+      Point point = null;
+      String name = null;
+      String label = null;
+      boolean isOrigin = false;
+      while (nextChild())
+      {
+        String element = reader.getLocalName();
+        if ("point".equals(element))
+        {
+          point = readPoint();
+        }
+        else if ("name".equals(element))
         {
-          Element locationElement = (Element)locationList.item(i);
-          Element pointElement = getElement(locationElement, "point");
-          Point point = getPoint(pointElement);
-          String name = getString(locationElement, "name");
-          String label = getString(locationElement, "label");
-          String origin = getString(locationElement, "origin");
-          boolean isOrigin = "true".equals(origin);
-          locations.newLocation(name, label, point, isOrigin).add();
+          name = readString();
+        }
+        else if ("label".equals(element))
+        {
+          label = readString();
+        }
+        else if ("origin".equals(element))
+        {
+          isOrigin = "true".equals(readString());
+        }
+        else
+        {
+          skipElement();
         }
       }
+      locations.newLocation(name, label, point, isOrigin).add();
+      updateProgress();
+    }
+  }
 
-
-      Element vehiclesElement = getElement(root, "vehicles");
-      if (vehiclesElement != null)
+  protected void readVehicles(Vehicles vehicles, Locations locations)
+    throws XMLStreamException
+  {
+    int[] locationIds = new int[16];
+    int[] journeyCounts = new int[16];
+    while (nextChild())
+    {
+      if (!"vehicle-group".equals(reader.getLocalName()))
+      {
+        skipElement();
+        continue;
+      }
+      Point point = null;
+      int count = 1;
+      String group = null;
+      int size = -1;
+      while (nextChild())
       {
-        Vehicles vehicles = simulation.getVehicles();
-        NodeList vehicleList =
-          vehiclesElement.getElementsByTagName("vehicle-group");
-        for (int i = 0; i < vehicleList.getLength(); i++)
+        String element = reader.getLocalName();
+        if ("point".equals(element))
+        {
+          point = readPoint();
+        }
+        else if ("count".equals(element))
+        {
+          count = Integer.parseInt(readString().trim());
+        }
+        else if ("group".equals(element))
+        {
+          group = readString();
+        }
+        else if ("movements".equals(element))
         {
-          Element vehicleElement = (Element)vehicleList.item(i);
-          Element pointElement = getElement(vehicleElement, "point");
-          Point point = getPoint(pointElement);
-          int count = getInteger(vehicleElement, "count", 1);
-          String group = getString(vehicleElement, "group");
-          Element movementsElement = getElement(vehicleElement, "movements");
-          Movements movements = null;
-          if (movementsElement != null)
+          size = 0;
+          while (nextChild())
           {
-            movements = new Movements();
-            NodeList locationList =
-              movementsElement.getElementsByTagName("location");
-            for (int j = 0; j < locationList.getLength(); j++)
+            if ("location".equals(reader.getLocalName()))
             {
-              Element locationElement = (Element)locationList.item(j);
-              String locationName = locationElement.getAttribute("name");
+              String locationName = reader.getAttributeValue(null, "name");
               if (locationName != null)
               {
                 int journeyCount =
-                  Integer.parseInt(locationElement.getAttribute("count"));
+                  Integer.parseInt(reader.getAttributeValue(null, "count"));
                 if (journeyCount > 0)
                 {
-                  movements.put(locationName, journeyCount);
+                  if (size == locationIds.length)
+                  {
+                    locationIds = Arrays.copyOf(locationIds, 2 * size);
+                    journeyCounts = Arrays.copyOf(journeyCounts, 2 * size);
+                  }
+                  locationIds[size] = locations.getLocationId(locationName);
+                  journeyCounts[size] = journeyCount;
+                  size++;
                 }
               }
             }
+            skipElement();
           }
-          vehicles.newVehicleGroup(point, count, group, movements).add();
         }
+        else
+        {
+          skipElement();
+        }
+      }
+      if (size == -1)
+      {
+        vehicles.newVehicleGroup(point, count, group, null, null).add();
+      }
+      else
+      {
+        vehicles.newVehicleGroup(point, count, group,
+          Arrays.copyOf(locationIds, size),
+          Arrays.copyOf(journeyCounts, size)).add();
       }
+      updateProgress();
     }
-    catch (Exception ex)
+  }
+
+  /**
+   * Moves to the next child element of the current element.
+   *
+   * @return true if positioned on the start of a child element, false if
+   * positioned on the end of the current element
+   */
+  protected boolean nextChild() throws XMLStreamException
+  {
+    while (reader.hasNext())
     {
-      throw new IOException(ex);
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) return true;
+      if (event == XMLStreamConstants.END_ELEMENT) return false;
     }
-    finally
+    return false;
+  }
+
+  protected void skipElement() throws XMLStreamException
+  {
+    int depth = 1;
+    while (depth > 0)
     {
-      is.close();
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) depth++;
+      else if (event == XMLStreamConstants.END_ELEMENT) depth--;
     }
-    return simulation;
   }
 
-  protected Element getElement(Element base, String name)
+  /**
+   * Reads the text content of the current element, including the text of
+   * its descendants, into the parser buffer.
+   */
+  protected void readText() throws XMLStreamException
   {
-    NodeList list = base.getElementsByTagName(name);
-    if (list.getLength() == 0) return null;
-    Element child = (Element)list.item(0);
-    return child;
+    parser.clear();
+    int depth = 1;
+    while (depth > 0)
+    {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT)
+      {
+        depth++;
+      }
+      else if (event == XMLStreamConstants.END_ELEMENT)
+      {
+        depth--;
+      }
+      else if (event == XMLStreamConstants.CHARACTERS ||
+        event == XMLStreamConstants.CDATA ||
+        event == XMLStreamConstants.SPACE)
+      {
+        parser.append(reader);
+      }
+    }
   }
 
-  protected String getString(Element element, String name)
+  protected String readString() throws XMLStreamException
   {
-    Element child = getElement(element, name);
-    if (child == null) return null;
-    return child.getTextContent();
+    readText();
+    return parser.toString();
   }
 
-  protected double getDouble(Element base, String name, double defValue)
+  protected Point readPoint() throws XMLStreamException
   {
-    Element child = getElement(base, name);
-    if (child == null) return defValue;
-    return Double.parseDouble(child.getTextContent());
+    double[] vertex = readCoordinates();
+    if (vertex.length == 0)
+      throw new XMLStreamException("Empty point", reader.getLocation());
+    return new Point(new Point3d(vertex[0], vertex[1], vertex[2]));
   }
 
-  protected int getInteger(Element base, String name, int defValue)
+  /**
+   * Reads a list of vertices with the form "x,y[,z] x,y[,z] ...".
+   *
+   * @return the coordinates of the vertices, 3 per vertex
+   */
+  protected double[] readCoordinates() throws XMLStreamException
   {
-    Element child = getElement(base, name);
-    if (child == null) return defValue;
-    return Integer.parseInt(child.getTextContent());
+    readText();
+    return parser.parseTuples();
   }
 
-  protected Point getPoint(Element element)
+  private void updateProgress()
   {
-    String text = element.getTextContent();
-    Point3d position = new Point3d();
-    String coords[] = text.split(",");
-    position.x = Double.parseDouble(coords[0]);
-    position.y = Double.parseDouble(coords[1]);
-    if (coords.length == 2)
+    if (progressListener != null && is.position >= nextProgress)
     {
-      position.z = Double.parseDouble(coords[2]);
+      progressListener.progressChanged(is.position, length);
+      nextProgress = is.position + Math.max(MIN_PROGRESS_STEP, length / 100);
     }
-    return new Point(position);
   }
 
-  protected LineString getLineString(Element element)
+  private static class CountingInputStream extends FilterInputStream
   {
-    String text = element.getTextContent();
-    String[] vertexArray = text.split(" ");
-    ArrayList<Point3d> vertices = new ArrayList<Point3d>();
-    for (String vertex : vertexArray)
+    long position;
+
+    CountingInputStream(InputStream is)
     {
-      Point3d point = new Point3d();
-      String coords[] = vertex.split(",");
-      point.x = Double.parseDouble(coords[0]);
-      point.y = Double.parseDouble(coords[1]);
-      if (coords.length == 2)
-      {
-        point.z = Double.parseDouble(coords[2]);
-      }
-      vertices.add(point);
+      super(is);
     }
-    return new LineString(vertices);
-  }
 
-  protected Polygon getPolygon(Element element)
-  {
-    String text = element.getTextContent();
-    String[] vertexArray = text.split(" ");
-    ArrayList<Point3d> vertices = new ArrayList<Point3d>();
-    for (String vertex : vertexArray)
+    @Override
+    public int read() throws IOException
     {
-      Point3d point = new Point3d();
-      String coords[] = vertex.split(",");
-      point.x = Double.parseDouble(coords[0]);
-      point.y = Double.parseDouble(coords[1]);
-      if (coords.length == 2)
-      {
-        point.z = Double.parseDouble(coords[2]);
-      }
-      vertices.add(point);
+      int b = super.read();
+      if (b != -1) position++;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException
+    {
+      int read = super.read(buffer, offset, count);
+      if (read > 0) position += read;
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException
+    {
+      long skipped = super.skip(count);
+      position += skipped;
+      return skipped;
     }
-    return new Polygon(vertices);
   }
 }
@@ -0,0 +1,279 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import org.santfeliu.trafsim.GenericLayer;
+import org.santfeliu.trafsim.Group;
+import org.santfeliu.trafsim.Group.Journey;
+import org.santfeliu.trafsim.Locations;
+import org.santfeliu.trafsim.Locations.Location;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.Simulation;
+import org.santfeliu.trafsim.Vehicles.VehicleGroup;
+import org.santfeliu.trafsim.geom.Geometry;
+import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.Point;
+
+/**
+ * An immutable copy of the data of a simulation that is written to file,
+ * including the indicators of the last routing. Geometries are duplicated,
+ * so taking a snapshot costs a copy of the coordinates but no formatting or
+ * I/O, and the snapshot can be written from another thread. The features
+ * of the base layers stored in tiles are not copied: the snapshot keeps
+ * their tiles, that the writers read while writing, and those layers can
+ * be bound to the tiles of the binary file the snapshot is written to (see
+ * bindTiledLayers).
+ *
+ * @author realor
+ */
+public class SimulationSnapshot
+{
+  final String title;
+  final String srsName;
+  final double duration;
+
+  final LineString[] edgeLineStrings;
+  final int[] edgeSpeeds;
+  final int[] edgeLanes;
+  final double[] edgeDelays;
+  final int[] edgeVehicleCounts;
+
+  final String[] layerLabels;
+  final Color[] layerColors;
+  // the geometries of the loaded layers, null for the tiled layers
+  final Geometry[][] layerGeometries;
+  // the tiles of the tiled layers, null for the loaded layers
+  final GenericLayer.TileSource[] layerTiles;
+  // the layers that were stored in tiles, null for the loaded layers
+  private final GenericLayer[] tiledLayers;
+
+  final String[] groupNames;
+  final String[][] journeyLocationNames;
+  final double[][] journeyFactors;
+
+  final String[] locationNames;
+  final String[] locationLabels;
+  final Point[] locationPoints;
+  final boolean[] locationOrigins;
+
+  final Point[] vehiclePoints;
+  final int[] vehicleCounts;
+  final String[] vehicleGroups;
+  final String[][] movementLocationNames;
+  final int[][] movementJourneyCounts;
+  final int[] vehicleJourneyCounts;
+  final int[] vehicleRoutedCounts;
+  final int[] vehicleUnroutedCounts;
+  final double[] vehicleDistances;
+  final double[] vehicleTimes;
+
+  public SimulationSnapshot(Simulation simulation) throws IOException
+  {
+    String simulationTitle = simulation.getTitle();
+    title = simulationTitle == null ? "Simulation" : simulationTitle;
+    srsName = simulation.getSrsName();
+    duration = simulation.getDuration();
+
+    Collection<Edge> edges = simulation.getRoadGraph().getFeatures();
+    edgeLineStrings = new LineString[edges.size()];
+    edgeSpeeds = new int[edges.size()];
+    edgeLanes = new int[edges.size()];
+    edgeDelays = new double[edges.size()];
+    edgeVehicleCounts = new int[edges.size()];
+    int i = 0;
+    for (Edge edge : edges)
+    {
+      edgeLineStrings[i] = edge.getLineString().duplicate();
+      edgeSpeeds[i] = edge.getSpeed();
+      edgeLanes[i] = edge.getLanes();
+      edgeDelays[i] = edge.getDelay();
+      edgeVehicleCounts[i] = edge.getVehicleCount();
+      i++;
+    }
+
+    List<GenericLayer> layers = simulation.getGenericLayers();
+    layerLabels = new String[layers.size()];
+    layerColors = new Color[layers.size()];
+    layerGeometries = new Geometry[layers.size()][];
+    layerTiles = new GenericLayer.TileSource[layers.size()];
+    tiledLayers = new GenericLayer[layers.size()];
+    for (i = 0; i < layers.size(); i++)
+    {
+      GenericLayer layer = layers.get(i);
+      layerLabels[i] = layer.getLabel();
+      layerColors[i] = layer.getColor();
+      List<Geometry> geometries = layer.copyGeometries();
+      if (geometries == null)
+      {
+        layerTiles[i] = layer.getTileSource();
+        tiledLayers[i] = layer;
+      }
+      else
+      {
+        layerGeometries[i] =
+          geometries.toArray(new Geometry[geometries.size()]);
+      }
+    }
+
+    Collection<Group> groups = simulation.getGroups().values();
+    groupNames = new String[groups.size()];
+    journeyLocationNames = new String[groups.size()][];
+    journeyFactors = new double[groups.size()][];
+    i = 0;
+    for (Group group : groups)
+    {
+      Collection<Journey> journeys = group.getJourneys();
+      String[] names = new String[journeys.size()];
+      double[] factors = new double[journeys.size()];
+      int j = 0;
+      for (Journey journey : journeys)
+      {
+        names[j] = journey.getLocationName();
+        factors[j] = journey.getFactor();
+        j++;
+      }
+      groupNames[i] = group.getName();
+      journeyLocationNames[i] = names;
+      journeyFactors[i] = factors;
+      i++;
+    }
+
+    Locations locations = simulation.getLocations();
+    Collection<Location> locationFeatures = locations.getFeatures();
+    locationNames = new String[locationFeatures.size()];
+    locationLabels = new String[locationFeatures.size()];
+    locationPoints = new Point[locationFeatures.size()];
+    locationOrigins = new boolean[locationFeatures.size()];
+    i = 0;
+    for (Location location : locationFeatures)
+    {
+      locationNames[i] = location.getName();
+      locationLabels[i] = location.getLabel();
+      locationPoints[i] = location.getPoint().duplicate();
+      locationOrigins[i] = location.isOrigin();
+      i++;
+    }
+
+    Collection<VehicleGroup> vehicles =
+      simulation.getVehicles().getFeatures();
+    vehiclePoints = new Point[vehicles.size()];
+    vehicleCounts = new int[vehicles.size()];
+    vehicleGroups = new String[vehicles.size()];
+    movementLocationNames = new String[vehicles.size()][];
+    movementJourneyCounts = new int[vehicles.size()][];
+    vehicleJourneyCounts = new int[vehicles.size()];
+    vehicleRoutedCounts = new int[vehicles.size()];
+    vehicleUnroutedCounts = new int[vehicles.size()];
+    vehicleDistances = new double[vehicles.size()];
+    vehicleTimes = new double[vehicles.size()];
+    i = 0;
+    for (VehicleGroup vehicleGroup : vehicles)
+    {
+      vehiclePoints[i] = vehicleGroup.getPoint().duplicate();
+      vehicleCounts[i] = vehicleGroup.getCount();
+      vehicleGroups[i] = vehicleGroup.getGroup();
+      if (vehicleGroup.hasMovements())
+      {
+        int movementCount = vehicleGroup.getMovementCount();
+        String[] names = new String[movementCount];
+        int[] counts = new int[movementCount];
+        for (int j = 0; j < movementCount; j++)
+        {
+          names[j] =
+            locations.getLocationName(vehicleGroup.getLocationId(j));
+          counts[j] = vehicleGroup.getJourneyCount(j);
+        }
+        movementLocationNames[i] = names;
+        movementJourneyCounts[i] = counts;
+      }
+      VehicleGroup.Indicators indicators = vehicleGroup.getIndicators();
+      vehicleJourneyCounts[i] = indicators.journeyCount;
+      vehicleRoutedCounts[i] = indicators.routedCount;
+      vehicleUnroutedCounts[i] = indicators.unroutedCount;
+      vehicleDistances[i] = indicators.distance;
+      vehicleTimes[i] = indicators.time;
+      i++;
+    }
+  }
+
+  /**
+   * Gets the geometries of a layer, in order. The geometries of a tiled
+   * layer are read from all its tiles.
+   *
+   * @param layerIndex the index of the layer
+   * @return the geometries of the layer
+   * @throws IOException if the tiles of the layer can not be read
+   */
+  Geometry[] getLayerGeometries(int layerIndex) throws IOException
+  {
+    GenericLayer.TileSource tiles = layerTiles[layerIndex];
+    if (tiles == null) return layerGeometries[layerIndex];
+
+    Geometry[] geometries = new Geometry[tiles.getFeatureCount()];
+    for (int tile = 0; tile < tiles.getTileCount(); tile++)
+    {
+      int[] positions = new int[tiles.getTileFeatureCount(tile)];
+      List<Geometry> tileGeometries = tiles.readTile(tile, positions);
+      for (int j = 0; j < tileGeometries.size(); j++)
+      {
+        if (positions[j] < 0 || positions[j] >= geometries.length)
+          throw new IOException("Invalid feature position: " + positions[j]);
+        geometries[positions[j]] = tileGeometries.get(j);
+      }
+    }
+    return geometries;
+  }
+
+  /**
+   * Binds the base layers that were stored in tiles when this snapshot was
+   * taken to the tiles of file, so that they no longer depend on the file
+   * they were read from. The layers loaded since then are not changed.
+   *
+   * @param file the binary file this snapshot has been written to
+   * @throws IOException if the tiles of file can not be read
+   */
+  public void bindTiledLayers(File file) throws IOException
+  {
+    BinarySimulationReader reader = new BinarySimulationReader(file);
+    for (int i = 0; i < tiledLayers.length; i++)
+    {
+      if (tiledLayers[i] != null)
+      {
+        tiledLayers[i].setTileSource(reader.readTileSource(i));
+      }
+    }
+  }
+}
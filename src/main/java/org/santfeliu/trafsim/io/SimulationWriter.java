@@ -32,23 +32,10 @@ package org.santfeliu.trafsim.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Collection;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import javax.vecmath.Point3d;
-import org.santfeliu.trafsim.GenericLayer;
-import org.santfeliu.trafsim.GenericLayer.GenericFeature;
-import org.santfeliu.trafsim.Group;
-import org.santfeliu.trafsim.Group.Journey;
-import org.santfeliu.trafsim.Locations.Location;
-import org.santfeliu.trafsim.Movements;
-import org.santfeliu.trafsim.RoadGraph;
-import org.santfeliu.trafsim.RoadGraph.Edge;
 import org.santfeliu.trafsim.Simulation;
-import org.santfeliu.trafsim.Vehicles.VehicleGroup;
 import org.santfeliu.trafsim.geom.Geometry;
 import org.santfeliu.trafsim.geom.LineString;
+import org.santfeliu.trafsim.geom.PackedGeometry;
 import org.santfeliu.trafsim.geom.Point;
 import org.santfeliu.trafsim.geom.Polygon;
 
@@ -66,6 +53,19 @@ public class SimulationWriter extends XMLWriter
   }
 
   public void write(Simulation simulation) throws IOException
+  {
+    write(new SimulationSnapshot(simulation));
+  }
+
+  /**
+   * Writes a snapshot of a simulation. As the snapshot does not change,
+   * this method can be called from a background thread while the
+   * simulation is being edited.
+   *
+   * @param snapshot the snapshot to write
+   * @throws IOException if the snapshot can not be written
+   */
+  public void write(SimulationSnapshot snapshot) throws IOException
   {
     try
     {
@@ -73,48 +73,49 @@ public class SimulationWriter extends XMLWriter
       startTag("traffic-simulation");
       writeAttribute("version", VERSION);
 
-      String title = simulation.getTitle();
-      if (title == null) title = "Simulation";
-
       startTag("title");
-      writeText(title);
+      writeText(snapshot.title);
       endTag("title");
 
       startTag("srs");
-      writeText(simulation.getSrsName());
+      writeText(snapshot.srsName);
       endTag("srs");
 
       startTag("duration");
-      writeText(simulation.getDuration());
+      writeText(snapshot.duration);
       endTag("duration");
 
       startTag("road-graph");
-      RoadGraph roadGraph = simulation.getRoadGraph();
-      Collection<Edge> edges = roadGraph.getFeatures();
-      for (Edge edge : edges)
+      for (int i = 0; i < snapshot.edgeLineStrings.length; i++)
       {
-        writeEdge(edge);
+        writeEdge(snapshot, i);
       }
       endTag("road-graph");
 
       startTag("layers");
-      List<GenericLayer> layers = simulation.getGenericLayers();
-      for (GenericLayer layer : layers)
+      for (int i = 0; i < snapshot.layerLabels.length; i++)
       {
-        writeLayer(layer);
+        startTag("layer");
+        writeAttribute("label", snapshot.layerLabels[i]);
+        for (Geometry geometry : snapshot.getLayerGeometries(i))
+        {
+          writeGeometry(geometry);
+        }
+        endTag("layer");
       }
       endTag("layers");
 
       startTag("groups");
-      for (Group group : simulation.getGroups().values())
+      for (int i = 0; i < snapshot.groupNames.length; i++)
       {
         startTag("group");
-        writeAttribute("name", group.getName());
-        for (Journey journey : group.getJourneys())
+        writeAttribute("name", snapshot.groupNames[i]);
+        String[] locationNames = snapshot.journeyLocationNames[i];
+        for (int j = 0; j < locationNames.length; j++)
         {
           startTag("location");
-          writeAttribute("name", journey.getLocationName());
-          writeAttribute("factor", journey.getFactor());
+          writeAttribute("name", locationNames[j]);
+          writeAttribute("factor", snapshot.journeyFactors[i][j]);
           endTag("location");
         }
         endTag("group");
@@ -122,23 +123,20 @@ public class SimulationWriter extends XMLWriter
       endTag("groups");
 
       startTag("locations");
-      Collection<Location> locations = simulation.getLocations().getFeatures();
-      for (Location location : locations)
+      for (int i = 0; i < snapshot.locationNames.length; i++)
       {
-        writeLocation(location);
+        writeLocation(snapshot, i);
       }
       endTag("locations");
 
       startTag("vehicles");
-      Collection<VehicleGroup> vehicles = simulation.getVehicles().getFeatures();
-      for (VehicleGroup vehicleGroup : vehicles)
+      for (int i = 0; i < snapshot.vehiclePoints.length; i++)
       {
-        writeVehicleGroup(vehicleGroup);
+        writeVehicleGroup(snapshot, i);
       }
       endTag("vehicles");
 
       endTag("traffic-simulation");
-
     }
     finally
     {
@@ -146,90 +144,76 @@ public class SimulationWriter extends XMLWriter
     }
   }
 
-  protected void writeEdge(Edge edge)
+  protected void writeEdge(SimulationSnapshot snapshot, int index)
   {
     startTag("edge");
 
-    writeGeometry(edge.getLineString());
+    writeGeometry(snapshot.edgeLineStrings[index]);
 
     startTag("speed");
-    writeText(edge.getSpeed());
+    writeText(snapshot.edgeSpeeds[index]);
     endTag("speed");
 
     startTag("lanes");
-    writeText(edge.getLanes());
+    writeText(snapshot.edgeLanes[index]);
     endTag("lanes");
 
     startTag("delay");
-    writeText(edge.getDelay());
+    writeText(snapshot.edgeDelays[index]);
     endTag("delay");
-    
-    endTag("edge");
-  }
-
-  protected void writeLayer(GenericLayer layer)
-  {
-    startTag("layer");
-    writeAttribute("label", layer.getLabel());
-
-    Collection<GenericFeature> features = layer.getFeatures();
-    for (GenericFeature feature : features)
-    {
-      writeGeometry(feature.getGeometry());
-    }
 
-    endTag("layer");
+    endTag("edge");
   }
 
-  protected void writeLocation(Location location)
+  protected void writeLocation(SimulationSnapshot snapshot, int index)
   {
     startTag("location");
 
     startTag("name");
-    writeText(location.getName());
+    writeText(snapshot.locationNames[index]);
     endTag("name");
 
     startTag("label");
-    writeText(location.getLabel());
+    writeText(snapshot.locationLabels[index]);
     endTag("label");
 
     startTag("point");
-    writeGeometry(location.getPoint());
+    writeGeometry(snapshot.locationPoints[index]);
     endTag("point");
 
     startTag("origin");
-    writeText(location.isOrigin());
+    writeText(snapshot.locationOrigins[index]);
     endTag("origin");
 
     endTag("location");
   }
 
-  protected void writeVehicleGroup(VehicleGroup vehicleGroup)
+  protected void writeVehicleGroup(SimulationSnapshot snapshot, int index)
   {
     startTag("vehicle-group");
 
     startTag("point");
-    writeGeometry(vehicleGroup.getPoint());
+    writeGeometry(snapshot.vehiclePoints[index]);
     endTag("point");
 
     startTag("count");
-    writeText(vehicleGroup.getCount());
+    writeText(snapshot.vehicleCounts[index]);
     endTag("count");
 
     startTag("group");
-    writeText(vehicleGroup.getGroup());
+    writeText(snapshot.vehicleGroups[index]);
     endTag("group");
 
-    Movements movements = vehicleGroup.getMovements();
-    if (movements != null)
+    String[] locationNames = snapshot.movementLocationNames[index];
+    if (locationNames != null)
     {
+      int[] journeyCounts = snapshot.movementJourneyCounts[index];
       startTag("movements");
-      Set<Map.Entry<String, Integer>> entrySet = movements.entrySet();
-      for (Map.Entry<String, Integer> entry : entrySet)
+      for (int i = 0; i < locationNames.length; i++)
       {
         startTag("location");
-        writeAttribute("name", entry.getKey());
-        writeAttribute("count", entry.getValue());
+        writeAttribute("name", locationNames[i]);
+        writeAttribute("count", journeyCounts[i]);
         endTag("location");
       }
       endTag("movements");
@@ -248,24 +232,23 @@ public class SimulationWriter extends XMLWriter
     else if (geometry instanceof LineString)
     {
       startTag("line-string");
-      List<Point3d> vertices = ((LineString)geometry).getVertices();
-      for (int i = 0; i < vertices.size(); i++)
-      {
-        if (i > 0) writer.print(" ");
-        writePoint3d(vertices.get(i));
-      }
+      writeVertices((LineString)geometry);
       endTag("line-string");
     }
     else if (geometry instanceof Polygon)
     {
       startTag("polygon");
-      List<Point3d> vertices = ((Polygon)geometry).getVertices();
-      for (int i = 0; i < vertices.size(); i++)
-      {
-        if (i > 0) writer.print(" ");
-        writePoint3d(vertices.get(i));
-      }
+      writeVertices((Polygon)geometry);
       endTag("polygon");
     }
   }
+
+  protected void writeVertices(PackedGeometry geometry)
+  {
+    for (int i = 0; i < geometry.getVertexCount(); i++)
+    {
+      if (i > 0) writeText(" ");
+      writeCoordinates(geometry.getX(i), geometry.getY(i), geometry.getZ(i));
+    }
+  }
 }
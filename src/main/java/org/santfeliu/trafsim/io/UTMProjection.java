@@ -0,0 +1,128 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import java.io.IOException;
+
+/**
+ * Projects geographic coordinates (longitude, latitude) to UTM using the
+ * Krüger series, accurate to the millimetre inside the zone.
+ *
+ * @author realor
+ */
+class UTMProjection
+{
+  private static final double A = 6378137.0;
+  private static final double F = 1 / 298.257222101;
+  private static final double K0 = 0.9996;
+  private static final double FALSE_EASTING = 500000;
+  private static final double FALSE_NORTHING_SOUTH = 10000000;
+
+  private static final double N = F / (2 - F);
+  private static final double E = Math.sqrt(F * (2 - F));
+  private static final double R = K0 * A / (1 + N) *
+    (1 + N * N / 4 + N * N * N * N / 64);
+  private static final double ALPHA1 = N / 2 - 2 * N * N / 3 +
+    5 * N * N * N / 16;
+  private static final double ALPHA2 = 13 * N * N / 48 - 3 * N * N * N / 5;
+  private static final double ALPHA3 = 61 * N * N * N / 240;
+
+  private final double centralMeridian;
+  private final double falseNorthing;
+
+  UTMProjection(int zone, boolean south)
+  {
+    centralMeridian = Math.toRadians(6 * zone - 183);
+    falseNorthing = south ? FALSE_NORTHING_SOUTH : 0;
+  }
+
+  /**
+   * Returns the projection of srsName, or null if srsName is geographic
+   * (EPSG:4326). UTM zones are EPSG:258zz (ETRS89), EPSG:326zz and
+   * EPSG:327zz (WGS84 north and south).
+   *
+   * @param srsName the srs name, also in urn:ogc:def:crs:EPSG:: form
+   * @return the projection or null
+   * @throws IOException if srsName is not supported
+   */
+  static UTMProjection forSrsName(String srsName) throws IOException
+  {
+    int index = srsName == null ? -1 : srsName.lastIndexOf(':');
+    if (index != -1)
+    {
+      try
+      {
+        int code = Integer.parseInt(srsName.substring(index + 1));
+        if (code == 4326) return null;
+        if (code >= 25801 && code <= 25860)
+          return new UTMProjection(code - 25800, false);
+        if (code >= 32601 && code <= 32660)
+          return new UTMProjection(code - 32600, false);
+        if (code >= 32701 && code <= 32760)
+          return new UTMProjection(code - 32700, true);
+      }
+      catch (NumberFormatException ex)
+      {
+      }
+    }
+    throw new IOException("Unsupported srsName: " + srsName);
+  }
+
+  /**
+   * Stores in coordinates at offset the easting and northing of the given
+   * geographic position.
+   */
+  void project(double lon, double lat, double[] coordinates, int offset)
+  {
+    double sinLat = Math.sin(Math.toRadians(lat));
+    double t = Math.sinh(atanh(sinLat) - E * atanh(E * sinLat));
+    double dlon = Math.toRadians(lon) - centralMeridian;
+    double xi = Math.atan2(t, Math.cos(dlon));
+    double eta = atanh(Math.sin(dlon) / Math.sqrt(1 + t * t));
+
+    double x = eta +
+      ALPHA1 * Math.cos(2 * xi) * Math.sinh(2 * eta) +
+      ALPHA2 * Math.cos(4 * xi) * Math.sinh(4 * eta) +
+      ALPHA3 * Math.cos(6 * xi) * Math.sinh(6 * eta);
+    double y = xi +
+      ALPHA1 * Math.sin(2 * xi) * Math.cosh(2 * eta) +
+      ALPHA2 * Math.sin(4 * xi) * Math.cosh(4 * eta) +
+      ALPHA3 * Math.sin(6 * xi) * Math.cosh(6 * eta);
+
+    coordinates[offset] = FALSE_EASTING + R * x;
+    coordinates[offset + 1] = falseNorthing + R * y;
+  }
+
+  private static double atanh(double x)
+  {
+    return 0.5 * Math.log((1 + x) / (1 - x));
+  }
+}
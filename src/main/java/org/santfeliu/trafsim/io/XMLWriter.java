@@ -32,38 +32,50 @@ package org.santfeliu.trafsim.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import javax.vecmath.Point3d;
 
 /**
+ * Writes XML encoded as UTF-8 into the byte buffer of BufferedTextWriter.
+ *
+ * I/O errors are kept and thrown by close, so the tag methods can be called
+ * without handling them.
  *
  * @author realor
  */
-public class XMLWriter
+public class XMLWriter extends BufferedTextWriter
 {
   protected boolean tagOpen = false;
-  protected final PrintWriter writer;
 
   public XMLWriter(OutputStream os) throws IOException
   {
-    writer = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+    super(os);
   }
 
   protected void writePreambule()
   {
-    writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+    writeChars("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
   }
 
   protected void writePoint3d(Point3d point)
   {
-    writeText(point.getX() + "," + point.getY() + "," + point.getZ());
+    writeCoordinates(point.x, point.y, point.z);
+  }
+
+  protected void writeCoordinates(double x, double y, double z)
+  {
+    closeStartTag();
+    writeCoordinate(x);
+    writeByte(',');
+    writeCoordinate(y);
+    writeByte(',');
+    writeCoordinate(z);
   }
 
   protected void startTag(String tag)
   {
     closeStartTag();
-    writer.print("<" + tag);
+    writeByte('<');
+    writeChars(tag);
     tagOpen = true;
   }
 
@@ -71,7 +83,12 @@ public class XMLWriter
   {
     if (tagOpen)
     {
-      writer.print(" " + name + "=\"" + value + "\"");
+      writeByte(' ');
+      writeChars(name);
+      writeByte('=');
+      writeByte('"');
+      writeValue(value);
+      writeByte('"');
     }
   }
 
@@ -80,24 +97,90 @@ public class XMLWriter
     closeStartTag();
     if (text != null)
     {
-      writer.print(String.valueOf(text));
+      writeValue(text);
     }
   }
 
+  protected void writeText(double value)
+  {
+    closeStartTag();
+    writeDouble(value);
+  }
+
+  protected void writeText(long value)
+  {
+    closeStartTag();
+    writeLong(value);
+  }
+
   protected void endTag(String tag)
   {
     closeStartTag();
-    writer.print("</" + tag + ">");
+    writeByte('<');
+    writeByte('/');
+    writeChars(tag);
+    writeByte('>');
   }
 
   protected void closeStartTag()
   {
-    if (tagOpen) writer.write(">");
+    if (tagOpen) writeByte('>');
     tagOpen = false;
   }
 
-  public void close()
+  protected void writeValue(Object value)
   {
-    writer.close();
+    if (value instanceof Double || value instanceof Float)
+    {
+      writeDouble(((Number)value).doubleValue());
+    }
+    else if (value instanceof Integer || value instanceof Long ||
+      value instanceof Short || value instanceof Byte)
+    {
+      writeLong(((Number)value).longValue());
+    }
+    else
+    {
+      writeChars(String.valueOf(value), true);
+    }
+  }
+
+  /**
+   * Writes text, replacing the characters that are not allowed in XML text
+   * and attribute values by entities if escape is true.
+   */
+  protected void writeChars(String text, boolean escape)
+  {
+    if (!escape)
+    {
+      writeChars(text);
+      return;
+    }
+    int length = text.length();
+    int start = 0;
+    for (int i = 0; i < length; i++)
+    {
+      char ch = text.charAt(i);
+      if (ch == '&' || ch == '<' || ch == '>' || ch == '"')
+      {
+        writeChars(text, start, i);
+        writeEntity(ch);
+        start = i + 1;
+      }
+    }
+    writeChars(text, start, length);
+  }
+
+  private void writeEntity(char ch)
+  {
+    String entity;
+    switch (ch)
+    {
+      case '&': entity = "&amp;"; break;
+      case '<': entity = "&lt;"; break;
+      case '>': entity = "&gt;"; break;
+      default: entity = "&quot;";
+    }
+    writeChars(entity);
   }
 }
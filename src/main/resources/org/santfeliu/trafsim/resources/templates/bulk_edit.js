@@ -0,0 +1,13 @@
+// changes made inside apply are committed at once:
+// edges are linked to their nodes and the map is repainted at the end
+simulation.apply(function()
+{
+  var features = selection.toArray();
+  for (var i = 0; i < features.length; i++)
+  {
+    feature = features[i];
+
+    // edit feature
+  }
+});
+trafsim.setModified(true);
@@ -0,0 +1,21 @@
+// select the edges within 300 meters of the selected locations
+radius = 300;
+edges = new java.util.HashSet();
+iter = selection.iterator();
+while (iter.hasNext())
+{
+  feature = iter.next();
+  if (feature.layer === simulation.locations)
+  {
+    // picks are returned in ascending distance order
+    nearest = Finder.nearest(simulation.roadGraph, feature.point.position);
+    while (nearest.hasNext())
+    {
+      pick = nearest.next();
+      if (pick.distance > radius) break;
+      edges.add(pick.feature);
+    }
+  }
+}
+selection.addAll(edges);
+edges.size() + " edges selected.";
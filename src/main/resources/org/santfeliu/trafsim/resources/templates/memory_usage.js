@@ -0,0 +1,9 @@
+// memory used by the simulation (MB)
+runtime = java.lang.Runtime.getRuntime();
+heap = (runtime.totalMemory() - runtime.freeMemory()) / 1048576;
+roadGraph = simulation.roadGraph;
+offHeap = roadGraph.offHeapMemoryUsage / 1048576;
+edgeStore = roadGraph.edgeStore.memoryUsage / 1048576;
+"heap: " + heap.toFixed(1) + " MB, road graph off-heap: " +
+  offHeap.toFixed(1) + " MB (edge attributes: " + edgeStore.toFixed(1) +
+  " MB), nodes: " + roadGraph.nodeCount + ", edges: " + roadGraph.edgeCount;
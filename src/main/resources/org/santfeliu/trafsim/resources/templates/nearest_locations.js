@@ -0,0 +1,18 @@
+// select the 3 nearest locations to each selected vehicle group
+locations = new java.util.HashSet();
+iter = selection.iterator();
+while (iter.hasNext())
+{
+  feature = iter.next();
+  if (feature.layer === simulation.vehicles)
+  {
+    picks = new java.util.ArrayList();
+    Finder.findNearest(simulation.locations, feature.point.position, 3, picks);
+    for each (pick in picks)
+    {
+      locations.add(pick.feature);
+    }
+  }
+}
+selection.addAll(locations);
+locations.size() + " locations selected.";
@@ -0,0 +1,202 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import org.santfeliu.trafsim.RoadGraph.Edge;
+import org.santfeliu.trafsim.geom.LineString;
+
+/**
+ * Measures the memory allocated by a full repaint of the map and by a full
+ * pick over all the edges of a synthetic road graph.
+ *
+ * The measure is repeated over two graphs with the same edges, the second
+ * one with more vertices per edge. Java2D may allocate some objects for
+ * each draw call, so the garbage per segment is the difference between
+ * both measures divided by the number of added segments.
+ *
+ * Usage: AllocationBenchmark [grid size]
+ *
+ * Exits with status 1 if any allocation per segment is detected.
+ *
+ * @author realor
+ */
+public class AllocationBenchmark
+{
+  private static final int ITERATIONS = 20;
+  private static final int WIDTH = 1200;
+  private static final int HEIGHT = 900;
+
+  public static void main(String[] args)
+  {
+    System.setProperty("java.awt.headless", "true");
+    int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+
+    long[] sparse = run(gridSize, 1);
+    long[] dense = run(gridSize, 8);
+
+    double segments = dense[0] - sparse[0];
+    double paintBytes = (dense[1] - sparse[1]) / segments;
+    double pickBytes = (dense[2] - sparse[2]) / segments;
+    System.out.println("Repaint: " + format(paintBytes) + " bytes/segment");
+    System.out.println("Pick: " + format(pickBytes) + " bytes/segment");
+
+    boolean perSegment = paintBytes >= 1 || pickBytes >= 1;
+    System.out.println(perSegment ?
+      "FAILED: allocation per segment detected" : "OK");
+    System.exit(perSegment ? 1 : 0);
+  }
+
+  /**
+   * @return the segment count and the bytes allocated by a repaint and by
+   * a pick
+   */
+  private static long[] run(int gridSize, int segmentsPerEdge)
+  {
+    final Simulation simulation =
+      createSimulation(gridSize, segmentsPerEdge);
+    RoadGraph roadGraph = simulation.getRoadGraph();
+    int segmentCount = 0;
+    for (Edge edge : roadGraph.getEdges())
+    {
+      segmentCount += edge.getLineString().getVertexCount() - 1;
+    }
+
+    MapViewer mapViewer = new MapViewer()
+    {
+      @Override
+      public Simulation getSimulation()
+      {
+        return simulation;
+      }
+    };
+    mapViewer.setSize(WIDTH, HEIGHT);
+    mapViewer.zoomAll();
+    BufferedImage image =
+      new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+
+    Point3d worldPoint = new Point3d(gridSize * 50, gridSize * 50, 0);
+    PickInfo pick = new PickInfo();
+
+    // warm up
+    for (int i = 0; i < ITERATIONS; i++)
+    {
+      mapViewer.paintComponent(g);
+      pick(roadGraph, worldPoint, pick);
+    }
+
+    long paintBytes = measure(() -> mapViewer.paintComponent(g));
+    long pickBytes = measure(() -> pick(roadGraph, worldPoint, pick));
+    g.dispose();
+
+    System.out.println("Segments: " + segmentCount +
+      ", repaint: " + paintBytes + " bytes, pick: " + pickBytes + " bytes");
+
+    return new long[]{segmentCount, paintBytes, pickBytes};
+  }
+
+  private static void pick(RoadGraph roadGraph, Point3d worldPoint,
+    PickInfo pick)
+  {
+    pick.clear();
+    Finder.findByPoint(roadGraph.getEdges(), worldPoint,
+      Double.POSITIVE_INFINITY, pick);
+    for (Edge edge : roadGraph.getEdges())
+    {
+      Finder.getDistance(edge, worldPoint, pick);
+    }
+  }
+
+  /**
+   * @return the average bytes allocated by the current thread per run
+   */
+  private static long measure(Runnable runnable)
+  {
+    com.sun.management.ThreadMXBean bean =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    long start = bean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++)
+    {
+      runnable.run();
+    }
+    long end = bean.getThreadAllocatedBytes(threadId);
+    return (end - start) / ITERATIONS;
+  }
+
+  private static Simulation createSimulation(int gridSize,
+    int segmentsPerEdge)
+  {
+    Simulation simulation = new Simulation();
+    RoadGraph roadGraph = simulation.getRoadGraph();
+    Random random = new Random(0);
+    double step = 100;
+    for (int i = 0; i < gridSize; i++)
+    {
+      for (int j = 0; j < gridSize; j++)
+      {
+        double x = i * step;
+        double y = j * step;
+        int lanes = 1 + random.nextInt(3);
+        roadGraph.newEdge(createLineString(x, y, x + step, y,
+          segmentsPerEdge, random), 50, lanes, 0).add();
+        roadGraph.newEdge(createLineString(x, y, x, y + step,
+          segmentsPerEdge, random), 30, lanes,
+          random.nextInt(4) == 0 ? 10 : 0).add();
+      }
+    }
+    return simulation;
+  }
+
+  private static LineString createLineString(double x1, double y1,
+    double x2, double y2, int segmentCount, Random random)
+  {
+    double[] coordinates = new double[3 * (segmentCount + 1)];
+    for (int i = 0; i <= segmentCount; i++)
+    {
+      double t = (double)i / segmentCount;
+      double noise = (i == 0 || i == segmentCount) ? 0 : 5;
+      coordinates[3 * i] = x1 + t * (x2 - x1) + noise * random.nextDouble();
+      coordinates[3 * i + 1] = y1 + t * (y2 - y1) + noise * random.nextDouble();
+    }
+    return new LineString(coordinates);
+  }
+
+  private static String format(double value)
+  {
+    return String.format("%.3f", value);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Traffic Simulator
+ *
+ * Copyright (C) 2018, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ *   http://www.gnu.org/licenses/
+ *   and
+ *   https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.santfeliu.trafsim.io;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stub of a WFS 2.0 server to check how GMLReader reads a layer in
+ * pages. The layer has featureCount line strings, each with its index as
+ * id. The server returns at most maxCount features per page, whatever the
+ * count requested, and the first request of every third page fails with
+ * status 503, so that it must be retried.
+ *
+ * Usage: WfsStubServer [featureCount] [maxCount] [pageSize] [numberMatched]
+ *
+ * The layer is read with GMLReader and the program fails unless each
+ * feature is read once and in order.
+ *
+ * @author realor
+ */
+public class WfsStubServer
+{
+  private final int featureCount;
+  private final int maxCount;
+  private final boolean numberMatched;
+  private final AtomicInteger requestCount = new AtomicInteger();
+  private final Set<Integer> failedPages =
+    Collections.synchronizedSet(new HashSet<Integer>());
+  private HttpServer server;
+
+  public WfsStubServer(int featureCount, int maxCount,
+    boolean numberMatched)
+  {
+    this.featureCount = featureCount;
+    this.maxCount = maxCount;
+    this.numberMatched = numberMatched;
+  }
+
+  public String start() throws IOException
+  {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(8));
+    server.createContext("/wfs", this::handle);
+    server.start();
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/wfs";
+  }
+
+  public void stop()
+  {
+    server.stop(0);
+    ((ExecutorService)server.getExecutor()).shutdown();
+  }
+
+  public int getRequestCount()
+  {
+    return requestCount.get();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    requestCount.incrementAndGet();
+    Map<String, String> parameters = new HashMap<String, String>();
+    for (String parameter : exchange.getRequestURI().getRawQuery().split("&"))
+    {
+      String[] pair = parameter.split("=", 2);
+      parameters.put(pair[0], pair.length == 1 ? "" :
+        URLDecoder.decode(pair[1], "UTF-8"));
+    }
+    int startIndex = getInt(parameters, "startIndex", 0);
+    int count = Math.min(getInt(parameters, "count", featureCount), maxCount);
+    if ((startIndex / Math.max(count, 1)) % 3 == 1 &&
+      failedPages.add(startIndex))
+    {
+      exchange.sendResponseHeaders(503, -1);
+      exchange.close();
+      return;
+    }
+
+    int endIndex = Math.min(featureCount, startIndex + count);
+    StringBuilder buffer = new StringBuilder();
+    buffer.append("<?xml version=\"1.0\"?>");
+    buffer.append("<wfs:FeatureCollection");
+    buffer.append(" xmlns:wfs=\"http://www.opengis.net/wfs/2.0\"");
+    buffer.append(" xmlns:gml=\"http://www.opengis.net/gml/3.2\"");
+    buffer.append(" xmlns:app=\"urn:app\"");
+    buffer.append(" numberReturned=\"");
+    buffer.append(Math.max(endIndex - startIndex, 0));
+    buffer.append("\" numberMatched=\"");
+    buffer.append(numberMatched ? String.valueOf(featureCount) : "unknown");
+    buffer.append("\">");
+    for (int i = startIndex; i < endIndex; i++)
+    {
+      buffer.append("<wfs:member><app:road><app:id>").append(i);
+      buffer.append("</app:id><app:geom><gml:LineString><gml:posList>");
+      buffer.append(i).append(" 0 ").append(i).append(" 1");
+      buffer.append("</gml:posList></gml:LineString></app:geom>");
+      buffer.append("</app:road></wfs:member>");
+    }
+    buffer.append("</wfs:FeatureCollection>");
+    byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream os = exchange.getResponseBody())
+    {
+      os.write(bytes);
+    }
+  }
+
+  private int getInt(Map<String, String> parameters, String name,
+    int defaultValue)
+  {
+    String value = parameters.get(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    int featureCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int maxCount = args.length > 1 ? Integer.parseInt(args[1]) : 700;
+    int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    boolean numberMatched = args.length > 3 && Boolean.parseBoolean(args[3]);
+
+    WfsStubServer stub =
+      new WfsStubServer(featureCount, maxCount, numberMatched);
+    String url = stub.start();
+    try
+    {
+      GMLReader reader = new GMLReader();
+      reader.setPageSize(pageSize);
+      reader.setRetryDelay(50);
+      List<Integer> ids = new ArrayList<Integer>();
+      reader.readLayer(url, "app:road", null, null, (geometry, attributes) ->
+        ids.add(Integer.parseInt((String)attributes.get("id"))));
+      boolean ordered = ids.size() == featureCount;
+      for (int i = 0; i < ids.size() && ordered; i++)
+      {
+        ordered = ids.get(i) == i;
+      }
+      System.out.println(ids.size() + " features read in " +
+        stub.getRequestCount() + " requests");
+      if (!ordered)
+        throw new IllegalStateException("Features lost or repeated");
+    }
+    finally
+    {
+      stub.stop();
+    }
+  }
+}